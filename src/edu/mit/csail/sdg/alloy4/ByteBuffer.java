@@ -16,6 +16,7 @@
 package edu.mit.csail.sdg.alloy4;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.util.Iterator;
@@ -85,16 +86,45 @@ public final class ByteBuffer {
       if (Double.isNaN(x)) return write("0 "); else if (x>32767) return write("32767 "); else if (x<-32767) return write("-32767 ");
       long num = (long)(x * 1000000);
       if (num>=32767000000L) return write("32767 "); else if (num<=(-32767000000L)) return write("-32767 ");
-      // Now, regular doubles... let's allow up to 6 digits after the decimal point
+      // Now, regular doubles... let's allow up to 6 digits after the decimal point, but omit the trailing zeroes
       if (num<0) { w('-'); num = -num; }
-      String str = Long.toString(num);
-      int len = str.length();
-      if (len<=6) {
-         w('.');
-         while(len<6) { w('0'); len++; }
-         return write(str).w(' ');
+      write(Long.toString(num / 1000000));
+      int frac = (int) (num % 1000000);
+      if (frac==0) return w(' ');
+      w('.');
+      for(int digit=100000; frac>0; digit=digit/10) { w('0' + frac/digit); frac = frac % digit; }
+      return w(' ');
+   }
+
+   /** Returns the number of bytes stored in this byte buffer. */
+   public long size() { return ((long)(list.size()-1)) * SIZE + n; }
+
+   /** Erases the content of this byte buffer (but keeps the first chunk, so that the buffer can be refilled without allocating). */
+   public void clear() {
+      byte[] first = list.getFirst();
+      list.clear();
+      list.add(first);
+      n = 0;
+   }
+
+   /** Feed the entire content into the given Deflater, write whatever compressed bytes it produces into the given stream,
+    * then erase the content of this byte buffer; if finish==true, we also tell the Deflater that no more input will be coming.
+    * <p> This lets the caller compress an arbitrarily long stream a piece at a time, reusing one Deflater for the whole stream.
+    * @return the number of compressed bytes written
+    */
+   public long deflate(Deflater zip, OutputStream os, boolean finish) throws IOException {
+      byte[] output = new byte[8192], last = list.getLast();
+      long ans = 0;
+      for(byte[] in: list) {
+         zip.setInput(in, 0, in==last ? n : SIZE);
+         while(!zip.needsInput()) { int count = zip.deflate(output); os.write(output, 0, count); ans += count; }
+      }
+      if (finish) {
+         zip.finish();
+         while(!zip.finished()) { int count = zip.deflate(output); os.write(output, 0, count); ans += count; }
       }
-      return write(str.substring(0, str.length()-6)).w('.').write(str.substring(str.length()-6)).w(' ');
+      clear();
+      return ans;
    }
 
    /** Write the entire content into the given file using Flate compression (see RFC1951) then return the number of bytes written. */
@@ -19,13 +19,25 @@ import java.awt.Color;
 import java.awt.Polygon;
 import java.awt.Shape;
 import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
 
 /** Graphical convenience methods for producing PDF files.
  *
  * <p> This implementation explicitly generates a very simple 8.5 inch by 11 inch one-page PDF consisting of graphical operations.
  * Hopefully this class will no longer be needed in the future once Java comes with better PDF support.
+ *
+ * <p> The page content is compressed and written to the file as it is being generated, so the memory needed
+ * does not grow with the size of the drawing; if writing to the file fails, the error is reported by close().
  */
 
 public final strictfp class OurPDFWriter {
@@ -45,23 +57,96 @@ public final strictfp class OurPDFWriter {
    /** Latest line style (0=normal, 1=bold, 2=dotted, 3=dashed) */
    private int line = 0;
 
-   /** The buffer that will store the list of graphical operations issued so far (null if close() has been called successfully) */
+   /** The translation requested by shiftCoordinateSpace() that has not been written out yet
+    * (we delay it until something is drawn, so that consecutive shifts cost only one operation, and shifts that cancel out cost nothing)
+    */
+   private int shiftX = 0, shiftY = 0;
+
+   /** The buffer that stores the graphical operations that have not been compressed yet (null if close() has been called) */
    private ByteBuffer buf = new ByteBuffer();
 
+   /** Once the buffer holds at least this many bytes, we compress it and write it to the file. */
+   private static final int FLUSH = 65536;
+
+   /** The compressor for the page content. */
+   private final Deflater zip = new Deflater(Deflater.BEST_COMPRESSION);
+
+   /** The output file. */
+   private final OutputStream out;
+
+   /** The number of bytes written to the output file so far. */
+   private long now = 0;
+
+   /** The number of compressed bytes of page content written to the output file so far. */
+   private long contentLength = 0;
+
+   /** The offset of each object written so far (offset[i] is the offset of object #i; offset[0] is unused). */
+   private final List<Long> offset = new ArrayList<Long>();
+
+   /** The first error encountered while writing to the output file (or null if there has been no error). */
+   private IOException error = null;
+
+   /** The name of the form that stores each reusable shape. */
+   private final Map<Object,String> forms = new HashMap<Object,String>();
+
+   /** The compressed content of each form (in the order they were created; the first form is object #7). */
+   private final List<byte[]> formContent = new ArrayList<byte[]>();
+
+   /** The bounding box of each form (in the order they were created). */
+   private final List<Rectangle2D> formBox = new ArrayList<Rectangle2D>();
+
    /** Begin a blank PDF file with the given dots-per-inch and the given scale (the given file, if existed, will be overwritten)
     * @throws IllegalArgumentException if dpi is less than 50 or is greater than 3000
+    * @throws IOException if the file cannot be opened for writing
     */
-   public OurPDFWriter(String filename, int dpi, double scale) {
+   public OurPDFWriter(String filename, int dpi, double scale) throws IOException {
       if (dpi<50 || dpi>3000) throw new IllegalArgumentException("The DPI must be between 50 and 3000");
       this.filename = filename;
       width = dpi*8L + (dpi/2L); // "8.5 inches"
       height = dpi*11L;          // "11 inches"
+      out = new BufferedOutputStream(new FileOutputStream(filename));
+      try {
+         // Write %PDF-1.3, followed by a non-ASCII comment to force the PDF into binary mode
+         byte[] head = new byte[]{'%', 'P', 'D', 'F', '-', '1', '.', '3', 10, '%', -127, 10, 10};
+         out.write(head);
+         now = head.length;
+         offset.add(0L);
+         // Font
+         offset.add(now);
+         out("1 0 obj << /Type /Font /Subtype /Type1 /BaseFont /Helvetica /Encoding /WinAnsiEncoding >> endobj\n\n");
+         // Content (its length will be stored in object #6 once we know it)
+         offset.add(now);
+         out("2 0 obj << /Length 6 0 R /Filter /FlateDecode >> stream\r\n");
+      } catch(IOException ex) {
+         Util.close(out);
+         zip.end();
+         throw ex;
+      }
       // Write the default settings, and flip (0, 0) into the top-left corner of the page, scale the page, then leave 0.5" margin
       buf.write("q\n" + "1 J\n" + "1 j\n" + "[] 0 d\n" + "1 w\n" + "1 0 0 -1 0 ").writes(height).write("cm\n");
       buf.writes(scale).write("0 0 ").writes(scale).writes(dpi/2.0).writes(dpi/2.0).write("cm\n");
       buf.write("1 0 0 1 ").writes(dpi/2.0).writes(dpi/2.0).write("cm\n");
    }
 
+   /** Helper method that writes the given String to the output file. */
+   private void out(String string) throws IOException {
+      byte[] array = string.getBytes("UTF-8");
+      out.write(array);
+      now += array.length;
+   }
+
+   /** If enough graphical operations have accumulated, compress them and write them to the output file. */
+   private void flush() {
+      if (buf.size()<FLUSH) return;
+      if (error!=null) { buf.clear(); return; } // the file is lost anyway, so there is no point accumulating more
+      try { long count = buf.deflate(zip, out, false); contentLength += count; now += count; } catch(IOException ex) { error = ex; buf.clear(); }
+   }
+
+   /** Writes out the translation requested by shiftCoordinateSpace() (if any), since we are about to draw something. */
+   private void shift() {
+      if (shiftX!=0 || shiftY!=0) { buf.write("1 0 0 1 ").writes(shiftX).writes(shiftY).write("cm\n"); shiftX=0; shiftY=0; }
+   }
+
    /** Changes the color for subsequent graphical drawing. */
    public OurPDFWriter setColor(Color color) {
       int rgb = color.getRGB() & 0xFFFFFF, r = (rgb>>16), g = (rgb>>8) & 0xFF, b = (rgb & 0xFF);
@@ -84,26 +169,65 @@ public final strictfp class OurPDFWriter {
    public OurPDFWriter setDashedLine()  { if (line!=3) buf.write("1 w [6 3] 0 d\n"); line=3; return this; }
 
    /** Shifts the coordinate space by the given amount. */
-   public OurPDFWriter shiftCoordinateSpace(int x, int y)  { buf.write("1 0 0 1 ").writes(x).writes(y).write("cm\n"); return this; }
+   public OurPDFWriter shiftCoordinateSpace(int x, int y)  { shiftX += x; shiftY += y; return this; }
 
    /** Draws a line from (x1, y1) to (x2, y2). */
    public OurPDFWriter drawLine(int x1, int y1, int x2, int y2) {
-      buf.writes(x1).writes(y1).write("m ").writes(x2).writes(y2).write("l S\n"); return this;
+      shift();
+      buf.writes(x1).writes(y1).write("m ").writes(x2).writes(y2).write("l S\n");
+      flush();
+      return this;
    }
 
    /** Draws a circle of the given radius, centered at (0, 0). */
    public OurPDFWriter drawCircle(int radius, boolean fillOrNot) {
       double k = (0.55238 * radius); // Approximate a circle using 4 cubic bezier curves
+      shift();
       buf.writes( radius).write("0 m ");
       buf.writes( radius).writes(      k).writes(      k).writes( radius).write("0 ")    .writes( radius).write("c ");
       buf.writes(     -k).writes( radius).writes(-radius).writes(      k).writes(-radius).write("0 c ");
       buf.writes(-radius).writes(     -k).writes(     -k).writes(-radius).write("0 ")    .writes(-radius).write("c ");
       buf.writes(      k).writes(-radius).writes( radius).writes(     -k).writes(radius) .write(fillOrNot ? "0 c f\n" : "0 c S\n");
+      flush();
       return this;
    }
 
    /** Draws a shape. */
    public OurPDFWriter drawShape(Shape shape, boolean fillOrNot) {
+      shift();
+      path(buf, shape);
+      buf.write(fillOrNot ? "f\n" : "S\n");
+      flush();
+      return this;
+   }
+
+   /** Fills a shape that is likely to be drawn many times (for example, one letter of a label), shifted by (x, y).
+    * <p> Shapes given with equal keys must be identical; the outline is written to the file only once
+    * (as a form that inherits the current fill color), and every later call merely refers to it.
+    */
+   public OurPDFWriter fillReusableShape(Object key, Shape shape, double x, double y) {
+      String name = forms.get(key);
+      if (name == null) {
+         Rectangle2D box = shape.getBounds2D();
+         if (box.isEmpty()) return this; // nothing to draw (for example, a space character)
+         ByteBuffer form = new ByteBuffer();
+         path(form, shape);
+         form.write("f\n");
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         Deflater formZip = new Deflater(Deflater.BEST_COMPRESSION);
+         try { form.deflate(formZip, bytes, true); } catch(IOException ex) { return this; } finally { formZip.end(); } // exception not possible
+         name = "G" + (7 + formContent.size());
+         forms.put(key, name);
+         formContent.add(bytes.toByteArray());
+         formBox.add(box);
+      }
+      buf.write("q 1 0 0 1 ").writes(x + shiftX).writes(y + shiftY).write("cm /").write(name).write(" Do Q\n");
+      flush();
+      return this;
+   }
+
+   /** Helper method that writes the path operations that describe the given shape into the given buffer. */
+   private static void path(ByteBuffer buf, Shape shape) {
       if (shape instanceof Polygon) {
          Polygon obj = (Polygon)shape;
          for(int i = 0; i < obj.npoints; i++) buf.writes(obj.xpoints[i]).writes(obj.ypoints[i]).write(i==0 ? "m\n" : "l\n");
@@ -127,8 +251,6 @@ public final strictfp class OurPDFWriter {
                buf.writes(px).writes(py).writes(qx).writes(qy).writes(nowX).writes(nowY).write("c\n"); break;
          }
       }
-      buf.write(fillOrNot ? "f\n" : "S\n");
-      return this;
    }
 
    /*  PDF File Structure Summary:
@@ -136,17 +258,33 @@ public final strictfp class OurPDFWriter {
     *
     *  File should ideally start with the following 13 bytes:  "%PDF-1.3" 10 "%" -127 10 10
     *  Now comes one or more objects.
-    *  One simple single-page arrangement is to have exactly 5 objects in this order: FONT, CONTENT, PAGE, PAGES, and CATALOG.
+    *  One simple single-page arrangement is to have 6 objects in this order: FONT, CONTENT, LENGTH, PAGE, PAGES, and CATALOG,
+    *  optionally followed by one FORM object for each reusable shape.
     *
     *  Font Object (1 because FONT is #1)
     *  ==================================
     *
     *  1 0 obj << /Type /Font /Subtype /Type1 /BaseFont /Helvetica /Encoding /WinAnsiEncoding >> endobj\n\n
     *
-    *  Content Object (2 because CONTENT is #2) (${LEN} is the number of bytes in ${CONTENT} when compressed)
-    *  ======================================================================================================
+    *  Content Object (2 because CONTENT is #2) (6 because LENGTH is #6)
+    *  =================================================================
+    *
+    *  2 0 obj << /Length 6 0 R /Filter /FlateDecode >> stream\r\n${CONTENT}endstream endobj\n\n
+    *
+    *  Length Object (6 because LENGTH is #6) (${LEN} is the number of bytes in ${CONTENT} when compressed)
+    *  ====================================================================================================
+    *
+    *  6 0 obj ${LEN} endobj\n\n
     *
-    *  2 0 obj << /Length ${LEN} /Filter /FlateDecode >> stream\r\n${CONTENT}endstream endobj\n\n
+    *  (Since the length is stored in its own object, we can compress and write out the content while it is being generated,
+    *  and only write down how long it turned out to be afterwards.)
+    *
+    *  Form Object (7 because it is the first form) (${BBOX} is the bounding box of the shape)
+    *  =======================================================================================
+    *
+    *  7 0 obj << /Type /XObject /Subtype /Form /BBox [${BBOX}] /Length ${LEN} /Filter /FlateDecode >> stream\r\n${CONTENT}endstream endobj\n\n
+    *
+    *  (A form is drawn by "/G7 Do", and it inherits the current colors, so one form can be drawn many times in different colors.)
     *
     *  Here is a quick summary of various PDF Graphics operations
     *  ==========================================================
@@ -173,8 +311,9 @@ public final strictfp class OurPDFWriter {
     *  $R $G $B RG             --> sets the stroke color (where 0 <= $R <= 1, etc)
     *  $R $G $B rg             --> sets the fill   color (where 0 <= $R <= 1, etc)
     *  Q                       --> restores the current graphics state
+    *  /$NAME Do               --> draws the form whose name is $NAME in the current resource dictionary
     *
-    *  Page Object (3 because PAGE is #3) (4 beacuse PAGES is #4) (2 because CONTENTS is #2)
+    *  Page Object (3 because PAGE is #3) (4 because PAGES is #4) (2 because CONTENTS is #2)
     *  =====================================================================================
     *
     *  3 0 obj << /Type /Page /Parent 4 0 R /Contents 2 0 R >> endobj\n\n
@@ -182,27 +321,29 @@ public final strictfp class OurPDFWriter {
     *  Pages Object (4 because PAGES is #4) (3 because PAGE is #3) (${W} is 8.5*DPI, ${H} is 11*DPI) (1 because FONT is #1)
     *  ====================================================================================================================
     *
-    *  4 0 obj << /Type /Pages /Count 1 /Kids [3 0 R] /MediaBox [0 0 ${W} ${H}] /Resources << /Font << /F1 1 0 R >> >> >> endobj\n\n
+    *  4 0 obj << /Type /Pages /Count 1 /Kids [3 0 R] /MediaBox [0 0 ${W} ${H}]
+    *     /Resources << /Font << /F1 1 0 R >> /XObject << /G7 7 0 R ... >> >> >> endobj\n\n
     *
     *  Catalog Object (5 because CATALOG is #5) (4 because PAGES is #4)
     *  ================================================================
     *
     *  5 0 obj << /Type /Catalog /Pages 4 0 R >> endobj\n\n
     *
-    *  END_OF_FILE format (assuming we have obj1 obj2 obj3 obj4 obj5 where obj5 is the "PDF Catalog")
+    *  END_OF_FILE format (assuming we have obj1 obj2 obj3 obj4 obj5 obj6 where obj5 is the "PDF Catalog")
     *  ==============================================================================================
     *
     *  xref\n
-    *  0 6\n                   // 6 is because it's the number of objects plus 1
+    *  0 7\n                   // 7 is because it's the number of objects plus 1
     *  0000000000 65535 f\r\n
     *  ${offset1} 00000 n\r\n  // ${offset1} is byte offset of start of obj1, left-padded-with-zero until you get exactly 10 digits
     *  ${offset2} 00000 n\r\n  // ${offset2} is byte offset of start of obj2, left-padded-with-zero until you get exactly 10 digits
     *  ${offset3} 00000 n\r\n  // ${offset3} is byte offset of start of obj3, left-padded-with-zero until you get exactly 10 digits
     *  ${offset4} 00000 n\r\n  // ${offset4} is byte offset of start of obj4, left-padded-with-zero until you get exactly 10 digits
     *  ${offset5} 00000 n\r\n  // ${offset5} is byte offset of start of obj5, left-padded-with-zero until you get exactly 10 digits
+    *  ${offset6} 00000 n\r\n  // ${offset6} is byte offset of start of obj6, left-padded-with-zero until you get exactly 10 digits
     *  trailer\n
     *  <<\n
-    *  /Size 6\n               // 6 is because it's the number of objects plus 1
+    *  /Size 7\n               // 7 is because it's the number of objects plus 1
     *  /Root 5 0 R\n           // 5 is because it's the Catalog Object's object ID
     *  >>\n
     *  startxref\n
@@ -210,68 +351,68 @@ public final strictfp class OurPDFWriter {
     *  %%EOF\n
     */
 
-   /** Helper method that writes the given String to the output file, then return the number of bytes written. */
-   private static int out(RandomAccessFile file, String string) throws IOException {
-      byte[] array = string.getBytes("UTF-8");
-      file.write(array);
-      return array.length;
-   }
-
    /** Close and save this PDF object. */
    public void close() throws IOException {
       if (buf == null) return; // already closed
-      final boolean compressOrNot = true;
-      RandomAccessFile out = null;
       try {
-         String space = "                    "; // reserve 20 bytes for the file size, which is far far more than enough
-         final long fontID = 1, contentID = 2, pageID = 3, pagesID = 4, catalogID = 5, offset[] = new long[6];
-         // Write %PDF-1.3, followed by a non-ASCII comment to force the PDF into binary mode
-         out = new RandomAccessFile(filename, "rw");
-         out.setLength(0);
-         byte[] head = new byte[]{'%', 'P', 'D', 'F', '-', '1', '.', '3', 10, '%', -127, 10, 10};
-         out.write(head);
-         long now = head.length;
-         // Font
-         offset[1] = now;
-         now += out(out, fontID + " 0 obj << /Type /Font /Subtype /Type1 /BaseFont"
-               + " /Helvetica /Encoding /WinAnsiEncoding >> endobj\n\n");
-         // Content
-         offset[2] = now;
-         now += out(out, contentID + " 0 obj << /Length " + space
-               + (compressOrNot ? " /Filter /FlateDecode" : "") + " >> stream\r\n");
+         if (error != null) throw error;
+         // Finish the content
          buf.write("Q\n");
-         final long ct = compressOrNot ? buf.dumpFlate(out) : buf.dump(out);
-         now += ct + out(out, "endstream endobj\n\n");
+         long count = buf.deflate(zip, out, true);
+         contentLength += count;
+         now += count;
+         out("endstream endobj\n\n");
          // Page
-         offset[3] = now;
-         now += out(out, pageID + " 0 obj << /Type /Page /Parent " + pagesID + " 0 R /Contents " + contentID + " 0 R >> endobj\n\n");
+         offset.add(now);
+         out("3 0 obj << /Type /Page /Parent 4 0 R /Contents 2 0 R >> endobj\n\n");
          // Pages
-         offset[4] = now;
-         now += out(out, pagesID + " 0 obj << /Type /Pages /Count 1 /Kids [" + pageID + " 0 R] /MediaBox [0 0 "
-               + width + " " + height + "] /Resources << /Font << /F1 " + fontID + " 0 R >> >> >> endobj\n\n");
+         StringBuilder xobjects = new StringBuilder();
+         for(int i = 0; i < formContent.size(); i++) xobjects.append(" /G" + (7+i) + " " + (7+i) + " 0 R");
+         offset.add(now);
+         out("4 0 obj << /Type /Pages /Count 1 /Kids [3 0 R] /MediaBox [0 0 " + width + " " + height + "] /Resources << /Font << /F1 1 0 R >>"
+            + (xobjects.length()>0 ? " /XObject <<" + xobjects + " >>" : "") + " >> >> endobj\n\n");
          // Catalog
-         offset[5] = now;
-         now += out(out, catalogID + " 0 obj << /Type /Catalog /Pages " + pagesID + " 0 R >> endobj\n\n");
+         offset.add(now);
+         out("5 0 obj << /Type /Catalog /Pages 4 0 R >> endobj\n\n");
+         // Length of the content
+         offset.add(now);
+         out("6 0 obj " + contentLength + " endobj\n\n");
+         // Forms
+         for(int i = 0; i < formContent.size(); i++) {
+            Rectangle2D box = formBox.get(i);
+            offset.add(now);
+            out((7+i) + " 0 obj << /Type /XObject /Subtype /Form /BBox [" + bbox(box) + "] /Length " + formContent.get(i).length
+               + " /Filter /FlateDecode >> stream\r\n");
+            out.write(formContent.get(i));
+            now += formContent.get(i).length;
+            out("endstream endobj\n\n");
+         }
          // Xref
-         String xr = "xref\n" + "0 " + offset.length + "\n";
-         for(int i = 0; i < offset.length; i++) {
-            String txt = Long.toString(offset[i]);
+         StringBuilder xr = new StringBuilder("xref\n" + "0 " + offset.size() + "\n");
+         for(int i = 0; i < offset.size(); i++) {
+            String txt = Long.toString(offset.get(i));
             while(txt.length() < 10) txt = "0" + txt; // must be exactly 10 characters long
-            if (i==0) xr = xr + txt + " 65535 f\r\n"; else xr = xr + txt + " 00000 n\r\n";
+            if (i==0) xr.append(txt).append(" 65535 f\r\n"); else xr.append(txt).append(" 00000 n\r\n");
          }
          // Trailer
-         xr = xr + "trailer\n<<\n/Size " + offset.length + "\n/Root " + catalogID + " 0 R\n>>\n" + "startxref\n" + now + "\n%%EOF\n";
-         out(out, xr);
-         out.seek(offset[2]);
-         out(out, contentID + " 0 obj << /Length " + ct); // move the file pointer back so we can write out the real Content Size
+         xr.append("trailer\n<<\n/Size " + offset.size() + "\n/Root 5 0 R\n>>\n" + "startxref\n" + now + "\n%%EOF\n");
+         out(xr.toString());
          out.close();
-         buf = null; // only set buf to null if the file was saved successfully and no exception was thrown
       } catch(Throwable ex) {
          Util.close(out);
          if (ex instanceof IOException) throw (IOException)ex;
          if (ex instanceof OutOfMemoryError) throw new IOException("Out of memory trying to save the PDF file to " + filename);
          if (ex instanceof StackOverflowError) throw new IOException("Out of memory trying to save the PDF file to " + filename);
          throw new IOException("Error writing the PDF file to " + filename + " (" + ex + ")");
+      } finally {
+         buf = null; // since the content was streamed out as it was generated, a failed close() cannot be retried
+         zip.end();
       }
    }
+
+   /** Helper method that returns the given bounding box as 4 integers (rounded outward) separated by spaces. */
+   private static String bbox(Rectangle2D box) {
+      return ((long)StrictMath.floor(box.getMinX())) + " " + ((long)StrictMath.floor(box.getMinY())) + " "
+         + ((long)StrictMath.ceil(box.getMaxX())) + " " + ((long)StrictMath.ceil(box.getMaxY()));
+   }
 }
@@ -15,10 +15,26 @@
 
 package edu.mit.csail.sdg.alloy4;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import javax.imageio.ImageIO;
 
 /** Graphical convenience methods for producing PNG files. */
@@ -41,6 +57,119 @@ public final strictfp class OurPNGWriter {
       }
    }
 
+   /** This defines a paint() method that draws one horizontal strip of a picture. */
+   public interface Painter {
+      /** Draws the rows y..y+height-1 of the picture onto the given graphics object
+       * (whose origin is already moved to the top-left corner of the picture, and whose strip is already painted white).
+       * <p> This method may be called by several threads at the same time, each with its own graphics object and its own strip.
+       * @throws Exception if an error occurred during the drawing.
+       */
+      public void paint (Graphics2D gr, int y, int height) throws Exception;
+   }
+
+   /** The number of pixels in each strip (so each strip takes about 4MB as an image, plus about 3MB as scanlines). */
+   private static final int STRIP = 1<<20;
+
+   /** Draws a picture of the given size one horizontal strip at a time, and writes it as a PNG file with the given horizontal and vertical dots-per-inch.
+    * <p> The strips are drawn and compressed by several threads at the same time, and are written out as soon as they are ready;
+    * so the whole picture is never in memory at once, no matter how large it is.
+    */
+   public static void writePNG (Painter painter, int width, int height, String filename, double dpiX, double dpiY) throws IOException {
+      if (width<1 || height<1) throw new IOException("The PNG image must be at least 1 pixel wide and 1 pixel high.");
+      final int rows = Math.max(1, Math.min(height, STRIP/width)), strips = (height-1)/rows + 1;
+      final int threads = Math.max(1, Math.min(strips, Runtime.getRuntime().availableProcessors()));
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      DataOutputStream out = null;
+      boolean opened = false, ok = false;
+      try {
+         out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+         opened = true;
+         out.write(new byte[] {(byte)137, 80, 78, 71, 13, 10, 26, 10});
+         // 8-bit RGB, deflate compression, standard filtering, no interlace
+         writeChunk(out, new int[] {'I', 'H', 'D', 'R', width>>>24, width>>>16, width>>>8, width, height>>>24, height>>>16, height>>>8, height, 8, 2, 0, 0, 0});
+         writeDPI(out, dpiX, dpiY);
+         // The IDAT chunks together make up one zlib stream: a 2-byte header, the strips (each ending on a byte boundary), then the Adler-32 checksum
+         writeChunk(out, new int[] {'I', 'D', 'A', 'T', 0x78, 0x9C});
+         Adler32 adler = new Adler32();
+         LinkedList<Future<byte[][]>> pending = new LinkedList<Future<byte[][]>>();
+         for(int y=0; y<height || pending.size()>0;) {
+            // Keep one strip queued behind each busy thread, so the threads never wait for the writer
+            while(y<height && pending.size()<=threads) { pending.add(pool.submit(strip(painter, width, y, Math.min(rows, height-y), y+rows>=height))); y=y+rows; }
+            byte[][] strip = pending.removeFirst().get();
+            adler.update(strip[0]);
+            writeChunk(out, "IDAT", strip[1]);
+         }
+         int sum = (int) (adler.getValue());
+         writeChunk(out, new int[] {'I', 'D', 'A', 'T', sum>>>24, sum>>>16, sum>>>8, sum});
+         writeChunk(out, new int[] {'I', 'E', 'N', 'D'});
+         out.close();
+         out = null;
+         ok = true;
+      } catch(Throwable ex) {
+         if (ex instanceof ExecutionException && ex.getCause()!=null) ex = ex.getCause();
+         if (ex instanceof IOException) throw (IOException)ex;
+         if (ex instanceof StackOverflowError) throw new IOException("Out of memory trying to save the PNG file to " + filename);
+         if (ex instanceof OutOfMemoryError) throw new IOException("Out of memory trying to save the PNG file to " + filename);
+         throw new IOException("Error writing the PNG file to " + filename + " (" + ex + ")");
+      } finally {
+         pool.shutdownNow();
+         Util.close(out);
+         if (opened && !ok) new File(filename).delete(); // so that we do not leave a truncated file behind
+      }
+   }
+
+   /** Returns a task that draws the given strip, then returns its scanlines and their compressed form.
+    * <p> Unless this is the last strip, the compressed form ends with a sync flush (rather than an end-of-stream marker)
+    * so that it can be followed directly by the next strip.
+    */
+   private static Callable<byte[][]> strip (final Painter painter, final int width, final int y, final int height, final boolean last) {
+      return new Callable<byte[][]>() {
+         public byte[][] call() throws Exception {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D gr = image.createGraphics();
+            try {
+               gr.setColor(Color.WHITE);
+               gr.fillRect(0, 0, width, height);
+               gr.setColor(Color.BLACK);
+               gr.translate(0, -y);
+               painter.paint(gr, y, height);
+            } finally {
+               gr.dispose();
+            }
+            byte[] raw = scanlines(((DataBufferInt) (image.getRaster().getDataBuffer())).getData(), width, height);
+            image = null; // Let the image be garbage collected while we compress
+            Deflater zip = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+               ByteArrayOutputStream ans = new ByteArrayOutputStream(raw.length/8 + 64);
+               byte[] buf = new byte[65536];
+               zip.setInput(raw);
+               if (last) {
+                  zip.finish();
+                  while(!zip.finished()) { int n = zip.deflate(buf); ans.write(buf, 0, n); }
+               } else {
+                  for(int n=buf.length; n==buf.length;) { n = zip.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH); ans.write(buf, 0, n); }
+               }
+               return new byte[][] {raw, ans.toByteArray()};
+            } finally {
+               zip.end();
+            }
+         }
+      };
+   }
+
+   /** Returns the PNG scanlines (each one a filter-type byte followed by the RGB bytes) for the given pixels.
+    * <p> We always use filter type 0 (None): for line drawings on a white background, the long runs of identical bytes
+    * compress better unfiltered than with any of the predictive filters, and it also keeps every strip independent of the one above it.
+    */
+   private static byte[] scanlines (int[] pixels, int width, int height) {
+      byte[] ans = new byte[(width*3+1)*height];
+      for(int r=0, j=0, k=0; r<height; r++) {
+         ans[k++] = 0;
+         for(int i=0; i<width; i++, j++) { int p=pixels[j]; ans[k]=(byte)(p>>>16); ans[k+1]=(byte)(p>>>8); ans[k+2]=(byte)p; k=k+3; }
+      }
+      return ans;
+   }
+
    /* PNG consists of a "8 byte header" followed by one or more CHUNK...
     *
     * Each CHUNK:
@@ -99,13 +228,13 @@ public final strictfp class OurPNGWriter {
    }
 
    /** Write a "pHYs" chunk into the given file with the given horizontal and vertical dots-per-inch. */
-   private static void writeDPI (RandomAccessFile file, double dpiX, double dpiY) throws IOException {
+   private static void writeDPI (DataOutput file, double dpiX, double dpiY) throws IOException {
       int x = (int) (dpiX/0.0254), y = (int) (dpiY/0.0254); // Translate dots-per-inch into dots-per-meter
       writeChunk(file, new int[] {'p', 'H', 'Y', 's', x>>>24, x>>>16, x>>>8, x, y>>>24, y>>>16, y>>>8, y, 1});
    }
 
    /** Write the given chunk into the given file;  Note: data.length must be at least 4. */
-   private static void writeChunk (RandomAccessFile file, int[] data) throws IOException {
+   private static void writeChunk (DataOutput file, int[] data) throws IOException {
       int crc = (-1), len = data.length - 4;
       file.write((len>>>24) & 255); file.write((len>>>16) & 255); file.write((len>>>8) & 255); file.write(len & 255);
       for(int i=0; i<data.length; i++) { int x = data[i]; crc = table[(crc ^ x) & 255] ^ (crc >>> 8); file.write(x & 255); }
@@ -113,6 +242,16 @@ public final strictfp class OurPNGWriter {
       file.write((crc>>>24) & 255); file.write((crc>>>16) & 255); file.write((crc>>>8) & 255); file.write(crc & 255);
    }
 
+   /** Write the given chunk into the given file. */
+   private static void writeChunk (DataOutput file, String type, byte[] data) throws IOException {
+      int crc = (-1);
+      file.writeInt(data.length);
+      for(int i=0; i<4; i++) { int x = type.charAt(i); crc = table[(crc ^ x) & 255] ^ (crc >>> 8); file.write(x); }
+      for(int i=0; i<data.length; i++) crc = table[(crc ^ data[i]) & 255] ^ (crc >>> 8);
+      file.write(data);
+      file.writeInt(crc ^ (-1));
+   }
+
    /** This precomputed table makes it faster to calculate CRC; this is based on the suggestion in the PNG specification. */
    private static final int[] table = new int[] {
       0,1996959894,-301047508,-1727442502,124634137,1886057615,-379345611,-1637575261,249268274
@@ -0,0 +1,190 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4;
+
+import java.awt.Color;
+import java.awt.Shape;
+import java.awt.geom.PathIterator;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Graphical convenience methods for producing SVG files.
+ *
+ * <p> This offers the same drawing operations as OurPDFWriter, so that a drawing can be saved in either format;
+ * the line widths and dash patterns match the ones used when drawing on the screen.
+ *
+ * <p> The drawing is written to the file as it is being generated; if writing to the file fails, the error is reported by close().
+ */
+
+public final strictfp class OurSVGWriter {
+
+   /** The filename. */
+   private final String filename;
+
+   /** The output file (or null if this writer has been closed). */
+   private Writer out;
+
+   /** If nonnull, it is the first error that occurred while writing to the file. */
+   private IOException error = null;
+
+   /** The current color (as a "#rrggbb" string). */
+   private String color = "#000000";
+
+   /** The attributes describing the current line style. */
+   private String line = "";
+
+   /** The pending translation requested by shiftCoordinateSpace() (which is added to every coordinate written out). */
+   private int shiftX = 0, shiftY = 0;
+
+   /** This maps each reusable shape's key to the id of its definition. */
+   private final Map<Object,String> defs = new HashMap<Object,String>();
+
+   /** Begin writing an SVG drawing of the given size (in pixels) into the given file,
+    * where every coordinate given to this writer is magnified by the given scale.
+    * @throws IOException if the file cannot be opened for writing
+    */
+   public OurSVGWriter(String filename, int width, int height, double scale) throws IOException {
+      this.filename = filename;
+      out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), "UTF-8"));
+      out("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+         + "<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" version=\"1.1\""
+         + " width=\"" + width + "\" height=\"" + height + "\" viewBox=\"0 0 " + width + " " + height + "\">\n"
+         + "<rect width=\"" + width + "\" height=\"" + height + "\" fill=\"#ffffff\"/>\n"
+         + "<g transform=\"scale(" + num(scale) + ")\" stroke-linecap=\"round\" stroke-linejoin=\"round\">\n");
+      if (error != null) { Util.close(out); out = null; throw error; }
+      setNormalLine();
+   }
+
+   /** Helper method that writes the given String to the output file (remembering the first error, which close() will report). */
+   private void out(String string) {
+      if (error == null) try { out.write(string); } catch(IOException ex) { error = ex; }
+   }
+
+   /** Helper method that returns the given number with at most 2 digits after the decimal point. */
+   private static String num(double x) {
+      if (Double.isNaN(x) || Double.isInfinite(x)) return "0";
+      long n = StrictMath.round(x * 100);
+      String sign = (n<0 ? "-" : "");
+      if (n<0) n = -n;
+      if (n%100 == 0) return sign + (n/100);
+      if (n%10 == 0) return sign + (n/100) + "." + ((n/10)%10);
+      return sign + (n/100) + "." + ((n/10)%10) + (n%10);
+   }
+
+   /** Changes the color for subsequent graphical drawing. */
+   public OurSVGWriter setColor(Color color) {
+      String hex = Integer.toHexString((color.getRGB() & 0xFFFFFF) | 0x1000000);
+      this.color = "#" + hex.substring(1);
+      return this;
+   }
+
+   /** Changes the line style to be normal. */
+   public OurSVGWriter setNormalLine()  { line = " stroke-width=\"1.3\""; return this; }
+
+   /** Changes the line style to be bold. */
+   public OurSVGWriter setBoldLine()  { line = " stroke-width=\"2.6\""; return this; }
+
+   /** Changes the line style to be dotted. */
+   public OurSVGWriter setDottedLine()  { line = " stroke-width=\"1.3\" stroke-dasharray=\"1 3\""; return this; }
+
+   /** Changes the line style to be dashed. */
+   public OurSVGWriter setDashedLine()  { line = " stroke-width=\"1.3\" stroke-dasharray=\"6 3\" stroke-dashoffset=\"5\""; return this; }
+
+   /** Shifts the coordinate space by the given amount. */
+   public OurSVGWriter shiftCoordinateSpace(int x, int y)  { shiftX += x; shiftY += y; return this; }
+
+   /** Helper method that returns the attributes for painting with the current color (either filling, or stroking with the current line style). */
+   private String paint(boolean fillOrNot) {
+      return fillOrNot ? (" fill=\"" + color + "\"/>\n") : (" fill=\"none\" stroke=\"" + color + "\"" + line + "/>\n");
+   }
+
+   /** Draws a line from (x1, y1) to (x2, y2). */
+   public OurSVGWriter drawLine(int x1, int y1, int x2, int y2) {
+      out("<path d=\"M" + (x1+shiftX) + " " + (y1+shiftY) + "L" + (x2+shiftX) + " " + (y2+shiftY) + "\"" + paint(false));
+      return this;
+   }
+
+   /** Draws a circle of the given radius, centered at (0, 0). */
+   public OurSVGWriter drawCircle(int radius, boolean fillOrNot) {
+      out("<circle cx=\"" + shiftX + "\" cy=\"" + shiftY + "\" r=\"" + radius + "\"" + paint(fillOrNot));
+      return this;
+   }
+
+   /** Draws a shape. */
+   public OurSVGWriter drawShape(Shape shape, boolean fillOrNot) {
+      out("<path d=\"" + path(shape, shiftX, shiftY) + "\"" + paint(fillOrNot));
+      return this;
+   }
+
+   /** Fills a shape that is likely to be drawn many times (for example, one letter of a label), shifted by (x, y).
+    * <p> Shapes given with equal keys must be identical; the outline is written to the file only once, and every later call merely refers to it.
+    */
+   public OurSVGWriter fillReusableShape(Object key, Shape shape, double x, double y) {
+      String id = defs.get(key);
+      if (id == null) {
+         if (shape.getBounds2D().isEmpty()) return this; // nothing to draw (for example, a space character)
+         id = "G" + (defs.size()+1);
+         defs.put(key, id);
+         out("<defs><path id=\"" + id + "\" d=\"" + path(shape, 0, 0) + "\"/></defs>\n");
+      }
+      out("<use xlink:href=\"#" + id + "\" x=\"" + num(x+shiftX) + "\" y=\"" + num(y+shiftY) + "\" fill=\"" + color + "\"/>\n");
+      return this;
+   }
+
+   /** Helper method that returns the path data that describes the given shape shifted by (dx, dy). */
+   private static String path(Shape shape, double dx, double dy) {
+      StringBuilder sb = new StringBuilder();
+      double pt[] = new double[6];
+      for(PathIterator it = shape.getPathIterator(null); !it.isDone(); it.next()) switch(it.currentSegment(pt)) {
+         case PathIterator.SEG_MOVETO:
+            sb.append('M').append(num(pt[0]+dx)).append(' ').append(num(pt[1]+dy)); break;
+         case PathIterator.SEG_LINETO:
+            sb.append('L').append(num(pt[0]+dx)).append(' ').append(num(pt[1]+dy)); break;
+         case PathIterator.SEG_QUADTO:
+            sb.append('Q').append(num(pt[0]+dx)).append(' ').append(num(pt[1]+dy))
+              .append(' ').append(num(pt[2]+dx)).append(' ').append(num(pt[3]+dy)); break;
+         case PathIterator.SEG_CUBICTO:
+            sb.append('C').append(num(pt[0]+dx)).append(' ').append(num(pt[1]+dy))
+              .append(' ').append(num(pt[2]+dx)).append(' ').append(num(pt[3]+dy))
+              .append(' ').append(num(pt[4]+dx)).append(' ').append(num(pt[5]+dy)); break;
+         case PathIterator.SEG_CLOSE:
+            sb.append('Z'); break;
+      }
+      return sb.toString();
+   }
+
+   /** Close and save this SVG object. */
+   public void close() throws IOException {
+      if (out == null) return; // already closed
+      try {
+         out("</g>\n</svg>\n");
+         if (error != null) throw error;
+         out.close();
+      } catch(Throwable ex) {
+         Util.close(out);
+         if (ex instanceof IOException) throw (IOException)ex;
+         if (ex instanceof OutOfMemoryError) throw new IOException("Out of memory trying to save the SVG file to " + filename);
+         throw new IOException("Error writing the SVG file to " + filename + " (" + ex + ")");
+      } finally {
+         out = null;
+      }
+   }
+}
@@ -98,7 +98,28 @@ public final class Pos implements Serializable {
       }
       if (x==this.x && y==this.y && x2==this.x2 && y2==this.y2) return this; // avoid creating unnecessary new object
       if (x==that.x && y==that.y && x2==that.x2 && y2==that.y2) return that; // avoid creating unnecessary new object
-      return new Pos(filename, x, y, x2, y2);
+      return make(filename, x, y, x2, y2);
+   }
+
+   /** A direct-mapped cache of recently made Pos objects, so that equal positions (which merge() produces a lot of,
+    * since every Expr node computes the span of its subexpressions) can share one object.
+    * <p> The cache is lossy and deliberately unsynchronized: since Pos is immutable, the worst a race can do is
+    * make a thread miss the cache and allocate a new Pos.
+    */
+   private static final Pos[] recent = new Pos[4096];
+
+   /** Returns a Pos equal to new Pos(filename, x, y, x2, y2), reusing a recently made one if possible. */
+   public static Pos make(String filename, int x, int y, int x2, int y2) {
+      if (filename==null) filename="";
+      if (x<1) x=1;
+      if (y<1) y=1;
+      if (y2<y) y2=y;
+      if (y2==y) { if (x2<x) x2=x; } else { if (x2<1) x2=1; }
+      int i = (filename.hashCode() + x*111 + y*171 + x2*1731 + y2*2117) * 0x9E3779B9;
+      i = (i >>> 20) & (recent.length-1);
+      Pos p = recent[i];
+      if (p!=null && p.x==x && p.y==y && p.x2==x2 && p.y2==y2 && (p.filename==filename || p.filename.equals(filename))) return p;
+      return recent[i] = new Pos(filename, x, y, x2, y2);
    }
 
    /** Returns true if neither argument is null nor UNKNOWN,
@@ -15,19 +15,24 @@
 
 package edu.mit.csail.sdg.alloy4;
 
+import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
+import java.io.Reader;
 import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -216,6 +221,58 @@ public final class Util {
       return convertLineBreak(ans);
    }
 
+   /** Open the file (or the resource in the JAR, if filename starts with Util.jarPrefix()) for reading one character at a time,
+    * without reading the whole file into memory.
+    * <p> The characters are decoded as UTF-8 (malformed input is replaced by U+FFFD),
+    * and line breaks and control characters are converted the same way as convertLineBreak().
+    * <p> Unlike readAll(), this does not fall back to the platform charset if the file is not valid UTF-8,
+    * since that decision can only be made after the whole file has been read.
+    */
+   public static Reader openReader(String filename) throws FileNotFoundException, IOException {
+      String JAR = jarPrefix();
+      InputStream fis;
+      if (filename.startsWith(JAR)) {
+         fis = Util.class.getClassLoader().getResourceAsStream(filename.substring(JAR.length()).replace('\\', '/'));
+         if (fis==null) throw new FileNotFoundException("File \""+filename+"\" cannot be found");
+      } else {
+         fis = new FileInputStream(filename);
+      }
+      CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+         .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+      return new LineBreakReader(new BufferedReader(new InputStreamReader(fis, decoder), 65536));
+   }
+
+   /** This filters a Reader the same way convertLineBreak() filters a String. */
+   private static final class LineBreakReader extends FilterReader {
+      /** True if the last character we returned was a '\r' that we converted into '\n'. */
+      private boolean afterCR = false;
+      /** Constructs a filter around the given reader. */
+      private LineBreakReader(Reader in) { super(in); }
+      /** Reads up to len characters into buf[off..]; returns the number of characters read, or -1 if we're at the end. */
+      @Override public int read(char[] buf, int off, int len) throws IOException {
+         while(true) {
+            int n = in.read(buf, off, len);
+            if (n <= 0) return n;
+            int j = off;
+            for(int i=off, end=off+n; i<end; i++) {
+               char c = buf[i];
+               if (c=='\n' && afterCR) { afterCR=false; continue; }
+               afterCR = (c=='\r');
+               if (c=='\r') c='\n'; else if (c<32 && c!='\t' && c!='\n') c=' ';
+               buf[j++] = c;
+            }
+            if (j > off) return j - off; // otherwise the whole chunk was a single '\n' after '\r', so we keep reading
+         }
+      }
+      /** Reads one character; returns -1 if we're at the end. */
+      @Override public int read() throws IOException {
+         char[] buf = new char[1];
+         return read(buf, 0, 1) < 0 ? -1 : buf[0];
+      }
+      /** This filter does not support mark/reset. */
+      @Override public boolean markSupported() { return false; }
+   }
+
    /** Open then overwrite the file with the given content; throws Err if an error occurred. */
    public static long writeAll(String filename, String content) throws Err {
       final FileOutputStream fos;
@@ -388,21 +445,31 @@ public final class Util {
     * @param str - the String to write out
     */
    public static void encodeXML(PrintWriter out, String str) {
-      int n=str.length();
+      // Each run of characters that need no encoding is written by a single call
+      int n=str.length(), start=0;
       for(int i=0; i<n; i++) {
-         char c=str.charAt(i);
-         if (c=='<') { out.write("&lt;"); continue; }
-         if (c=='>') { out.write("&gt;"); continue; }
-         if (c=='&') { out.write("&amp;"); continue; }
-         if (c=='\'') { out.write("&apos;"); continue; }
-         if (c=='\"') { out.write("&quot;"); continue; }
-         if (c>=32 && c<=126) { out.write(c); continue; }
-         out.write("&#x");
-         String v=Integer.toString(c, 16);
-         for(int j=v.length(); j<4; j++) out.write('0');
-         out.write(v);
-         out.write(';');
+         String x=xmlEntity(str.charAt(i));
+         if (x==null) continue;
+         if (start<i) out.write(str, start, i-start);
+         out.write(x);
+         start=i+1;
+      }
+      if (start<n) out.write(str, start, n-start);
+   }
+
+   /** Helper method that returns the XML encoding of the given character, or null if it can be written as-is. */
+   private static String xmlEntity(char c) {
+      if (c>='?' && c<='~') return null; // the most common case: none of the special characters are in this range
+      switch(c) {
+         case '<': return "&lt;";
+         case '>': return "&gt;";
+         case '&': return "&amp;";
+         case '\'': return "&apos;";
+         case '\"': return "&quot;";
       }
+      if (c>=32 && c<=126) return null;
+      String v=Integer.toString(c, 16);
+      return "&#x" + "0000".substring(v.length()) + v + ";";
    }
 
    /** Write a String into a StringBuilder, and encode special characters using XML-specific encoding.
@@ -417,20 +484,15 @@ public final class Util {
     * @param str - the String to write out
     */
    public static void encodeXML(StringBuilder out, String str) {
-      int n=str.length();
+      int n=str.length(), start=0;
       for(int i=0; i<n; i++) {
-         char c=str.charAt(i);
-         if (c=='<') { out.append("&lt;"); continue; }
-         if (c=='>') { out.append("&gt;"); continue; }
-         if (c=='&') { out.append("&amp;"); continue; }
-         if (c=='\'') { out.append("&apos;"); continue; }
-         if (c=='\"') { out.append("&quot;"); continue; }
-         if (c>=32 && c<=126) { out.append(c); continue; }
-         out.append("&#x");
-         String v=Integer.toString(c, 16);
-         for(int j=v.length(); j<4; j++) out.append('0');
-         out.append(v).append(';');
+         String x=xmlEntity(str.charAt(i));
+         if (x==null) continue;
+         if (start<i) out.append(str, start, i);
+         out.append(x);
+         start=i+1;
       }
+      if (start<n) out.append(str, start, n);
    }
 
    /** Encode special characters of a String using XML/HTML encoding.
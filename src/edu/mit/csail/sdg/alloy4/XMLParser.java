@@ -0,0 +1,451 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Mutable; this class parses an XML document one event at a time, so that a large document can be processed
+ * without first building a tree of XMLNode objects for the entire document (XMLNode uses this class to build such a tree).
+ *
+ * <p> Each call to next() returns one of these events:
+ * <br> START means the start tag of an element was read (getType() and getAttribute() describe the element)
+ * <br> END means the end tag of an element was read (an empty element such as &lt;a/&gt; yields a START followed by an END)
+ * <br> TEXT means some text data was read (getText() returns it); this is only returned if the parser was asked to read text data
+ * <br> EOF means the root element has ended, and nothing but comments and whitespace came after it.
+ *
+ * <p> This parser is based on XML Specification 1.0 taking into account XML Specification Errata up to 2008/Jan/18.
+ *
+ * <p><b>Thread Safety:</b> Can be called only by one thread at a time.
+ */
+
+public final class XMLParser {
+
+   /** The event returned by next() when the start tag of an element is read. */
+   public static final int START = 1;
+
+   /** The event returned by next() when the end tag of an element is read. */
+   public static final int END = 2;
+
+   /** The event returned by next() when text data is read. */
+   public static final int TEXT = 3;
+
+   /** The event returned by next() when the end of the document is reached. */
+   public static final int EOF = 0;
+
+   /** The reader for the input XML file. */
+   private final Reader reader;
+
+   /** The current x position in the file. */
+   private int x = 1;
+
+   /** The current y position in the file. */
+   private int y = 1;
+
+   /** The current "readahead" character; -2 if the readahead cache is empty; -1 if EOF is detected; otherwise it is one char. */
+   private int read = (-2);
+
+   /** The types of the elements that have started but not yet ended (the innermost one is last). */
+   private final List<String> stack = new ArrayList<String>();
+
+   /** The type of the element in the latest START or END event. */
+   private String type = "";
+
+   /** The text in the latest TEXT event. */
+   private String text = "";
+
+   /** The attribute names in the latest START event. */
+   private final List<String> keys = new ArrayList<String>();
+
+   /** The attribute values in the latest START event. */
+   private final List<String> values = new ArrayList<String>();
+
+   /** The text data read so far (or null if we do not want text data). */
+   private final StringBuilder sb;
+
+   /** True if we have read the start tag of the root element. */
+   private boolean started = false;
+
+   /** True if the latest START event is an empty element (so the next event will be its END event). */
+   private boolean empty = false;
+
+   /** True if the "less than" sign after the latest TEXT event has already been consumed. */
+   private boolean less = false;
+
+   /** Constructs a parser that reads from the given Reader (and reads text data only if wantText==true). */
+   public XMLParser(Reader reader, boolean wantText) {
+      this.sb = wantText ? new StringBuilder() : null;
+      if (reader instanceof BufferedReader) this.reader = reader; else this.reader = new BufferedReader(reader);
+   }
+
+   /** Constructs a parser that reads from the given UTF-8 file (but does not read text data).
+    * @throws IOException if the file cannot be opened
+    */
+   public XMLParser(File file) throws IOException {
+      FileInputStream fis = new FileInputStream(file);
+      Reader reader = null;
+      try {
+         reader = new InputStreamReader(fis, "UTF-8");
+      } finally {
+         if (reader==null) Util.close(fis);
+      }
+      this.sb = null;
+      this.reader = new BufferedReader(reader);
+   }
+
+   /** Close the underlying Reader. */
+   public void close() { Util.close(reader); }
+
+   /** Throws an IOException with the given msg, and associate with it the current line and column location. */
+   private void malform(String msg) throws IOException { throw new IOException("Error at line "+y+" column "+x+": "+msg); }
+
+   /** Read the next character.
+    * @throws IOException if end-of-file is reached.
+    * @throws IOException if an I/O error occurred.
+    */
+   private int read() throws IOException {
+      if (read<(-1)) read=reader.read();
+      if (read<0) { malform("Unexpected end of file."); } else if (read=='\n') { x=1; y++; } else { x++; }
+      int ans = read;
+      read = -2;
+      return ans;
+   }
+
+   /** Peek without consuming the next character, or return -1 if end-of-file is reached.
+    * @throws IOException if an I/O error occurred.
+    */
+   private int peek() throws IOException {
+      if (read<(-1)) read=reader.read();
+      return read;
+   }
+
+   /** Consume up to and including the consecutive characters "char1" and "char2".
+    * @throws IOException if we reached end-of-file without seeing the pattern.
+    * @throws IOException if an I/O error occurred.
+    */
+   private void skipUntil(int char1, int char2) throws IOException {
+      while(true) {
+         int ch = read();
+         if (ch==char1 && peek()==char2) { read=(-2); return; }
+      }
+   }
+
+   /** If the next N characters match the given string (where N == length of string), then consume them, else throw IOException.
+    * @throws IOException if the next N characters do not match the given string.
+    * @throws IOException if an I/O error occurred.
+    */
+   private void expect(String string) throws IOException {
+      int saveX=x, saveY=y;
+      for(int i=0; i<string.length(); i++) {
+         if (read()!=string.charAt(i)) { x=saveX; y=saveY; malform("Expects the string \""+string+"\""); }
+      }
+   }
+
+   /** Skip whitespace if any, then return the first non-whitespace character after that.
+    * @throws IOException if after skipping 0 or more white space character we reach end-of-file.
+    * @throws IOException if an I/O error occurred.
+    */
+   private int skipSpace() throws IOException {
+      while(true) {
+         int ch=read();
+         if (ch!=' ' && ch!='\t' && ch!='\r' && ch!='\n') return ch;
+      }
+   }
+
+   /*
+    * Taking the 79 grammar rules from XML specification, and after making conservative simplifications, we get these rules:
+    * ("conservative" in that well-formed XML documents parse correctly, but some malformed documents also parse successfully)
+    *
+    *    S                  ::=          (#x20 | #x9 | #xD | #xA)+
+    *    Name               ::=          ( [A-Za-z0-9_:.-] | [#xC0-#xEFFFF] )+
+    *    Nmtoken            ::=          ( [A-Za-z0-9_:.-] | [#xC0-#xEFFFF] )+
+    *    Reference          ::=          '&' Name ';'   |    '&#' [0-9]+ ';'   |   '&#x' [0-9a-fA-F]+ ';'
+    *    PEReference        ::=          '%' Name ';'
+    *    SystemLiteral      ::=                           '...'  |  "..."
+    *    PubidLiteral       ::=                           '...'  |  "..."
+    *    AttValue           ::=                           '...'  |  "..."
+    *    EntityValue        ::=                           '...'  |  "..."
+    *    DefaultDecl        ::=                        (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*
+    *    ExternalID         ::=                        (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*
+    *    PublicID           ::=                        (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*
+    *    NotationType       ::=                        (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*
+    *    Enumeration        ::=                        (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*
+    *    EnumeratedType     ::=                        (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*
+    *    AttType            ::=                        (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*
+    *    Mixed              ::=                        (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*
+    *    children           ::=                        (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*
+    *    contentspec        ::=                        (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*
+    *    PEDef              ::=                        (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*
+    *    NDataDecl          ::=                        (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*
+    *    EntityDef          ::=                        (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*
+    *    NotationDecl       ::=          '<!NOTATION'  (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*  '>'
+    *    AttlistDecl        ::=          '<!ATTLIST'   (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*  '>'
+    *    elementdecl        ::=          '<!ELEMENT'   (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*  '>'
+    *    EntityDecl         ::=          '<!ENTITY'    (  '...'  |  "..."  |  [%()|#*?+,]  |  Name  |  S  )*  '>'
+    *    PI                 ::=          '<?' ... '?>'
+    *    Comment            ::=          '<!--'  ([^-] | ('-' [^-])))*   '-->'
+    *    Misc               ::=          Comment | PI | S
+    *    doctypedecl        ::=          '<!DOCTYPE' S  Name (S  ExternalID)? S? ('[' intSubset ']' S?)? '>'
+    *    intSubset          ::=          (elementdecl | AttlistDecl | EntityDecl | NotationDecl | PI | Comment | PEReference | S)*
+    *
+    * SkipNondata(false) will skip zero or more instance of the below, and thus it will consume (Misc | doctypedecl)*
+    *   SPACE TAB CR LF
+    *   <?...?>
+    *   <!--...-->
+    *   '<!' followed by SkipNondata(true) followed by '>'
+    *
+    * SkipNondata(true) will skip zero or more instances of the below, and thus it will consume intSubset*
+    *   SPACE TAB CR LF
+    *   <?...?>
+    *   <!--...-->
+    *   '<!' followed by SkipNondata(true) followed by '>'
+    *   '['  followed by SkipNondata(true) followed by ']'
+    *   '...'
+    *   "..."
+    *   any char that is not '<' nor '>' nor '[' nor ']' nor ''' nor '"'
+    */
+
+   /** Skip as much nondata as possible, then return the first character after that (or -1 if we end up at end-of-file).
+    * <p> Specifically, skipNondata(false) consumes (Misc | doctypedecl)* from XML specification
+    * <p> Likewise,     skipNondata(true)  consumes (intSubset)*          from XML specification
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   private int skipNondata(boolean inner) throws IOException {
+      while(true) {
+         int ch = peek();
+         if (ch<0) return -1;
+         read = -2;
+         if (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n') continue;
+         if (ch == '<') {
+            ch = read();
+            if (ch == '?') { skipUntil('?', '>'); continue; }
+            if (ch != '!') { read = ch ; return '<'; }
+            if (peek() == '-') {
+               read = -2;
+               if (read()!='-') malform("Expects start of <!--...-->");
+               skipUntil('-', '-');
+               if (read()!='>') malform("Expects end of <!--...-->");
+               continue;
+            }
+            if (skipNondata(true)!='>') malform("Expects end of <!...>");
+         }
+         else if (!inner || ch == ']' || ch=='>') { return ch; }
+         else if (ch == '[') { if (skipNondata(true)!=']') malform("Expects end of [...]"); }
+         else if (ch == '\'' || ch == '\"') { while(read()!=ch) { } }
+      }
+   }
+
+   /** Parse an element name or attribute name.
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   private String parseName() throws IOException {
+      StringBuilder sb = new StringBuilder();
+      while(true) {
+         int ch = read();
+         if (ch==' ' || ch=='\t' || ch=='\r' || ch=='\n' || ch=='=' || ch=='/' || ch=='<' || ch=='>' || ch=='[' || ch==']') {
+            read=ch;
+            return sb.toString();
+         }
+         sb.append((char)ch);
+      }
+   }
+
+   /** Parse a value up to delim (which is always either ' or "), assuming the initial ' or " has already been consumed.
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   private String parseValue(int delim) throws IOException {
+      StringBuilder sb = new StringBuilder(), sb2 = null;
+      while(true) {
+         int ch=read();
+         if (ch==delim) return sb.toString();
+         if (ch=='&') {
+            if (sb2==null) sb2=new StringBuilder(); else sb2.setLength(0);
+            while((ch=read()) != ';') sb2.append((char)ch);
+            if (sb2.length()>2 && sb2.charAt(0)=='#' && sb2.charAt(1)=='x') {
+               try { ch=Integer.parseInt(sb2.substring(2), 16); } catch(NumberFormatException ex) { ch=(-1); }
+            } else if (sb2.length()>1 && sb2.charAt(0)=='#'){
+               try { ch=Integer.parseInt(sb2.substring(1)); } catch(NumberFormatException ex) { ch=(-1); }
+            } else {
+               String name = sb2.toString();
+               if (name.equals("amp")) ch='&';
+               else if (name.equals("quot")) ch='"';
+               else if (name.equals("apos")) ch='\'';
+               else if (name.equals("lt")) ch='<';
+               else if (name.equals("gt")) ch='>';
+               else ch=(-1);
+            }
+            if (ch<0) malform("The entity \"&"+sb2.toString()+";\" is unknown.");
+         }
+         sb.append((char)ch);
+      }
+   }
+
+   /** Returns the next event (START, END, TEXT, or EOF); once EOF is returned, every later call also returns EOF.
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   public int next() throws IOException {
+      if (empty) { empty=false; type=stack.remove(stack.size()-1); return END; }
+      if (stack.isEmpty()) {
+         // document ::= Misc* doctypedecl? Misc* element Misc*
+         if (!started) {
+            if (skipNondata(false)!='<') malform("Expects start of root element.");
+            started = true;
+            return parseStartTag();
+         }
+         if (skipNondata(false)!=(-1)) malform("Expects end of file.");
+         return EOF;
+      }
+      // Parses the content until we see a start tag, an end tag, or (if we want text data) some text data
+      while(true) {
+         if (less) {
+            less = false;
+         } else if (sb==null) {
+            while(read()!='<') {}
+         } else {
+            sb.append(parseValue('<').replace('\r',' ').replace('\n', ' '));
+            if (sb.length()>0) { less=true; return text(); }
+         }
+         int ch=read();
+         if (ch=='/') {
+            String top = stack.remove(stack.size()-1);
+            if (!top.equals(parseName())) malform("Start tag and end tag must have matching types.");
+            if (skipSpace()!='>') malform("Expects '</"+top+">'");
+            type = top;
+            return END;
+         }
+         if (ch=='?') { skipUntil('?', '>'); continue; }
+         if (ch=='!') {
+            ch=read();
+            if (ch=='-') {
+               if (read()!='-')  malform("Expects start of <!--...-->");
+               skipUntil('-', '-');
+               if (read()!='>')  malform("Expects end of <!--...-->");
+               continue;
+            }
+            if (ch!='[') malform("Expects <![CDATA[...]]>");
+            expect("CDATA[");
+            for(int ah=0,bh=0; ;) {
+               ch=read();
+               if (ah==']' && bh==']' && ch=='>') break;
+               if (ah>0 && sb!=null) sb.append((char)ah);
+               ah=bh; bh=ch;
+            }
+            if (sb!=null && sb.length()>0) return text();
+            continue;
+         }
+         read = ch;
+         return parseStartTag();
+      }
+   }
+
+   /** Returns a TEXT event, after removing all contents from the text data read so far. */
+   private int text() {
+      text = sb.toString();
+      sb.setLength(0);
+      return TEXT;
+   }
+
+   /*
+    * Below are the grammar rules for "element":
+    * ==========================================
+    *
+    * element ::=  '<' Name (S  Name S? '=' S? AttValue)* S? '/>'
+    *           |  '<' Name (S  Name S? '=' S? AttValue)* S? '>'  content   '</' Name  S? '>'
+    *
+    * content  ::=  CharData? ((element | Reference | CDSect | PI | Comment) CharData?)*
+    * CDSect   ::=  '<![CDATA['     (Char* - (Char* ']]>' Char*))      ']]>'
+    * CharData ::=  [^<&]* - ([^<&]* ']]>' [^<&]*)
+    */
+
+   /** Parse the name and attributes of a start tag, assuming the initial "less than" sign has already been consumed.
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   private int parseStartTag() throws IOException {
+      type = parseName();
+      keys.clear();
+      values.clear();
+      while(true) {
+         boolean space = false;
+         int ch = read();
+         if (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n') { space=true; ch=skipSpace(); }
+         if (ch == '=') malform("Unexpected '='");
+         if (ch == '/') {
+            if (read()!='>') malform("Expects '/>'");
+            empty = true;
+            break;
+         }
+         if (ch == '>') break;
+         if (!space) malform("Whitespace needed before a (key,value) pair.");
+         read = ch;
+         String key = parseName();
+         if (key.length()==0) malform("Attribute name cannot be empty.");
+         if (skipSpace()!='=') malform("Expects = after the attribute name.");
+         ch = skipSpace();
+         if (ch != '\'' && ch != '\"') malform("Expects \' or \" as the start of the attribute value.");
+         String value = parseValue(ch);
+         int i = keys.indexOf(key);
+         if (i>=0) values.set(i, value); else { keys.add(key); values.add(value); }
+      }
+      stack.add(type);
+      return START;
+   }
+
+   /** Skip the content and the end tag of the element in the latest START event.
+    * @throws IOException if the XML input is malformed.
+    * @throws IOException if an I/O error occurred.
+    */
+   public void skip() throws IOException {
+      for(int depth=1; depth>0;) {
+         int event = next();
+         if (event==START) depth++; else if (event==END) depth--; else if (event==EOF) return;
+      }
+   }
+
+   /** Returns the type of the element in the latest START or END event. */
+   public String getType() { return type; }
+
+   /** Returns true if the type of the element in the latest START or END event is equal to the given type. */
+   public boolean is(String type) { return this.type.equals(type); }
+
+   /** Returns the text in the latest TEXT event. */
+   public String getText() { return text; }
+
+   /** Returns the number of attributes in the latest START event. */
+   public int getAttributeCount() { return keys.size(); }
+
+   /** Returns the name of the i-th attribute in the latest START event. */
+   public String getAttributeName(int i) { return keys.get(i); }
+
+   /** Returns the value of the i-th attribute in the latest START event. */
+   public String getAttributeValue(int i) { return values.get(i); }
+
+   /** Returns the value associated with the given attribute name in the latest START event; if the attribute doesn't exist, return "". */
+   public String getAttribute(String name) {
+      int i = keys.indexOf(name);
+      return (i<0) ? "" : values.get(i);
+   }
+}
@@ -77,6 +77,9 @@ public abstract class Expr extends Browsable {
    /** True if this expression is not fully resolved. */
    public final boolean ambiguous;
 
+   /** Caches the structuralHash() result (0 if it has not been computed yet). */
+   private int structuralHash;
+
    /** This is an unmodifiable empty list of Err objects. */
    static final JoinableList<Err> emptyListOfErrors = new JoinableList<Err>();
 
@@ -248,6 +251,19 @@ public abstract class Expr extends Browsable {
       return obj==this;
    }
 
+   /** Returns a hash code consistent with isSame(): if a.isSame(b) then a.structuralHash()==b.structuralHash().
+    * <p> Unlike hashCode() (which is the identity hash code), two separately constructed but identical subexpressions
+    * get the same value; it is computed once per node and then cached.
+    */
+   public final int structuralHash() {
+      int h = structuralHash;
+      if (h==0) { h = computeStructuralHash(); if (h==0) h = 1; structuralHash = h; }
+      return h;
+   }
+
+   /** Computes the value returned by structuralHash(); every subclass that overrides isSame() must override this consistently. */
+   int computeStructuralHash() { return System.identityHashCode(this); }
+
    /** Remove the "NOP" in front of an expression (if any). */
    public final Expr deNOP() {
       Expr x = this;
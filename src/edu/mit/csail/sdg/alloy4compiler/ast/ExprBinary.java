@@ -83,6 +83,9 @@ public final class ExprBinary extends Expr {
       return op==x.op && left.isSame(x.left) && right.isSame(x.right);
    }
 
+   /** {@inheritDoc} */
+   @Override int computeStructuralHash() { return (op.ordinal()*31 + left.structuralHash())*31 + right.structuralHash(); }
+
    //============================================================================================================//
 
    /** Convenience method that generates a type error with "msg" as the message,
@@ -179,6 +179,13 @@ public final class ExprCall extends Expr {
         return true;
     }
 
+    /** {@inheritDoc} */
+    @Override int computeStructuralHash() {
+        int h = System.identityHashCode(fun);
+        for(int i=0; i<args.size(); i++) h = h*31 + args.get(i).structuralHash();
+        return h;
+    }
+
     //============================================================================================================//
 
     /** Constructs an ExprCall node with the given predicate/function "fun" and the list of arguments "args". */
@@ -79,6 +79,9 @@ public final class ExprConstant extends Expr {
         if (op==Op.STRING) return op==x.op && string.equals(x.string); else return op==x.op && num==x.num;
     }
 
+    /** {@inheritDoc} */
+    @Override int computeStructuralHash() { return op.ordinal()*31 + (op==Op.STRING ? string.hashCode() : num); }
+
     /** The "TRUE" boolean value. */
     public static final Expr TRUE = new ExprConstant(null, Op.TRUE, 0, "");
 
@@ -90,6 +90,9 @@ public final class ExprITE extends Expr {
         return cond.isSame(x.cond) && left.isSame(x.left) && right.isSame(x.right);
     }
 
+    /** {@inheritDoc} */
+    @Override int computeStructuralHash() { return (cond.structuralHash()*31 + left.structuralHash())*31 + right.structuralHash(); }
+
     /** Constructs a ExprITE expression.
      *
      * @param cond - the condition formula
@@ -91,6 +91,26 @@ public final class ExprList extends Expr {
 
     //============================================================================================================//
 
+    /** Returns true if we can determine the two expressions are equivalent; may sometimes return false. */
+    @Override public boolean isSame(Expr obj) {
+        while(obj instanceof ExprUnary && ((ExprUnary)obj).op==ExprUnary.Op.NOOP) obj=((ExprUnary)obj).sub;
+        if (obj==this) return true;
+        if (!(obj instanceof ExprList)) return false;
+        ExprList x=(ExprList)obj;
+        if (op!=x.op || args.size()!=x.args.size()) return false;
+        for(int i=0; i<args.size(); i++) if (!args.get(i).isSame(x.args.get(i))) return false;
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override int computeStructuralHash() {
+        int h = op.ordinal();
+        for(int i=0; i<args.size(); i++) h = h*31 + args.get(i).structuralHash();
+        return h;
+    }
+
+    //============================================================================================================//
+
     /** Add expr to list, in a way that flattens the conjunctions as much as possible (for better unsat core). */
     private static void addAND(TempList<Expr> list, Expr expr) {
         Expr x = expr.deNOP();
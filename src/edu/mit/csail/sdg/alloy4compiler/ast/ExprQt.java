@@ -123,6 +123,36 @@ public final class ExprQt extends Expr {
 
    //=============================================================================================================//
 
+   /** Returns true if we can determine the two expressions are equivalent; may sometimes return false.
+    * <p> Two quantified expressions are considered the same only if they bind the very same variable objects.
+    */
+   @Override public boolean isSame(Expr obj) {
+      while(obj instanceof ExprUnary && ((ExprUnary)obj).op==ExprUnary.Op.NOOP) obj=((ExprUnary)obj).sub;
+      if (obj==this) return true;
+      if (!(obj instanceof ExprQt)) return false;
+      ExprQt x = (ExprQt)obj;
+      if (op!=x.op || decls.size()!=x.decls.size() || !sub.isSame(x.sub)) return false;
+      for(int i=0; i<decls.size(); i++) {
+         Decl a = decls.get(i), b = x.decls.get(i);
+         if (a.names.size()!=b.names.size() || (a.disjoint==null)!=(b.disjoint==null) || (a.disjoint2==null)!=(b.disjoint2==null)) return false;
+         for(int j=0; j<a.names.size(); j++) if (a.names.get(j)!=b.names.get(j)) return false;
+         if (!a.expr.isSame(b.expr)) return false;
+      }
+      return true;
+   }
+
+   /** {@inheritDoc} */
+   @Override int computeStructuralHash() {
+      int h = op.ordinal()*31 + sub.structuralHash();
+      for(Decl d: decls) {
+         for(ExprHasName v: d.names) h = h*31 + System.identityHashCode(v);
+         h = h*31 + d.expr.structuralHash();
+      }
+      return h;
+   }
+
+   //=============================================================================================================//
+
    /** Constructs a new quantified expression. */
    private ExprQt (Pos pos, Pos closingBracket, Op op, Type type, ConstList<Decl> decls, Expr sub, boolean ambiguous, long weight, JoinableList<Err> errs) {
       super(pos, closingBracket, ambiguous, type, 0, weight, errs);
@@ -0,0 +1,171 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.ast;
+
+import java.util.List;
+import edu.mit.csail.sdg.alloy4.ConstList;
+import edu.mit.csail.sdg.alloy4.ConstList.TempList;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.Pos;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
+
+/** Mutable; a hash-consing table that maps each expression to one canonical node that is structurally identical
+ * (according to isSame() and structuralHash()) and has the same type and multiplicity.
+ *
+ * <p> This is opt-in: nothing in the compiler uses it by default. It lets a client (such as a desugaring pass
+ * or a translator) detect subexpressions it has already seen, and lets big ASTs share identical subterms.
+ *
+ * <p> Since isSame() ignores positions, the canonical node may carry the position of an earlier
+ * identical subexpression. Nodes that have errors or that are ambiguous are never shared.
+ *
+ * <p><b>Thread Safety:</b>  Can be called only by one thread at a time.
+ */
+
+public final class ExprTable {
+
+    /** The open-addressing hash table (its length is always a power of 2). */
+    private Expr[] table = new Expr[64];
+
+    /** The number of nodes in the table. */
+    private int size = 0;
+
+    /** Constructs an empty table. */
+    public ExprTable() { }
+
+    /** Returns the number of canonical nodes in this table. */
+    public int size() { return size; }
+
+    /** Returns true if a and b can share one node. */
+    private static boolean same(Expr a, Expr b) {
+        return a.structuralHash()==b.structuralHash() && a.mult==b.mult && a.type.equals(b.type) && a.isSame(b);
+    }
+
+    /** If an identical expression is in the table, return it; otherwise add x to the table then return x. */
+    public Expr intern(Expr x) {
+        if (x.ambiguous || x.errors.size()>0) return x;
+        int mask = table.length-1, i = (x.structuralHash() * 0x9E3779B9) >>> 7;
+        while(true) {
+            Expr y = table[i &= mask];
+            if (y==null) break;
+            if (y==x || same(y, x)) return y;
+            i++;
+        }
+        table[i] = x;
+        if ((++size)*2 > table.length) {
+            Expr[] old = table;
+            table = new Expr[old.length*2];
+            mask = table.length-1;
+            for(Expr y: old) if (y!=null) {
+                for(i = (y.structuralHash() * 0x9E3779B9) >>> 7; table[i & mask]!=null; i++) { }
+                table[i & mask] = y;
+            }
+        }
+        return x;
+    }
+
+    /** Constructs (or reuses) the binary expression (left op right). */
+    public Expr binary(ExprBinary.Op op, Pos pos, Pos closingBracket, Expr left, Expr right) {
+        return intern(op.make(pos, closingBracket, intern(left), intern(right)));
+    }
+
+    /** Constructs (or reuses) the unary expression (op sub). */
+    public Expr unary(ExprUnary.Op op, Pos pos, Expr sub) {
+        return intern(op.make(pos, intern(sub)));
+    }
+
+    /** Constructs (or reuses) the quantified expression (op decls | sub). */
+    public Expr qt(ExprQt.Op op, Pos pos, Pos closingBracket, List<Decl> decls, Expr sub) {
+        return intern(op.make(pos, closingBracket, decls, intern(sub)));
+    }
+
+    /** Constructs (or reuses) the call fun[args]. */
+    public Expr call(Pos pos, Pos closingBracket, Func fun, List<Expr> args, long extraWeight) {
+        TempList<Expr> list = new TempList<Expr>(args.size());
+        for(Expr arg: args) list.add(intern(arg));
+        return intern(ExprCall.make(pos, closingBracket, fun, list.makeConst(), extraWeight));
+    }
+
+    /** Returns an expression equivalent to x in which every structurally identical subexpression is shared.
+     * <p> A node is only rebuilt if one of its children changed, and only if the rebuilt node gets the same type;
+     * otherwise the original node is kept (with its original children).
+     */
+    public Expr share(Expr x) {
+        if (x.ambiguous || x.errors.size()>0 || x instanceof ExprCustom) return x;
+        try {
+            return sharer.visitThis(x);
+        } catch(Err ex) {
+            return x; // the visitor below never throws, but just in case
+        }
+    }
+
+    /** If y differs from x and has the same type and multiplicity, return intern(y), else return intern(x). */
+    private Expr pick(Expr x, Expr y) {
+        if (y!=x && (y.errors.size()>0 || y.mult!=x.mult || !y.type.equals(x.type))) y = x;
+        return intern(y);
+    }
+
+    /** This visitor implements share(). */
+    private final VisitReturn<Expr> sharer = new VisitReturn<Expr>() {
+        @Override public Expr visit(ExprBad x) { return x; }
+        @Override public Expr visit(ExprBadCall x) { return x; }
+        @Override public Expr visit(ExprBadJoin x) { return x; }
+        @Override public Expr visit(ExprBinary x) {
+            Expr a = share(x.left), b = share(x.right);
+            return pick(x, (a==x.left && b==x.right) ? x : x.op.make(x.pos, x.closingBracket, a, b));
+        }
+        @Override public Expr visit(ExprList x) {
+            TempList<Expr> args = new TempList<Expr>(x.args.size());
+            boolean changed = false;
+            for(Expr arg: x.args) { Expr y = share(arg); if (y!=arg) changed=true; args.add(y); }
+            return pick(x, changed ? ExprList.make(x.pos, x.closingBracket, x.op, args.makeConst()) : x);
+        }
+        @Override public Expr visit(ExprCall x) {
+            TempList<Expr> args = new TempList<Expr>(x.args.size());
+            boolean changed = false;
+            for(Expr arg: x.args) { Expr y = share(arg); if (y!=arg) changed=true; args.add(y); }
+            return pick(x, changed ? ExprCall.make(x.pos, x.closingBracket, x.fun, args.makeConst(), x.extraWeight) : x);
+        }
+        @Override public Expr visit(ExprConstant x) { return intern(x); }
+        @Override public Expr visit(ExprITE x) {
+            Expr a = share(x.cond), b = share(x.left), c = share(x.right);
+            return pick(x, (a==x.cond && b==x.left && c==x.right) ? x : ExprITE.make(x.pos, a, b, c));
+        }
+        @Override public Expr visit(ExprLet x) {
+            Expr a = share(x.expr), b = share(x.sub);
+            return pick(x, (a==x.expr && b==x.sub) ? x : ExprLet.make(x.pos, x.var, a, b));
+        }
+        @Override public Expr visit(ExprQt x) {
+            TempList<Decl> decls = new TempList<Decl>(x.decls.size());
+            boolean changed = false;
+            for(Decl d: x.decls) {
+                Expr y = share(d.expr);
+                if (y==d.expr) { decls.add(d); continue; }
+                changed = true;
+                decls.add(new Decl(d.isPrivate, d.disjoint, d.disjoint2, d.names, y));
+            }
+            Expr sub = share(x.sub);
+            ConstList<Decl> list = decls.makeConst();
+            return pick(x, (!changed && sub==x.sub) ? x : x.op.make(x.pos, x.closingBracket, list, sub));
+        }
+        @Override public Expr visit(ExprUnary x) {
+            Expr a = share(x.sub);
+            return pick(x, a==x.sub ? x : x.op.make(x.pos, a));
+        }
+        @Override public Expr visit(ExprVar x) { return x; }
+        @Override public Expr visit(Sig x) { return x; }
+        @Override public Expr visit(Field x) { return x; }
+    };
+}
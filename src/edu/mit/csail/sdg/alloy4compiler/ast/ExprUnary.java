@@ -104,6 +104,9 @@ public final class ExprUnary extends Expr {
         return op==x.op && sub.isSame(x.sub);
     }
 
+    /** {@inheritDoc} */
+    @Override int computeStructuralHash() { return op==Op.NOOP ? sub.structuralHash() : op.ordinal()*31 + sub.structuralHash(); }
+
     //============================================================================================================//
 
     /** This class contains all possible unary operators. */
@@ -216,6 +216,13 @@ public abstract class Sig extends Expr {
       return (me == obj);
    }
 
+   /** {@inheritDoc} */
+   @Override int computeStructuralHash() {
+      Sig me = this;
+      while(me instanceof SubsetSig && ((SubsetSig)me).exact && ((SubsetSig)me).parents.size()==1) me = ((SubsetSig)me).parents.get(0);
+      return System.identityHashCode(me);
+   }
+
    /** Returns true iff "this is equal or subtype of that" */
    public abstract boolean isSameOrDescendentOf(Sig that);
 
@@ -290,10 +297,26 @@ public abstract class Sig extends Expr {
       /** If this is UNIV or NONE, then this field is null, else this field is the parent sig. */
       public final PrimSig parent;
 
+      /** The chain of ancestors from the topmost sig down to this sig (so ancestors[ancestors.length-1]==this).
+       * <p> Since the parent is fixed at construction, this lets isSameOrDescendentOf() answer in constant time
+       * by probing ancestors[depth of that sig] instead of walking up the parent chain.
+       */
+      private final PrimSig[] ancestors;
+
+      /** Returns the chain of ancestors for a new sig whose parent is the given sig. */
+      private PrimSig[] ancestors(PrimSig parent) {
+         if (parent==null) return new PrimSig[]{this};
+         PrimSig[] ans = new PrimSig[parent.ancestors.length + 1];
+         System.arraycopy(parent.ancestors, 0, ans, 0, parent.ancestors.length);
+         ans[parent.ancestors.length] = this;
+         return ans;
+      }
+
       /** Constructs a builtin PrimSig. */
       private PrimSig(String label, PrimSig parent, boolean add) {
          super(label);
          this.parent = parent;
+         this.ancestors = ancestors(parent);
          if (add) this.parent.children.add(this);
       }
 
@@ -314,6 +337,7 @@ public abstract class Sig extends Expr {
          if (parent==NONE)   throw new ErrorSyntax(pos, "sig "+label+" cannot extend the builtin \"none\" signature");
          if (parent==null) parent=UNIV; else if (parent!=UNIV) parent.children.add(this);
          this.parent = parent;
+         this.ancestors = ancestors(parent);
          if (isEnum!=null && parent!=UNIV) throw new ErrorType(pos, "sig "+label+" is not a toplevel sig, so it cannot be an enum.");
          for( ; parent!=null ; parent=parent.parent) if (parent.isEnum!=null) {
             if (parent!=this.parent) throw new ErrorSyntax(pos, "sig "+label+" cannot extend a signature which is an atom in an enum.");
@@ -333,9 +357,9 @@ public abstract class Sig extends Expr {
       /** {@inheritDoc} */
       @Override public boolean isSameOrDescendentOf(Sig that) {
          if (this==NONE || this==that || that==UNIV) return true;
-         if (this==UNIV || that==NONE) return false;
-         for(PrimSig me=this; me!=null; me=me.parent) if (me==that) return true;
-         return false;
+         if (this==UNIV || that==NONE || !(that instanceof PrimSig)) return false;
+         final int depth = ((PrimSig)that).ancestors.length - 1;
+         return depth < ancestors.length && ancestors[depth]==that;
       }
 
       /** Returns the intersection between this and that (and returns "none" if they do not intersect). */
@@ -89,7 +89,11 @@ public final class Type implements Iterable<Type.ProductType> {
         }
 
         /** Returns a hash code consistent with equals() */
-        @Override public int hashCode() { return types.length==0 ? 0 : (types[0].hashCode()); }
+        @Override public int hashCode() {
+            int ans = types.length;
+            for(int i=0; i<types.length; i++) ans = ans*31 + types[i].hashCode();
+            return ans;
+        }
 
         /** Returns true if this.arity==that.arity and this.types[i]==that.types[i] for each i */
         @Override public boolean equals(Object that) {
@@ -703,6 +707,15 @@ public final class Type implements Iterable<Type.ProductType> {
         if (this==that) return true;
         if (is_int() && !that.is_int()) return false;
         if (is_bool && !that.is_bool) return false;
+        // Fast path: if every entry is already a subtype of some single entry in "that", there is no need to fold "that".
+        boolean covered = true;
+        quick:
+        for(ProductType a: this) {
+           for(ProductType b: that.entries) if (a.types.length==b.types.length && a.isSubtypeOf(b)) continue quick;
+           covered = false;
+           break;
+        }
+        if (covered) return true;
         List<List<PrimSig>> those = that.fold();
         again:
         for(ProductType a: this) {
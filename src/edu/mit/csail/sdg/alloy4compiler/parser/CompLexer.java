@@ -472,7 +472,7 @@ public final class CompLexer implements java_cup.runtime.Scanner {
  public List<Object> alloy_seenDollar;
  public CompModule alloy_module;
  private final Pos alloy_here(String txt) {
-    return new Pos(alloy_filename,yycolumn+1,yyline+1+alloy_lineoffset,yycolumn+txt.length(),yyline+1);
+    return Pos.make(alloy_filename,yycolumn+1,yyline+1+alloy_lineoffset,yycolumn+txt.length(),yyline+1);
  }
  private final Symbol alloy_sym(String txt, int type) {
     Pos p = alloy_here(txt); return new Symbol(type, p, p);
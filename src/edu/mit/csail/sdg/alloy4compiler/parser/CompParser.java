@@ -7,6 +7,7 @@
 package edu.mit.csail.sdg.alloy4compiler.parser;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Reader;
@@ -18,7 +19,10 @@ import java.util.Map;
 import java.util.Stack;
 import java.util.TreeSet;
 
+import java_cup.runtime.PooledSymbolFactory;
 import java_cup.runtime.Symbol;
+import java_cup.runtime.array_parse_stack;
+import java_cup.runtime.compressed_table;
 import edu.mit.csail.sdg.alloy4.Err;
 import edu.mit.csail.sdg.alloy4.ErrorFatal;
 import edu.mit.csail.sdg.alloy4.ErrorSyntax;
@@ -2042,48 +2046,81 @@ public class CompParser extends java_cup.runtime.lr_parser {
 
   public CompModule alloymodule=null;
 
+  /** The compressed action and reduce-goto tables shared by every fast parse (built on first use). */
+  private static compressed_table alloy_action_tab = null, alloy_reduce_tab = null;
+
+  /** The parse stack that consecutive fast parses on the same thread reuse (null while a parse on this thread is using it). */
+  private static final ThreadLocal<array_parse_stack> alloy_stack = new ThreadLocal<array_parse_stack>();
+
+  /** Builds the compressed tables if they haven't been built yet. */
+  private static synchronized void alloy_compress() {
+     if (alloy_action_tab == null) alloy_action_tab = new compressed_table(_action_table, (short)0);
+     if (alloy_reduce_tab == null) alloy_reduce_tab = new compressed_table(_reduce_table, (short)-1);
+  }
+
+  /** Returns true unless the fast parser runtime has been turned off by "-Dalloy.fastparser=no".
+   * <p> In fast mode, the parser uses constant-time lookups into compressed tables,
+   * an unsynchronized reusable parse stack, and recycles the nonterminal Symbols of each reduction.
+   */
+  static boolean alloy_fast() { return !"no".equals(System.getProperty("alloy.fastparser")); }
+
   @Override public Symbol parse() throws java.lang.Exception {
      int act; // current action code
      Symbol lhs_sym = null; // the Symbol/stack element returned by a reduce
      short handle_size, lhs_sym_num; // information about production being reduced with
      boolean logging = "yes".equals(System.getProperty("debug"));
+     array_parse_stack fast = null; // if nonnull, it's the reusable stack and we're in fast mode
+     PooledSymbolFactory pool = null;
      production_tab = production_table();
      action_tab     = action_table();
      reduce_tab     = reduce_table();
-     init_actions();
-     user_init();
-     // start
-     cur_token = scan();
-     stack.removeAllElements();
-     stack.push(getSymbolFactory().startSymbol("START", 0, start_state()));
-     tos = 0;
-     for (_done_parsing = false; !_done_parsing; ) {
-        act = get_action(((Symbol)stack.peek()).parse_state, cur_token.sym);
-        if (act > 0) { // "shift"; thus, we shift to the encoded state by pushing it on the stack
-           if (logging) System.out.println("shift " + cur_token.sym);
-           cur_token.parse_state = act-1;
-           stack.push(cur_token);
-           tos++;
-           cur_token = scan();
-        } else if (act<0) { // "reduce"
-           if (logging) System.out.println("reduce " + ((-act)-1));
-           lhs_sym = do_action((-act)-1, this, stack, tos);
-           lhs_sym_num = production_tab[(-act)-1][0];
-           handle_size = production_tab[(-act)-1][1];
-           for (int i = 0; i < handle_size; i++)  {  stack.pop(); tos--; }
-           act = get_reduce(((Symbol)stack.peek()).parse_state, lhs_sym_num);
-           lhs_sym.parse_state = act;
-           stack.push(lhs_sym);
-           tos++;
-        } else { // "error"
-           if (logging) System.out.println("error");
-           syntax_error(cur_token);
-           done_parsing();
+     if (alloy_fast()) {
+        alloy_compress();
+        compressed_action_tab = alloy_action_tab;
+        compressed_reduce_tab = alloy_reduce_tab;
+        fast = alloy_stack.get();
+        if (fast == null) fast = new array_parse_stack(256); else alloy_stack.set(null);
+        stack = fast;
+        symbolFactory = pool = new PooledSymbolFactory();
+     }
+     try {
+        init_actions();
+        user_init();
+        // start
+        cur_token = scan();
+        stack.removeAllElements();
+        stack.push(getSymbolFactory().startSymbol("START", 0, start_state()));
+        tos = 0;
+        for (_done_parsing = false; !_done_parsing; ) {
+           act = get_action(((Symbol)stack.peek()).parse_state, cur_token.sym);
+           if (act > 0) { // "shift"; thus, we shift to the encoded state by pushing it on the stack
+              if (logging) System.out.println("shift " + cur_token.sym);
+              cur_token.parse_state = act-1;
+              stack.push(cur_token);
+              tos++;
+              cur_token = scan();
+           } else if (act<0) { // "reduce"
+              if (logging) System.out.println("reduce " + ((-act)-1));
+              lhs_sym = do_action((-act)-1, this, stack, tos);
+              lhs_sym_num = production_tab[(-act)-1][0];
+              handle_size = production_tab[(-act)-1][1];
+              if (fast!=null) { fast.pop(handle_size, pool); tos -= handle_size; }
+                 else for (int i = 0; i < handle_size; i++)  {  stack.pop(); tos--; }
+              act = get_reduce(((Symbol)stack.peek()).parse_state, lhs_sym_num);
+              lhs_sym.parse_state = act;
+              stack.push(lhs_sym);
+              tos++;
+           } else { // "error"
+              if (logging) System.out.println("error");
+              syntax_error(cur_token);
+              done_parsing();
+           }
         }
+        return lhs_sym;
+     } finally {
+        if (fast!=null) { fast.clear_for_reuse(); alloy_stack.set(fast); }
      }
-     return lhs_sym;
   }
-
   public void syntax_error(Symbol x) throws Err {
     Map<Integer,String> ch = new LinkedHashMap<Integer,String>();
     ch.put(CompSym.ARROW, "->");
@@ -2237,6 +2274,10 @@ public class CompParser extends java_cup.runtime.lr_parser {
   }
 
   static final String INT_LIB_NAME = "util" + java.io.File.separator + "integer";
+
+  /** Files at least this big are lexed directly from disk, if the caller did not ask for the source text to be kept (that is, if loaded==null). */
+  static final long STREAM_THRESHOLD = 1024 * 1024;
+
   static CompModule alloy_parseStream (List<Object> seenDollar,
   Map<String,String> loaded, Map<String,String> fc, CompModule root,
   int lineOffset, String filename, String prefix, int initialResolutionMode) throws Err, FileNotFoundException, IOException {
@@ -2250,10 +2291,16 @@ public class CompParser extends java_cup.runtime.lr_parser {
         u.resolution = initialResolutionMode;
         String content = fc!=null ? fc.get(filename) : null;
         if (content==null && loaded!=null) content = loaded.get(filename);
-        if (content==null) content = Util.readAll(filename);
-        if (loaded!=null) loaded.put(filename,content);
-        content = Util.convertLineBreak(content);
-        isr = new StringReader(content);
+        if (content==null && loaded==null && new File(filename).length() >= STREAM_THRESHOLD) {
+            // Nobody needs the source text afterwards, so we lex straight from the file without loading it into memory.
+            // (Error messages only need the filename, line and column recorded in each Pos)
+            isr = Util.openReader(filename);
+        } else {
+            if (content==null) content = Util.readAll(filename);
+            if (loaded!=null) loaded.put(filename,content); else if (fc!=null) fc.put(filename,content); // so that opening the file again in this parse does not read it again
+            content = Util.convertLineBreak(content);
+            isr = new StringReader(content);
+        }
         CompFilter s = new CompFilter(u, seenDollar, filename, lineOffset, new BufferedReader(isr));
         CompParser p = new CompParser(s);
         p.alloymodule=u;
@@ -152,8 +152,9 @@ public final class CompUtil {
     //=============================================================================================================//
 
     /** Helper method that recursively parse a file and all its included subfiles
-     * @param loaded - this stores the text files we've loaded while parsing; cannot be null
+     * @param loaded - this stores the text files we've loaded while parsing; null if the caller does not need them (then large files are streamed from disk)
      * @param fc - if a file cannot be found, we consult this cache first before attempting to load it from disk/jar; cannot be null
+     * (if loaded==null, every file read during this parse is also cached here, except the large files that are streamed from disk)
      * @param pos - the position of the "open" statement
      * @param filename - the filename to open
      * @param root - the root module (this field is ignored if prefix=="")
@@ -182,10 +183,11 @@ public final class CompUtil {
         for(Open x: u.getOpens()) {
             String cp=Util.canon(computeModulePath(u.getModelName(), filename, x.filename)), content=fc.get(cp);
             try {
-                if (content==null) { content=loaded.get(cp); }
+                if (content==null && loaded!=null) { content=loaded.get(cp); }
                 if (content==null) { content=fc.get(x.filename);     if (content!=null) cp=x.filename; }
-                if (content==null) { content=loaded.get(x.filename); if (content!=null) cp=x.filename; }
-                if (content==null) { content=Util.readAll(cp); }
+                if (content==null && loaded!=null) { content=loaded.get(x.filename); if (content!=null) cp=x.filename; }
+                // If loaded==null, then nobody needs the source text afterwards, so we let alloy_parseStream() read the file itself
+                if (content==null && (loaded!=null || !new File(cp).isFile())) { content=Util.readAll(cp); }
             } catch(IOException ex1) {
                 try {
                     String newCp = (Util.jarPrefix()+"models/"+x.filename+".als").replace('/', File.separatorChar);
@@ -196,7 +198,7 @@ public final class CompUtil {
                     "This module cannot be found.\nIt is not a built-in library module, and it cannot be found at \""+cp+"\".\n");
                 }
             }
-            loaded.put(cp, content);
+            if (loaded!=null) loaded.put(cp, content); else if (content!=null) fc.put(cp, content);
             CompModule y = parseRecursively(seenDollar, loaded, fc, x.pos, cp, root, (prefix.length()==0 ? x.alias : prefix+"/"+x.alias), thispath, initialResolution);
             x.connect(y);
         }
@@ -268,14 +270,14 @@ public final class CompUtil {
      * @return the root Module which contains pointers to all submodules
      * @throws Err if an error occurred
      * <p> And if loaded!=null, it will contain all the files needed for this parse, and furthermore, other entries will be deleted.
+     * <p> If loaded==null, the source text is not kept after parsing, so large files are lexed directly from disk.
      */
     public static CompModule parseEverything_fromFile (A4Reporter rep, Map<String,String> loaded, String filename) throws Err {
         try {
             filename = Util.canon(filename);
             Set<String> thispath = new LinkedHashSet<String>();
-            if (loaded==null) loaded = new LinkedHashMap<String,String>();
-            Map<String,String> fc = new LinkedHashMap<String,String>(loaded);
-            loaded.clear();
+            Map<String,String> fc = loaded==null ? new LinkedHashMap<String,String>() : new LinkedHashMap<String,String>(loaded);
+            if (loaded!=null) loaded.clear();
             List<Object> seenDollar = new ArrayList<Object>();
             CompModule root = parseRecursively(seenDollar, loaded, fc, new Pos(filename,1,1), filename, null, "", thispath, 1);
             root.seenDollar = seenDollar.size()>0;
@@ -297,14 +299,14 @@ public final class CompUtil {
      * @return the root CompModule which contains pointers to all submodules
      * @throws Err if an error occurred
      * <p> And if loaded!=null, it will contain all the files needed for this parse, and furthermore, other entries will be deleted.
+     * <p> If loaded==null, the source text is not kept after parsing, so large files are lexed directly from disk.
      */
     public static CompModule parseEverything_fromFile (A4Reporter rep, Map<String,String> loaded, String filename, int initialResolutionMode) throws Err {
         try {
             filename = Util.canon(filename);
             Set<String> thispath = new LinkedHashSet<String>();
-            if (loaded==null) loaded = new LinkedHashMap<String,String>();
-            Map<String,String> fc = new LinkedHashMap<String,String>(loaded);
-            loaded.clear();
+            Map<String,String> fc = loaded==null ? new LinkedHashMap<String,String>() : new LinkedHashMap<String,String>(loaded);
+            if (loaded!=null) loaded.clear();
             List<Object> seenDollar = new ArrayList<Object>();
             CompModule root = parseRecursively(seenDollar, loaded, fc, new Pos(filename,1,1), filename, null, "", thispath, initialResolutionMode);
             // if no sigs are defined by the user, add one
@@ -15,10 +15,10 @@
 
 package edu.mit.csail.sdg.alloy4compiler.sim;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.WeakHashMap;
 
 /** Immutable; represents an atom.
@@ -82,28 +82,32 @@ public final class SimAtom {
         out.write('\"');
     }
 
+    /** Read the next byte as a value 0..255 (or return -1 if there are no more bytes). */
+    static int readByte(ByteBuffer in) {
+        return in.hasRemaining() ? (in.get() & 0xFF) : -1;
+    }
+
     /** Read a "..." atom assuming the leading " has already been consumed. */
-    static SimAtom read(BufferedInputStream in) throws IOException {
-        byte temp[] = new byte[64]; // to ensure proper detection of out-of-memory error, this number must be 2^n for some n>=0
-        int n = 0;
+    static SimAtom read(ByteBuffer in) throws IOException {
+        // First find the closing quote, so that we know how many bytes to decode
+        int start = in.position(), end = start, limit = in.limit();
         while(true) {
-           int c = in.read();
-           if (c<0) throw new IOException("Unexpected EOF");
+           if (end >= limit) throw new IOException("Unexpected EOF");
+           byte c = in.get(end);
            if (c=='\"') break;
-           if (c=='\\') {
-              c=in.read();
-              if (c<0) throw new IOException("Unexpected EOF");
-              if (c=='n') c='\n';
-           }
-           while (n >= temp.length) {
-              byte temp2[] = new byte[temp.length * 2];
-              System.arraycopy(temp, 0, temp2, 0, temp.length);
-              temp = temp2;
-           }
-           temp[n]=(byte)c;
+           if (c=='\\') { end++; if (end >= limit) throw new IOException("Unexpected EOF"); }
+           end++;
+        }
+        byte array[] = new byte[end-start];
+        int n = 0;
+        for(int i=start; i<end; i++) {
+           byte c = in.get(i);
+           if (c=='\\') { i++; c = in.get(i); if (c=='n') c='\n'; }
+           array[n] = c;
            n++;
         }
-        return make(new String(temp, 0, n, "UTF-8"));
+        in.position(end+1);
+        return make(new String(array, 0, n, "UTF-8"));
     }
 
     /** If the atom starts with "-" or "0-9" then convert it into a 32-bit int (here we assume that it came from a 32-bit int)
@@ -15,16 +15,18 @@
 
 package edu.mit.csail.sdg.alloy4compiler.sim;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import edu.mit.csail.sdg.alloy4.Env;
@@ -103,19 +105,51 @@ public final class SimInstance extends VisitReturn<Object> {
     private boolean wasOverflow;
     public boolean wasOverflow() { return wasOverflow; }
 
+    /** The 5 bytes that every binary snapshot file begins with (the last one is the version of the binary format). */
+    private static final byte[] MAGIC = new byte[] { (byte)0x89, 'A', '4', 'S', 1 };
+
     /** Helper method that encodes the given string using UTF-8 and write to the output stream. */
     private static void write(BufferedOutputStream out, String string) throws IOException {
         out.write(string.getBytes("UTF-8"));
     }
 
+    /** Helper method that returns the key that identifies the given sig, field, or var in a snapshot file (or null if it is none of these). */
+    private static String key(Expr e) {
+        if (e instanceof Sig) return "sig " + ((Sig)e).label;
+        if (e instanceof Field) return "field " + ((Field)e).sig.label + " " + ((Field)e).label;
+        if (e instanceof ExprVar) return "var " + ((ExprVar)e).label;
+        return null;
+    }
+
     /** Write the bitwidth, maxseq, set of all atoms, and map of all sig/field/var into the given file. */
     public void write(String filename) throws IOException {
+        write(filename, false);
+    }
+
+    /** Write the bitwidth, maxseq, set of all atoms, and map of all sig/field/var into the given file in a compact binary format,
+     * which read() also accepts.
+     *
+     * <p> The file begins with the bytes in MAGIC, then maxseq and bitwidth, then each sig/field/var as its key (the same as in the text format)
+     * followed by its tupleset, then an empty key.
+     * <br> Every number is written 7 bits at a time, from the least significant bits to the most significant bits,
+     * where the highest bit of each byte is set if more bytes follow;
+     * every string is written as the number of bytes in its UTF-8 encoding, followed by those bytes.
+     * <br> A tupleset is written as the number of tuples; if nonzero, it is followed by the arity, then every atom of every tuple.
+     * <br> Each atom is written as its index in the order that atoms are first written;
+     * when an atom is written for the first time, its index is followed by its label.
+     */
+    public void writeBinary(String filename) throws IOException {
+        write(filename, true);
+    }
+
+    /** Write this instance into the given file (in the binary format if binary==true, else in the text format). */
+    private void write(String filename, boolean binary) throws IOException {
         FileOutputStream fos = null;
         BufferedOutputStream bos = null;
         try {
             fos = new FileOutputStream(filename);
             bos = new BufferedOutputStream(fos);
-            write(bos);
+            if (binary) writeBinary(bos); else write(bos);
             bos.flush();
             bos.close();
             bos = null;
@@ -131,24 +165,80 @@ public final class SimInstance extends VisitReturn<Object> {
     private void write(BufferedOutputStream out) throws IOException {
         write(out, "maxseq = " + maxseq + ("\n" + "bitwidth = ") + bitwidth + "\n");
         for(Map.Entry<Expr,SimTupleset> entry: sfs.entrySet()) {
-            Expr e = entry.getKey();
-            if (e instanceof Sig) write(out, "sig " + ((Sig)e).label + " = ");
-            else if (e instanceof Field) write(out, "field " + ((Field)e).sig.label + " " + ((Field)e).label + " = ");
-            else if (e instanceof ExprVar) write(out, "var " + ((ExprVar)e).label + " = ");
-            else continue;
+            String key = key(entry.getKey());
+            if (key==null) continue;
+            write(out, key + " = ");
             entry.getValue().write(out);
             out.write('\n');
         }
     }
 
-    /** Temporary buffer used by the parser; access to this buffer must be synchronized on SimInstance's class. */
-    private static byte[] readcache = null;
+    /** Write a nonnegative number in the binary format. */
+    private static void num(BufferedOutputStream out, int x) throws IOException {
+        while((x & ~0x7F) != 0) { out.write((x & 0x7F) | 0x80); x = x >>> 7; }
+        out.write(x);
+    }
+
+    /** Write a string in the binary format. */
+    private static void str(BufferedOutputStream out, String x) throws IOException {
+        byte[] array = x.getBytes("UTF-8");
+        num(out, array.length);
+        out.write(array);
+    }
+
+    /** Write the bitwidth, maxseq, set of all atoms, and map of all sig/field/var into the given file in the binary format. */
+    private void writeBinary(BufferedOutputStream out) throws IOException {
+        Map<SimAtom,Integer> atoms = new IdentityHashMap<SimAtom,Integer>(); // SimAtom objects are canonical, so we can compare them by identity
+        out.write(MAGIC);
+        num(out, maxseq);
+        num(out, bitwidth);
+        for(Map.Entry<Expr,SimTupleset> entry: sfs.entrySet()) {
+            String key = key(entry.getKey());
+            if (key==null) continue;
+            str(out, key);
+            SimTupleset ts = entry.getValue();
+            num(out, ts.size());
+            if (ts.size()==0) continue;
+            num(out, ts.arity());
+            for(SimTuple t: ts) for(int i=0, n=t.arity(); i<n; i++) {
+                SimAtom atom = t.get(i);
+                Integer index = atoms.get(atom);
+                if (index!=null) { num(out, index); continue; }
+                num(out, atoms.size());
+                str(out, atom.toString());
+                atoms.put(atom, atoms.size());
+            }
+        }
+        str(out, "");
+    }
+
+    //============================================================================================================================//
+
+    /** Returns the content of the given file, read into a heap buffer.
+     * <p> We do not memory-map large files: the mapping would stay alive until the buffer is garbage collected,
+     * and on some platforms (such as Windows) the file cannot be overwritten or deleted while it is mapped;
+     * since read() parses the whole file into SimAtoms anyway, the buffer becomes garbage as soon as read() returns.
+     */
+    private static ByteBuffer load(String filename) throws IOException {
+        FileInputStream fis = new FileInputStream(filename);
+        try {
+            FileChannel ch = fis.getChannel();
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("The file " + filename + " is too large.");
+            ByteBuffer ans = ByteBuffer.allocate((int)size);
+            while(ans.hasRemaining()) if (ch.read(ans) < 0) throw new IOException("Unexpected EOF");
+            ans.flip();
+            return ans;
+        } finally {
+            Util.close(fis);
+        }
+    }
 
     /** Helper method that read a non-negative integer followed by a line break. */
-    private static int readNonNegativeIntThenLinebreak(BufferedInputStream bis) throws IOException {
+    private static int readNonNegativeIntThenLinebreak(ByteBuffer in) throws IOException {
         int n = 0;
         while(true) {
-            int c = bis.read();
+            int c = SimAtom.readByte(in);
             if (c<0) throw new IOException("Unexpected EOF");
             if (c=='\n') return n;
             if (c>0 && c<=' ') continue; // skip white space
@@ -157,79 +247,110 @@ public final class SimInstance extends VisitReturn<Object> {
         }
     }
 
-    /** Helper method that read "key =" then return the key part (with leading and trailing spaces removed).
-     * This method can only be called after you've synchronized on SimInstance's class.
-     */
-    private static String readkey(BufferedInputStream bis) throws IOException {
-        int n = 0;
+    /** Helper method that read "key =" then return the key part (with leading and trailing spaces removed). */
+    private static String readkey(ByteBuffer in) throws IOException {
+        int start = in.position(), end = start;
         while(true) {
-            int c = bis.read();
+            int c = SimAtom.readByte(in);
             if (c<0) return "";
             if (c=='=') break;
-            if (readcache==null) readcache = new byte[64]; // to ensure proper detection of out-of-memory error, this number must be 2^n for some n>=0
-            while(n >= readcache.length) {
-               byte[] readcache2 = new byte[readcache.length * 2];
-               System.arraycopy(readcache, 0, readcache2, 0, readcache.length);
-               readcache = readcache2;
+            end++;
+        }
+        while(end>start && in.get(end-1)>0 && in.get(end-1)<=' ') end--; // skip trailing spaces
+        while(start<end && in.get(start)>0 && in.get(start)<=' ') start++; // skip leading space
+        byte[] array = new byte[end-start];
+        for(int i=0; i<array.length; i++) array[i] = in.get(start+i);
+        return new String(array, "UTF-8");
+    }
+
+    /** Read a nonnegative number in the binary format. */
+    private static int num(ByteBuffer in) throws IOException {
+        int ans = 0;
+        for(int shift=0; shift<32; shift=shift+7) {
+            int c = SimAtom.readByte(in);
+            if (c<0) throw new IOException("Unexpected EOF");
+            ans = ans | ((c & 0x7F) << shift);
+            if ((c & 0x80) == 0) return ans;
+        }
+        throw new IOException("Malformed number in the binary snapshot file.");
+    }
+
+    /** Read a string in the binary format. */
+    private static String str(ByteBuffer in) throws IOException {
+        int n = num(in);
+        if (n<0 || n>in.remaining()) throw new IOException("Unexpected EOF");
+        byte[] array = new byte[n];
+        in.get(array);
+        return new String(array, "UTF-8");
+    }
+
+    /** Read a tupleset in the binary format, where atoms.get(i) is the atom with index i. */
+    private static SimTupleset readTupleset(ByteBuffer in, List<SimAtom> atoms) throws IOException {
+        int n = num(in);
+        if (n==0) return SimTupleset.EMPTY;
+        int arity = num(in);
+        if (arity<=0) throw new IOException("Tuple arity cannot be 0.");
+        LinkedHashSet<SimTuple> tuples = new LinkedHashSet<SimTuple>();
+        List<SimAtom> tuple = new ArrayList<SimAtom>(arity);
+        for(int i=0; i<n; i++) {
+            tuple.clear();
+            for(int j=0; j<arity; j++) {
+                int index = num(in);
+                if (index == atoms.size()) atoms.add(SimAtom.make(str(in)));
+                else if (index<0 || index>atoms.size()) throw new IOException("Unexpected atom index "+index+" in the binary snapshot file.");
+                tuple.add(atoms.get(index));
             }
-            readcache[n] = (byte)c;
-            n++;
+            tuples.add(SimTuple.make(tuple));
         }
-        while(n>0 && readcache[n-1]>0 && readcache[n-1]<=' ') n--; // skip trailing spaces
-        int i = 0;
-        while(i<n && readcache[i]>0 && readcache[i]<=' ') i++; // skip leading space
-        return new String(readcache, i, n-i, "UTF-8");
+        return SimTupleset.make(tuples);
     }
 
-    /** Construct a new simulation context by reading the given file. */
-    public static synchronized SimInstance read(Module root, String filename, List<ExprVar> vars) throws Err, IOException {
-        FileInputStream fis = null;
-        BufferedInputStream bis = null;
-        try {
-            fis = new FileInputStream(filename);
-            bis = new BufferedInputStream(fis);
+    /** Construct a new simulation context by reading the given file (which can be in the text format written by write(),
+     * or in the binary format written by writeBinary()).
+     * <p> Each call works on its own copy of the file's content (and the file is closed before this method returns), so different threads may read at the same time.
+     */
+    public static SimInstance read(Module root, String filename, List<ExprVar> vars) throws Err, IOException {
+        ByteBuffer in = load(filename);
+        boolean binary = in.remaining() >= MAGIC.length;
+        for(int i=0; binary && i<MAGIC.length; i++) if (in.get(i)!=MAGIC[i]) binary=false;
+        int maxseq, bitwidth;
+        if (binary) {
+            in.position(MAGIC.length);
+            maxseq = num(in);
+            bitwidth = num(in);
+        } else {
             // read maxseq
-            if (!readkey(bis).equals("maxseq")) throw new IOException("Expecting maxseq = ...");
-            int maxseq = readNonNegativeIntThenLinebreak(bis);
+            if (!readkey(in).equals("maxseq")) throw new IOException("Expecting maxseq = ...");
+            maxseq = readNonNegativeIntThenLinebreak(in);
             // read bitwidth
-            if (!readkey(bis).equals("bitwidth")) throw new IOException("Expecting bitwidth = ...");
-            int bitwidth = readNonNegativeIntThenLinebreak(bis);
-            // construct the SimInstance object with no atoms and no relations
-            SimInstance ans = new SimInstance(root, bitwidth, maxseq);
-            // parse all the relations
-            Map<String,SimTupleset> sfs = new HashMap<String,SimTupleset>();
-            while(true) {
-                String key = readkey(bis);
-                if (key.length() == 0) break; // we don't expect any more data after this
-                sfs.put(key, SimTupleset.read(bis));
-            }
-            // now for each user-supplied sig, if we saw its value earlier, then assign its value in the new SimInstance's sfs map
-            for(final Sig s: root.getAllReachableSigs()) if (!s.builtin) {
-                SimTupleset ts = sfs.get("sig " + s.label);
-                if (ts!=null) ans.sfs.put(s, ts);
-                for(final Field f: s.getFields()) if (!f.defined) {
-                    ts = sfs.get("field " + s.label + " " + f.label);
-                    if (ts!=null) ans.sfs.put(f, ts);
-                }
-            }
-            // now for each user-supplied var, if we saw its value earlier, then assign its value in the new SimInstance's sfs map
-            if (vars!=null) for(ExprVar v: vars) {
-                SimTupleset ts = sfs.get("var " + v.label);
-                if (ts!=null) ans.sfs.put(v, ts);
+            if (!readkey(in).equals("bitwidth")) throw new IOException("Expecting bitwidth = ...");
+            bitwidth = readNonNegativeIntThenLinebreak(in);
+        }
+        // construct the SimInstance object with no atoms and no relations
+        SimInstance ans = new SimInstance(root, bitwidth, maxseq);
+        // parse all the relations
+        Map<String,SimTupleset> sfs = new HashMap<String,SimTupleset>();
+        List<SimAtom> atoms = new ArrayList<SimAtom>();
+        while(true) {
+            String key = binary ? str(in) : readkey(in);
+            if (key.length() == 0) break; // we don't expect any more data after this
+            sfs.put(key, binary ? readTupleset(in, atoms) : SimTupleset.read(in));
+        }
+        // now for each user-supplied sig, if we saw its value earlier, then assign its value in the new SimInstance's sfs map
+        for(final Sig s: root.getAllReachableSigs()) if (!s.builtin) {
+            SimTupleset ts = sfs.get("sig " + s.label);
+            if (ts!=null) ans.sfs.put(s, ts);
+            for(final Field f: s.getFields()) if (!f.defined) {
+                ts = sfs.get("field " + s.label + " " + f.label);
+                if (ts!=null) ans.sfs.put(f, ts);
             }
-            // close the files then return the answer
-            bis.close();
-            bis = null;
-            fis.close();
-            fis = null;
-            return ans;
-        } finally {
-            // free the temporary array
-            readcache = null;
-            // if an exception occurred, we'll try to close to files anyway, since open file descriptors is a scarce resource
-            Util.close(bis);
-            Util.close(fis);
         }
+        // now for each user-supplied var, if we saw its value earlier, then assign its value in the new SimInstance's sfs map
+        if (vars!=null) for(ExprVar v: vars) {
+            SimTupleset ts = sfs.get("var " + v.label);
+            if (ts!=null) ans.sfs.put(v, ts);
+        }
+        return ans;
     }
 
     /** Construct a new simulation context with the given bitwidth and the given maximum sequence length. */
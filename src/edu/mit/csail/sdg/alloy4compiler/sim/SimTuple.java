@@ -15,9 +15,9 @@
 
 package edu.mit.csail.sdg.alloy4compiler.sim;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -84,16 +84,16 @@ public final class SimTuple implements Iterable<SimAtom> {
     }
 
     /** Read a (".." ".." "..") tuple assuming the leading "(" has already been consumed. */
-    static SimTuple read(BufferedInputStream in) throws IOException {
+    static SimTuple read(ByteBuffer in) throws IOException {
         List<SimAtom> list = new ArrayList<SimAtom>();
         while(true) {
-           int c = in.read();
+           int c = SimAtom.readByte(in);
            if (c<0) throw new IOException("Unexpected EOF");
            if (c>0 && c<=' ') continue; // skip whitespace
            if (c==')') break;
            if (c!='\"') throw new IOException("Expecting start of atom");
            list.add(SimAtom.read(in));
-           c = in.read();
+           c = SimAtom.readByte(in);
            if (c<0) throw new IOException("Unexpected EOF");
            if (c==')') break;
            if (!(c<=' ')) throw new IOException("Expecting \')\' or white space after an atom.");
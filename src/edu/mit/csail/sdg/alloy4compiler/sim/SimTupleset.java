@@ -15,9 +15,9 @@
 
 package edu.mit.csail.sdg.alloy4compiler.sim;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.IdentityHashMap;
@@ -261,22 +261,22 @@ public final class SimTupleset implements Iterable<SimTuple> {
     }
 
     /** Read a { (".." ".." "..") (".." ".." "..") (".." ".." "..") } tupleset. */
-    static SimTupleset read(BufferedInputStream in) throws IOException {
+    static SimTupleset read(ByteBuffer in) throws IOException {
         while(true) {
-           int c = in.read();
+           int c = SimAtom.readByte(in);
            if (c<0) throw new IOException("Unexpected EOF");
            if (c>0 && c<=' ') continue; // skip whitespace
            if (c=='{') break; else throw new IOException("Expecting start of tupleset");
         }
         LinkedHashSet<SimTuple> list = new LinkedHashSet<SimTuple>();
         while(true) {
-           int c = in.read();
+           int c = SimAtom.readByte(in);
            if (c<0) throw new IOException("Unexpected EOF");
            if (c>0 && c<=' ') continue; // skip whitespace
            if (c=='}') break;
            if (c!='(') throw new IOException("Expecting start of tuple");
            list.add(SimTuple.read(in));
-           c = in.read();
+           c = SimAtom.readByte(in);
            if (c<0) throw new IOException("Unexpected EOF");
            if (c=='}') break;
            if (!(c<=' ')) throw new IOException("Expecting \')\' or white space after a tuple.");
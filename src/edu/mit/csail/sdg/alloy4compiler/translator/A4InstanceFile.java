@@ -0,0 +1,555 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.translator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import edu.mit.csail.sdg.alloy4.ConstMap;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorFatal;
+import edu.mit.csail.sdg.alloy4.ErrorSyntax;
+import edu.mit.csail.sdg.alloy4.Util;
+import edu.mit.csail.sdg.alloy4.XMLNode;
+import edu.mit.csail.sdg.alloy4.XMLParser;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
+
+/** This represents an instance file (either an XML file, or a binary instance file written by A4SolutionWriter)
+ * that has been read exactly once; what was read is never modified afterwards
+ * (except that the shared source files it refers to are read the first time they are needed).
+ *
+ * <p> The file is not converted into any particular A4Solution right away, since each user wants the solution expressed
+ * in terms of its own sigs (for example, the visualizer does not have the model, whereas the evaluator does);
+ * instead, each call to read(sigs) cheaply builds a new A4Solution from what was read.
+ *
+ * <p><b>Thread Safety:</b> Safe (though two threads must not call read() with sigs in common at the same time).
+ */
+
+public final class A4InstanceFile {
+
+    /** Mutable; stores what the instance file says about one sig, field, or skolem. */
+    static final class Decl {
+        /** Either "sig", "field", or "skolem". */
+        final String kind;
+        /** The label. */
+        String label = "";
+        /** The parent's ID (or "" if none was given). */
+        String parentID = "";
+        /** The attributes whose value is "yes" (such as "builtin" or "private"). */
+        final Set<String> flags = new HashSet<String>();
+        /** The atoms listed directly in this sig. */
+        final List<String> atoms = new ArrayList<String>();
+        /** The IDs of the sigs listed directly in this element (for a subset sig, these are its parents). */
+        final List<String> typeIDs = new ArrayList<String>();
+        /** Each list of sig IDs whose product is a part of the type of this field or skolem. */
+        final List<List<String>> types = new ArrayList<List<String>>();
+        /** The tuples; each tuple is stored as its arity, followed by the index of each atom in the file's list of atom labels. */
+        int[] tuples = new int[16];
+        /** The number of entries used in the tuples array. */
+        int size = 0;
+        /** Constructs an empty Decl of the given kind. */
+        Decl(String kind) { this.kind = kind; }
+        /** Returns true if this is of the given kind. */
+        boolean is(String kind) { return this.kind.equals(kind); }
+        /** Appends the given number to the tuples array. */
+        void add(int x) {
+            if (size==tuples.length) { int[] array = new int[size*2]; System.arraycopy(tuples, 0, array, 0, size); tuples=array; }
+            tuples[size++] = x;
+        }
+    }
+
+    /** Maps each Sig/Field/Skolem id to what the file says about it (this is never modified after construction). */
+    final Map<String,Decl> nmap = new LinkedHashMap<String,Decl>();
+
+    /** The label of every atom that appears in a tuple (each Decl refers to an atom by its index in this list). */
+    final List<String> labels = new ArrayList<String>();
+
+    /** Maps each label in the list of labels to its index (this is only used while reading an XML file). */
+    private final Map<String,Integer> label2index = new HashMap<String,Integer>();
+
+    /** The file that was read (or null if we read an XML element). */
+    private final File file;
+
+    /** The source files embedded in the file (this is empty if they were not requested); each shared source file is added when first requested. */
+    private final Map<String,String> sources = new LinkedHashMap<String,String>();
+
+    /** Maps each shared source file's name to the hash of its content (see A4SolutionWriter.SOURCES). */
+    private final Map<String,String> hashes = new LinkedHashMap<String,String>();
+
+    /** True if the shared source files have been added to the sources map. */
+    private boolean sharedLoaded = false;
+
+    /** The bitwidth and maxseq given in the file. */
+    int bitwidth, maxseq;
+
+    /** The original command and the original filename given in the file. */
+    String command = "", filename = "";
+
+    /** True if the file holds a metamodel (as opposed to a solution). */
+    private boolean metamodel = false;
+
+    //============================================================================================================================//
+
+    /** Helper method that returns the index of the given atom label in the list of atom labels (adding it to the list if needed). */
+    private int index(String label) {
+        Integer i = label2index.get(label);
+        if (i==null) { i = labels.size(); labels.add(label); label2index.put(label, i); }
+        return i;
+    }
+
+    /** Helper method that records the given source file (which is a shared source file if hash is not empty). */
+    private void source(String name, String content, String hash) {
+        if (hash.length()>0) hashes.put(name, hash); else sources.put(name, content);
+    }
+
+    /** Converts the given XML element (which must be a sig, field, or skolem) into a Decl. */
+    private Decl decl(XMLNode node) throws Err {
+        Decl ans = new Decl(node.getType());
+        ans.label = node.getAttribute("label");
+        ans.parentID = node.getAttribute("parentID");
+        for(Map.Entry<String,String> e: node.attributes()) if (e.getValue().equals("yes")) ans.flags.add(e.getKey());
+        for(XMLNode sub: node) {
+            if (sub.is("atom")) {
+                ans.atoms.add(sub.getAttribute("label"));
+            } else if (sub.is("type")) {
+                ans.typeIDs.add(sub.getAttribute("ID"));
+            } else if (sub.is("types")) {
+                List<String> ids = new ArrayList<String>();
+                for(XMLNode n: sub) if (n.is("type")) ids.add(n.getAttribute("ID"));
+                ans.types.add(ids);
+            } else if (sub.is("tuple")) {
+                int start = ans.size;
+                ans.add(0);
+                for(XMLNode n: sub) if (n.is("atom")) ans.add(index(n.getAttribute("label")));
+                if (ans.size==start+1) throw new ErrorFatal("Expecting: <tuple> <atom label=\"..\"/> .. </tuple>");
+                ans.tuples[start] = ans.size-start-1;
+            }
+        }
+        return ans;
+    }
+
+    /** Reads the XML element (which must be a sig, field, or skolem) whose START event was just returned by the parser, and converts it into a Decl. */
+    private Decl decl(XMLParser xml) throws IOException, Err {
+        Decl ans = new Decl(xml.getType());
+        ans.label = xml.getAttribute("label");
+        ans.parentID = xml.getAttribute("parentID");
+        for(int i=0, n=xml.getAttributeCount(); i<n; i++) if (xml.getAttributeValue(i).equals("yes")) ans.flags.add(xml.getAttributeName(i));
+        while(xml.next()==XMLParser.START) {
+            if (xml.is("atom")) {
+                ans.atoms.add(xml.getAttribute("label"));
+                xml.skip();
+            } else if (xml.is("type")) {
+                ans.typeIDs.add(xml.getAttribute("ID"));
+                xml.skip();
+            } else if (xml.is("types")) {
+                List<String> ids = new ArrayList<String>();
+                while(xml.next()==XMLParser.START) { if (xml.is("type")) ids.add(xml.getAttribute("ID")); xml.skip(); }
+                ans.types.add(ids);
+            } else if (xml.is("tuple")) {
+                int start = ans.size;
+                ans.add(0);
+                while(xml.next()==XMLParser.START) { if (xml.is("atom")) ans.add(index(xml.getAttribute("label"))); xml.skip(); }
+                if (ans.size==start+1) throw new ErrorFatal("Expecting: <tuple> <atom label=\"..\"/> .. </tuple>");
+                ans.tuples[start] = ans.size-start-1;
+            } else {
+                xml.skip();
+            }
+        }
+        return ans;
+    }
+
+    /** Helper method that reads a nonnegative number from a binary instance file. */
+    static int num(InputStream in) throws IOException {
+        int ans = 0;
+        for(int shift=0; shift<32; shift+=7) {
+            int b = in.read();
+            if (b<0) throw new IOException("Unexpected end of file.");
+            ans = ans | ((b & 0x7F) << shift);
+            if ((b & 0x80)==0) return ans;
+        }
+        throw new IOException("The file is malformed.");
+    }
+
+    /** Helper method that reads a string from a binary instance file. */
+    static String str(InputStream in) throws IOException {
+        byte[] array = new byte[num(in)];
+        for(int i=0; i<array.length;) {
+            int n = in.read(array, i, array.length-i);
+            if (n<0) throw new IOException("Unexpected end of file.");
+            i = i + n;
+        }
+        return new String(array, "UTF-8");
+    }
+
+    /** Helper method that reads an atom from a binary instance file, and returns its index in the list of atom labels. */
+    private int atom(InputStream in) throws IOException {
+        int i = num(in);
+        if (i==labels.size()) labels.add(str(in)); else if (i>labels.size()) throw new IOException("The file is malformed.");
+        return i;
+    }
+
+    /** Helper method that reads a sig, field, or skolem from a binary instance file, or returns null if we reached the end. */
+    private Decl decl(InputStream in) throws IOException {
+        int kind = in.read();
+        if (kind<0) throw new IOException("Unexpected end of file.");
+        if (kind==A4SolutionWriter.END) return null;
+        Decl ans;
+        if (kind==A4SolutionWriter.SIG) ans = new Decl("sig");
+        else if (kind==A4SolutionWriter.FIELD) ans = new Decl("field");
+        else if (kind==A4SolutionWriter.SKOLEM) ans = new Decl("skolem");
+        else throw new IOException("The file is malformed.");
+        ans.label = str(in);
+        String id = str(in);
+        if (kind==A4SolutionWriter.SIG) {
+            ans.parentID = str(in);
+            int mask = num(in);
+            for(int i=0; i<A4SolutionWriter.SIG_FLAGS.length; i++) if ((mask & (1<<i))!=0) ans.flags.add(A4SolutionWriter.SIG_FLAGS[i]);
+            for(int i=num(in); i>0; i--) ans.atoms.add(labels.get(atom(in)));
+            for(int i=num(in); i>0; i--) ans.typeIDs.add(str(in));
+        } else {
+            if (kind==A4SolutionWriter.FIELD) {
+                ans.parentID = str(in);
+                int mask = num(in);
+                for(int i=0; i<A4SolutionWriter.FIELD_FLAGS.length; i++) if ((mask & (1<<i))!=0) ans.flags.add(A4SolutionWriter.FIELD_FLAGS[i]);
+            }
+            int n = num(in), arity = (n>0 ? num(in) : 0);
+            if (n>0 && arity<1) throw new IOException("The file is malformed.");
+            for(; n>0; n--) { ans.add(arity); for(int i=0; i<arity; i++) ans.add(atom(in)); }
+            for(int i=num(in); i>0; i--) {
+                List<String> ids = new ArrayList<String>();
+                for(int j=num(in); j>0; j--) ids.add(str(in));
+                ans.types.add(ids);
+            }
+        }
+        if (nmap.put(id, ans)!=null) throw new IOException("ID "+id+" is repeated.");
+        return ans;
+    }
+
+    /** Helper method that opens the given file; if it is a binary instance file, we return the stream positioned right after its header
+     * (decompressing it if needed) and store the header's flags into flags[0] (unless flags==null), else we close the file and return null.
+     * @throws IOException if the file cannot be read, or if it is a binary instance file of a newer version
+     */
+    static InputStream openBinary(File file, int[] flags) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+        boolean ok = false;
+        try {
+            for(int i=0; i<A4SolutionWriter.MAGIC.length; i++) if (in.read() != (A4SolutionWriter.MAGIC[i] & 255)) return null;
+            int version = in.read(), bits = in.read();
+            if (version<0 || bits<0) return null;
+            if (version > A4SolutionWriter.VERSION) throw new IOException("This instance file was written by a newer version of Alloy.");
+            if (flags!=null) flags[0] = bits;
+            ok = true;
+            return ((bits & A4SolutionWriter.COMPRESSED)!=0) ? new BufferedInputStream(new InflaterInputStream(in), 65536) : in;
+        } finally {
+            if (!ok) Util.close(in);
+        }
+    }
+
+    //============================================================================================================================//
+
+    /** Reads the header and every sig, field, and skolem from the given XML element. */
+    private void readXML(XMLNode xml) throws IOException, Err {
+       // find <instance>..</instance>
+       if (!xml.is("alloy")) throw new ErrorSyntax("The XML file's root node must be <alloy> or <instance>.");
+       XMLNode inst = null;
+       for(XMLNode sub: xml) if (sub.is("instance")) { inst=sub; break; }
+       if (inst==null) throw new ErrorSyntax("The XML file must contain an <instance> element.");
+       bitwidth = Integer.parseInt(inst.getAttribute("bitwidth"));
+       maxseq = Integer.parseInt(inst.getAttribute("maxseq"));
+       command = inst.getAttribute("command");
+       filename = inst.getAttribute("filename");
+       metamodel = "yes".equals(inst.getAttribute("metamodel"));
+       for(XMLNode x:inst) {
+           String id=x.getAttribute("ID");
+           if (id.length()>0 && (x.is("field") || x.is("skolem") || x.is("sig"))) {
+              if (nmap.put(id, decl(x))!=null) throw new IOException("ID "+id+" is repeated.");
+           }
+       }
+       for(XMLNode sub: xml) if (sub.is("source")) source(sub.getAttribute("filename"), sub.getAttribute("content"), sub.getAttribute("hash"));
+    }
+
+    /** Reads the header and every sig, field, and skolem from the given XML parser, one element at a time
+     * (if wantSources==false, we stop right after the end of the first &lt;instance&gt; element, since the rest of the file is not needed).
+     */
+    private void readXML(XMLParser xml, boolean wantSources) throws IOException, Err {
+       // find <instance>..</instance>
+       xml.next();
+       if (!xml.is("alloy")) throw new ErrorSyntax("The XML file's root node must be <alloy> or <instance>.");
+       while(true) {
+          if (xml.next()!=XMLParser.START) throw new ErrorSyntax("The XML file must contain an <instance> element.");
+          if (xml.is("instance")) break;
+          if (xml.is("source") && wantSources) source(xml.getAttribute("filename"), xml.getAttribute("content"), xml.getAttribute("hash"));
+          xml.skip();
+       }
+       bitwidth = Integer.parseInt(xml.getAttribute("bitwidth"));
+       maxseq = Integer.parseInt(xml.getAttribute("maxseq"));
+       command = xml.getAttribute("command");
+       filename = xml.getAttribute("filename");
+       metamodel = "yes".equals(xml.getAttribute("metamodel"));
+       while(xml.next()==XMLParser.START) {
+           String id=xml.getAttribute("ID");
+           if (id.length()>0 && (xml.is("field") || xml.is("skolem") || xml.is("sig"))) {
+              if (nmap.put(id, decl(xml))!=null) throw new IOException("ID "+id+" is repeated.");
+           } else {
+              xml.skip();
+           }
+       }
+       if (wantSources) while(xml.next()==XMLParser.START) {
+          if (xml.is("source")) source(xml.getAttribute("filename"), xml.getAttribute("content"), xml.getAttribute("hash"));
+          xml.skip();
+       }
+    }
+
+    /** Reads the header and every sig, field, and skolem from the binary instance file positioned right after its header
+     * (if shared==true, then each source file is given by its hash).
+     */
+    private void readBinary(InputStream bin, boolean wantSources, boolean shared) throws IOException {
+       str(bin); // the build date
+       bitwidth = num(bin);
+       maxseq = num(bin);
+       command = str(bin);
+       filename = str(bin);
+       for(int i=num(bin); i>0; i--) { String name=str(bin), content=str(bin); if (wantSources) source(name, shared ? "" : content, shared ? content : ""); }
+       while(decl(bin)!=null) { }
+    }
+
+    /** Reads the given XML element (any shared source file it refers to cannot be found, since its directory is unknown). */
+    A4InstanceFile(XMLNode xml) throws Err {
+       file = null;
+       try {
+          readXML(xml);
+       } catch(Throwable ex) {
+          if (ex instanceof Err) throw ((Err)ex); else throw new ErrorFatal("Fatal error occured: "+ex, ex);
+       }
+       label2index.clear();
+    }
+
+    /** Reads the given file (which can be an XML file, or a binary instance file); the embedded source files are read only if wantSources==true. */
+    A4InstanceFile(File file, boolean wantSources) throws Err {
+       this.file = file;
+       InputStream bin = null;
+       XMLParser xml = null;
+       try {
+          int[] flags = new int[1];
+          bin = openBinary(file, flags);
+          if (bin!=null) readBinary(bin, wantSources, (flags[0] & A4SolutionWriter.SHARED_SOURCES)!=0); else readXML(xml = new XMLParser(file), wantSources);
+       } catch(Throwable ex) {
+          if (ex instanceof Err) throw ((Err)ex); else throw new ErrorFatal("Fatal error occured: "+ex, ex);
+       } finally {
+          Util.close(bin);
+          if (xml!=null) xml.close();
+       }
+       label2index.clear();
+    }
+
+    /** Helper method that overwrites the given file with the given bytes. */
+    private static void writeBytes(File file, byte[] content) throws IOException {
+       FileOutputStream out = new FileOutputStream(file);
+       boolean ok = false;
+       try { out.write(content); ok = true; } finally { if (!Util.close(out)) ok = false; }
+       if (!ok) throw new IOException("Cannot write to the file "+file);
+    }
+
+    /** Reads the given file (which can be an XML file, or a binary instance file), including the source files embedded in it. */
+    public A4InstanceFile(File file) throws Err { this(file, true); }
+
+    /** Helper method that returns the shared source file with the given hash, which must be in the directory next to the given instance file. */
+    private static File shared(File file, String hash) throws Err {
+       if (file==null) throw new ErrorFatal("Cannot find the shared source file "+hash+" since the instance was not read from a file.");
+       return new File(new File(file.getAbsoluteFile().getParentFile(), A4SolutionWriter.SOURCES), hash);
+    }
+
+    /** Helper method that reads every byte of the given file. */
+    static byte[] readBytes(File file) throws IOException {
+       FileInputStream in = new FileInputStream(file);
+       try {
+          long length = file.length();
+          if (length > Integer.MAX_VALUE) throw new IOException("The file "+file+" is too large.");
+          byte[] ans = new byte[(int)length];
+          for(int i=0; i<ans.length;) {
+             int n = in.read(ans, i, ans.length-i);
+             if (n<0) throw new IOException("Unexpected end of file in "+file);
+             i = i + n;
+          }
+          return ans;
+       } finally {
+          Util.close(in);
+       }
+    }
+
+    /** Returns the original filename of the main module, as given in the file. */
+    public String getOriginalFilename() { return filename; }
+
+    /** Returns the original command, as given in the file. */
+    public String getOriginalCommand() { return command; }
+
+    /** Returns true if the file holds a metamodel (as opposed to a solution). */
+    public boolean isMetamodel() { return metamodel; }
+
+    /** Returns an unmodifiable map from each source file's name to its content, as embedded in the file
+     * (each shared source file is read from the directory next to the instance file, the first time this method is called).
+     * @throws Err if a shared source file is missing or damaged
+     */
+    public synchronized ConstMap<String,String> getSources() throws Err {
+       if (!sharedLoaded) {
+          for(Map.Entry<String,String> e: hashes.entrySet()) {
+             File f = shared(file, e.getValue());
+             try {
+                byte[] content = readBytes(f);
+                if (!A4SolutionWriter.hash(content).equals(e.getValue())) throw new ErrorFatal("The shared source file "+f+" is damaged.");
+                sources.put(e.getKey(), new String(content, "UTF-8"));
+             } catch(IOException ex) {
+                throw new ErrorFatal("Cannot read the shared source file "+f+" ("+ex.getMessage()+")", ex);
+             }
+          }
+          sharedLoaded = true;
+       }
+       return ConstMap.make(sources);
+    }
+
+    /** Helper method that writes a nonnegative number in the binary instance format. */
+    private static void num(OutputStream out, int x) throws IOException {
+       while((x & ~0x7F) != 0) { out.write((x & 0x7F) | 0x80); x = x >>> 7; }
+       out.write(x);
+    }
+
+    /** Helper method that writes a string in the binary instance format. */
+    private static void str(OutputStream out, String x) throws IOException {
+       byte[] array = x.getBytes("UTF-8");
+       num(out, array.length);
+       out.write(array);
+    }
+
+    /** The pattern that matches each shared source file in an XML instance file. */
+    private static final Pattern SHARED = Pattern.compile("<source filename=\"([^\"]*)\" hash=\"([0-9a-f]+)\"/>");
+
+    /** Helper method that copies the given XML instance file, replacing each shared source file with its content. */
+    private static void copyXML(File from, File to, Map<String,String> content) throws IOException {
+       String text = new String(readBytes(from), "UTF-8");
+       StringBuilder sb = new StringBuilder(text.length());
+       Matcher m = SHARED.matcher(text);
+       int last = 0;
+       while(m.find()) {
+          String c = content.get(m.group(2));
+          if (c==null) continue;
+          sb.append(text, last, m.start()).append("<source filename=\"").append(m.group(1)).append("\" content=\"");
+          Util.encodeXML(sb, c);
+          sb.append("\"/>");
+          last = m.end();
+       }
+       sb.append(text, last, text.length());
+       writeBytes(to, sb.toString().getBytes("UTF-8"));
+    }
+
+    /** Helper method that copies the binary instance file positioned right after its header (with the given flags),
+     * replacing each shared source file with its content.
+     */
+    private static void copyBinary(InputStream bin, int flags, File to, Map<String,String> content) throws IOException {
+       OutputStream out = new BufferedOutputStream(new FileOutputStream(to), 65536);
+       Deflater zip = null;
+       boolean ok = false;
+       try {
+          out.write(A4SolutionWriter.MAGIC);
+          out.write(A4SolutionWriter.UNSHARED_VERSION);
+          out.write(flags & ~A4SolutionWriter.SHARED_SOURCES);
+          OutputStream body = out;
+          if ((flags & A4SolutionWriter.COMPRESSED)!=0) body = new DeflaterOutputStream(out, zip = new Deflater(Deflater.BEST_SPEED), 65536);
+          str(body, str(bin)); // the build date
+          num(body, num(bin)); // the bitwidth
+          num(body, num(bin)); // the maxseq
+          str(body, str(bin)); // the command
+          str(body, str(bin)); // the filename
+          int n = num(bin);
+          num(body, n);
+          for(; n>0; n--) {
+             str(body, str(bin));
+             String hash = str(bin), c = content.get(hash);
+             if (c==null) throw new IOException("The shared source file "+hash+" is unknown.");
+             str(body, c);
+          }
+          byte[] buf = new byte[65536];
+          for(int i; (i=bin.read(buf))>=0;) body.write(buf, 0, i);
+          if (zip!=null) ((DeflaterOutputStream)body).finish();
+          out.flush();
+          ok = true;
+       } finally {
+          if (zip!=null) zip.end();
+          if (!Util.close(out) && ok) throw new IOException("Cannot write to the file "+to);
+       }
+    }
+
+    /** Copies the instance file to the given file; every shared source file it refers to is written inline,
+     * so that the copy is self-contained (and can be read even if it is moved elsewhere).
+     * @throws Err if the instance was not read from a file, if a shared source file is missing or damaged, or if an error occurred
+     */
+    public void copyTo(File destination) throws Err {
+       if (file==null) throw new ErrorFatal("This instance was not read from a file.");
+       Map<String,String> content = new HashMap<String,String>();
+       if (hashes.size()>0) {
+          ConstMap<String,String> sources = getSources(); // this also checks that every shared source file is intact
+          for(Map.Entry<String,String> e: hashes.entrySet()) content.put(e.getValue(), sources.get(e.getKey()));
+       }
+       InputStream bin = null;
+       boolean ok = false;
+       try {
+          if (destination.getCanonicalFile().equals(file.getCanonicalFile())) {
+             ok = true; // so that we do not delete the original
+             if (content.size()==0) return; // the file is already a self-contained copy of itself
+             throw new IOException("the instance file cannot be copied onto itself.");
+          }
+          if (content.size()==0) {
+             byte[] bytes = readBytes(file);
+             writeBytes(destination, bytes);
+          } else {
+             int[] flags = new int[1];
+             bin = openBinary(file, flags);
+             if (bin==null) copyXML(file, destination, content); else copyBinary(bin, flags[0], destination, content);
+          }
+          ok = true;
+       } catch(IOException ex) {
+          throw new ErrorFatal("Error copying the instance file: "+ex.getMessage(), ex);
+       } finally {
+          Util.close(bin);
+          if (!ok) destination.delete(); // so that we do not leave a partial copy behind
+       }
+    }
+
+    /** Builds a new A4Solution from what was read.
+     *
+     * <p> The list of sigs, if not null, will be used as the sigs (and their fields) that we expect to exist;
+     * <br> if there's a sig or field X in the list but not in the file, then X's tupleset will be regarded as empty;
+     * <br> if there's a sig or field X in the file but not in the list, then X (and its value in the file) is added to the solution.
+     */
+    public A4Solution read(Iterable<Sig> sigs) throws Err { return A4SolutionReader.read(sigs, this); }
+}
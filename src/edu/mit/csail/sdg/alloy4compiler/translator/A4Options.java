@@ -38,19 +38,36 @@ public final class A4Options implements Serializable {
         private final String external;
         /** If not null, this is the set of options to use with the command-line solver. */
         private final String[] options;
+        /** True if the command-line solver reads the CNF from its standard input (rather than from a file named after the options). */
+        private final boolean stdin;
         /** Constructs a new SatSolver value. */
         private SatSolver(String id, String toString, String external, String[] options, boolean add) {
+            this(id, toString, external, options, false, add);
+        }
+        /** Constructs a new SatSolver value. */
+        private SatSolver(String id, String toString, String external, String[] options, boolean stdin, boolean add) {
             this.id=id;
             this.toString=toString;
             this.external=external;
+            this.stdin=stdin;
             this.options=new String[options!=null ? options.length : 0];
             for(int i=0; i<this.options.length; i++) this.options[i] = options[i];
             if (add) { synchronized(SatSolver.class) { values.add(this); } }
         }
         /** Constructs a new SatSolver value that uses a command-line solver; throws ErrorAPI if the ID is already in use. */
         public static SatSolver make(String id, String toString, String external, String[] options) throws ErrorAPI {
+            return make(id, toString, external, options, false);
+        }
+        /** Constructs a new SatSolver value that uses a command-line solver; throws ErrorAPI if the ID is already in use.
+         * <p> If stdin==true, the CNF is piped into the solver's standard input (so no CNF file is written),
+         * and the solver must write its answer to standard output in the SAT competition format ("s ..." and "v ..." lines).
+         * <p> Such a solver can enumerate solutions, but since it keeps no state between runs, each additional solution
+         * reruns it from scratch on the whole CNF (plus a clause that excludes each earlier solution);
+         * so enumerating N solutions costs about N full solves (and the CNF is kept in memory, or in a temporary file once it is large).
+         */
+        public static SatSolver make(String id, String toString, String external, String[] options, boolean stdin) throws ErrorAPI {
             if (id==null || toString==null || external==null) throw new ErrorAPI("NullPointerException in SatSolver.make()");
-            SatSolver ans = new SatSolver(id, toString, external, options, false);
+            SatSolver ans = new SatSolver(id, toString, external, options, stdin, false);
             synchronized(SatSolver.class) {
                for(SatSolver x: values)
                   if (x.id.equals(id))
@@ -70,6 +87,8 @@ public final class A4Options implements Serializable {
             for(int i=0; i<ans.length; i++) ans[i] = options[i];
             return ans;
         }
+        /** Returns true if the external command-line solver reads the CNF from its standard input. */
+        public boolean stdin() { return external!=null && stdin; }
         /** Returns the unique String for this value; it will be kept consistent in future versions. */
         public String id() { return id; }
         /** Returns the list of SatSolver values. */
@@ -162,6 +181,12 @@ public final class A4Options implements Serializable {
      */
     public String solverDirectory = "";
 
+    /** When this.solver is external and reads the CNF from its standard input, then this option specifies
+     * the number of seconds that each run of the solver may take before it is killed.
+     * <p> Default value is 0, which means there is no limit.
+     */
+    public int solverTimeout = 0;
+
     /** This specifies the directory where we may write temporary files to. */
     public String tempDirectory = System.getProperty("java.io.tmpdir");
 
@@ -181,6 +206,37 @@ public final class A4Options implements Serializable {
      *  that don't cause any overflows. */
     public boolean noOverflow = false;
 
+    /** This option specifies whether A4Solution.writeInstance() should write the compact binary format instead of XML
+     * (the binary format holds the same information, but is much smaller and faster to write and read for large instances).
+     * <p> Default value is false.
+     */
+    public boolean binaryInstance = false;
+
+    /** This option specifies whether the binary format (when chosen by binaryInstance) should also be compressed.
+     * <p> Default value is true.
+     */
+    public boolean compressInstance = true;
+
+    /** This option specifies whether A4Solution.writeInstance() should store each source file only once, in a content-addressed directory
+     * next to the instance file (so that writing many instances of the same model does not write the same source files over and over);
+     * the instance file then refers to each source file by the hash of its content (A4InstanceFile.copyTo() writes them back inline,
+     * so an exported copy is self-contained).
+     * <p> Default value is false.
+     */
+    public boolean shareSources = false;
+
+    /** This option specifies whether the CNF file (when the solver is SatSolver.CNF) should use the compact binary clause encoding
+     * described in WriteCNF instead of the usual DIMACS text (the file then ends with ".bcnf" instead of ".cnf").
+     * <p> Default value is false.
+     */
+    public boolean binaryCNF = false;
+
+    /** This option specifies whether the CNF file (when the solver is SatSolver.CNF) should be compressed in gzip format
+     * (the file name then has ".gz" appended to it).
+     * <p> Default value is false.
+     */
+    public boolean compressCNF = false;
+
     /** This option constrols how deep we unroll loops and unroll recursive predicate/function/macros (negative means it's disallowed) */
     public int unrolls = (-1);
 
@@ -194,11 +250,17 @@ public final class A4Options implements Serializable {
         x.coreMinimization = coreMinimization;
         x.solver = solver;
         x.solverDirectory = solverDirectory;
+        x.solverTimeout = solverTimeout;
         x.tempDirectory = tempDirectory;
         x.originalFilename = originalFilename;
         x.recordKodkod = recordKodkod;
         x.noOverflow = noOverflow;
         x.coreGranularity = coreGranularity;
+        x.binaryInstance = binaryInstance;
+        x.compressInstance = compressInstance;
+        x.shareSources = shareSources;
+        x.binaryCNF = binaryCNF;
+        x.compressCNF = compressCNF;
         return x;
     }
 }
@@ -22,8 +22,11 @@ import static edu.mit.csail.sdg.alloy4compiler.ast.Sig.STRING;
 import static edu.mit.csail.sdg.alloy4compiler.ast.Sig.UNIV;
 import static kodkod.engine.Solution.Outcome.UNSATISFIABLE;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -59,6 +62,7 @@ import kodkod.engine.config.Reporter;
 import kodkod.engine.fol2sat.TranslationRecord;
 import kodkod.engine.fol2sat.Translator;
 import kodkod.engine.satlab.SATFactory;
+import kodkod.engine.satlab.SATSolver;
 import kodkod.engine.ucore.HybridStrategy;
 import kodkod.engine.ucore.RCEStrategy;
 import kodkod.instance.Bounds;
@@ -275,7 +279,7 @@ public final class A4Solution {
         if (opt.solver.external()!=null) {
             String ext = opt.solver.external();
             if (opt.solverDirectory.length()>0 && ext.indexOf(File.separatorChar)<0) ext=opt.solverDirectory+File.separatorChar+ext;
-            try {
+            if (opt.solver.stdin()) solver.options().setSolver(PipeSolver.factory(ext, opt.solver.options(), opt.solverTimeout, opt.tempDirectory)); else try {
                 File tmp = File.createTempFile("tmp", ".cnf", new File(opt.tempDirectory));
                 tmp.deleteOnExit();
 	            solver.options().setSolver(SATFactory.externalFactory(ext, tmp.getAbsolutePath(), opt.solver.options()));
@@ -934,13 +938,18 @@ public final class A4Solution {
             return null;
          }
         if (opt.solver.equals(SatSolver.CNF)) {
-            File tmpCNF = File.createTempFile("tmp", ".cnf", new File(opt.tempDirectory));
+            File tmpCNF = File.createTempFile("tmp", (opt.binaryCNF ? ".bcnf" : ".cnf") + (opt.compressCNF ? ".gz" : ""), new File(opt.tempDirectory));
             String out = tmpCNF.getAbsolutePath();
-            solver.options().setSolver(WriteCNF.factory(out));
+            SATFactory cnf = WriteCNF.factory(out, opt.binaryCNF, opt.compressCNF);
+            solver.options().setSolver(cnf);
             try { sol = solver.solve(fgoal, bounds); } catch(WriteCNF.WriteCNFCompleted ex) { rep.resultCNF(out); return null; }
             // The formula is trivial (otherwise, it would have thrown an exception)
             // Since the user wants it in CNF format, we manually generate a trivially satisfiable (or unsatisfiable) CNF file.
-            Util.writeAll(out, sol.instance()!=null ? "p cnf 1 1\n1 0\n" : "p cnf 1 2\n1 0\n-1 0\n");
+            SATSolver trivial = cnf.instance();
+            trivial.addVariables(1);
+            trivial.addClause(new int[]{1});
+            if (sol.instance()==null) trivial.addClause(new int[]{-1});
+            try { trivial.solve(); } catch(WriteCNF.WriteCNFCompleted ex) { }
             rep.resultCNF(out);
             return null;
          }
@@ -1129,6 +1138,38 @@ public final class A4Solution {
         }
     }
 
+    /** Helper method to write out a full instance file; it is written in the compact binary format
+     * if the options that generated this solution asked for it (see A4Options.binaryInstance), else it is written in XML format.
+     * <p> If the options asked for it (see A4Options.shareSources), each source file is stored only once in a directory next to the instance file,
+     * and the instance file merely refers to it.
+     * <p> A4SolutionReader.read(sigs, file) and StaticInstanceReader.parseInstance(file) accept either format.
+     */
+    public void writeInstance(A4Reporter rep, String filename, Iterable<Func> macros, Map<String,String> sourceFiles) throws Err {
+        boolean shared = originalOptions.shareSources && sourceFiles!=null && sourceFiles.size()>0;
+        OutputStream out=null;
+        PrintWriter xml=null;
+        try {
+            if (shared) sourceFiles = A4SolutionWriter.shareSources(new File(filename).getAbsoluteFile().getParentFile(), sourceFiles);
+            if (!originalOptions.binaryInstance) {
+                xml=new PrintWriter(filename,"UTF-8");
+                A4SolutionWriter.writeInstance(rep, this, xml, macros, sourceFiles, shared);
+                if (!Util.close(xml)) throw new ErrorFatal("Error writing the solution XML file.");
+                return;
+            }
+            out=new BufferedOutputStream(new FileOutputStream(filename), 65536);
+            A4SolutionWriter.writeInstance(rep, this, out, macros, sourceFiles, originalOptions.compressInstance, shared);
+            if (!Util.close(out)) throw new ErrorFatal("Error writing the solution file.");
+        } catch(IOException ex) {
+            Util.close(out);
+            Util.close(xml);
+            throw new ErrorFatal("Error writing the solution file.", ex);
+        } catch(Err ex) {
+            Util.close(out);
+            Util.close(xml);
+            throw ex;
+        }
+    }
+
     /** Helper method to write out a full XML file. */
     public void writeXML(PrintWriter writer, Iterable<Func> macros, Map<String,String> sourceFiles) throws Err {
         A4SolutionWriter.writeInstance(null, this, writer, macros, sourceFiles);
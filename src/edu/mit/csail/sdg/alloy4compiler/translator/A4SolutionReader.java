@@ -21,7 +21,9 @@ import static edu.mit.csail.sdg.alloy4compiler.ast.Sig.SIGINT;
 import static edu.mit.csail.sdg.alloy4compiler.ast.Sig.STRING;
 import static edu.mit.csail.sdg.alloy4compiler.ast.Sig.UNIV;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -31,15 +33,15 @@ import java.util.Set;
 import java.util.TreeSet;
 
 import kodkod.ast.Relation;
-import kodkod.instance.Tuple;
 import kodkod.instance.TupleFactory;
 import kodkod.instance.TupleSet;
+import kodkod.instance.Universe;
 import edu.mit.csail.sdg.alloy4.Err;
 import edu.mit.csail.sdg.alloy4.ErrorFatal;
-import edu.mit.csail.sdg.alloy4.ErrorSyntax;
 import edu.mit.csail.sdg.alloy4.Pos;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.XMLNode;
+import edu.mit.csail.sdg.alloy4.XMLParser;
 import edu.mit.csail.sdg.alloy4compiler.ast.Attr;
 import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
 import edu.mit.csail.sdg.alloy4compiler.ast.ExprVar;
@@ -47,8 +49,13 @@ import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.PrimSig;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.SubsetSig;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4InstanceFile.Decl;
 
-/** This helper class contains helper routines for reading an A4Solution object from an XML file. */
+/** This helper class contains helper routines for reading an A4Solution object from an XML file
+ * (or from a file in the compact binary format written by A4SolutionWriter).
+ *
+ * <p> The file itself is read by A4InstanceFile; this class merely converts what was read into an A4Solution.
+ */
 
 public final class A4SolutionReader {
 
@@ -64,8 +71,14 @@ public final class A4SolutionReader {
     /** Stores the set of STRING atoms. */
     private final TreeSet<String> strings = new TreeSet<String>();
 
-    /** Maps each Sig/Field/Skolem id to an XMLNode. */
-    private final Map<String,XMLNode> nmap = new LinkedHashMap<String,XMLNode>();
+    /** The instance file that we are converting into an A4Solution. */
+    private final A4InstanceFile file;
+
+    /** Maps each Sig/Field/Skolem id to what the file says about it. */
+    private final Map<String,Decl> nmap;
+
+    /** Maps each index in the file's list of labels to the atom's index in the Kodkod universe (or null if not computed yet). */
+    private int[] label2universe = null;
 
     /** Maps each Sig id to a Sig. */
     private final Map<String,Sig> id2sig = new LinkedHashMap<String,Sig>();
@@ -79,11 +92,11 @@ public final class A4SolutionReader {
     /** The Kodkod tupleset factory. */
     private final TupleFactory factory;
 
-    /** Helper method that returns true if the given attribute value in the given XML node is equal to "yes" */
-    private static boolean yes(XMLNode node, String attr) { return node.getAttribute(attr).equals("yes"); }
+    /** Helper method that returns true if the given attribute value in the given node is equal to "yes" */
+    private static boolean yes(Decl node, String attr) { return node.flags.contains(attr); }
 
-    /** Helper method that returns an XML node's "label" attribute. */
-    private static String label(XMLNode node) { return node.getAttribute("label"); }
+    /** Helper method that returns a node's label. */
+    private static String label(Decl node) { return node.label; }
 
     /** Helper method that returns true if the two iterables contain the same elements (though possibly in different order) */
     private static boolean sameset(Iterable<Sig> a, Iterable<Sig> b) {
@@ -93,34 +106,34 @@ public final class A4SolutionReader {
         return tmp.isEmpty();
     }
 
-    /** Parse tuple. */
-    private Tuple parseTuple(XMLNode tuple, int arity) throws Err {
-        Tuple ans = null;
+    //============================================================================================================================//
+
+    /** Parse tuples. */
+    private TupleSet parseTuples(Decl tuples, int arity) throws Err {
         try {
-            for(XMLNode sub:tuple) if (sub.is("atom")) {
-                Tuple x = factory.tuple(sub.getAttribute("label"));
-                if (ans==null) ans=x; else ans=ans.product(x);
+            TupleSet ans = factory.noneOf(arity);
+            Universe universe = factory.universe();
+            if (label2universe==null) {
+                label2universe = new int[file.labels.size()];
+                for(int i=0; i<label2universe.length; i++) label2universe[i] = universe.index(file.labels.get(i));
+            }
+            for(int i=0, n=universe.size(); i<tuples.size; i=i+1+tuples.tuples[i]) {
+                if (tuples.tuples[i]!=arity) throw new ErrorFatal("Expecting: tuple of arity "+arity+" but got tuple of arity "+tuples.tuples[i]);
+                int index = 0;
+                for(int j=1; j<=arity; j++) index = index*n + label2universe[tuples.tuples[i+j]];
+                ans.add(factory.tuple(arity, index));
             }
-            if (ans==null) throw new ErrorFatal("Expecting: <tuple> <atom label=\"..\"/> .. </tuple>");
-            if (ans.arity()!=arity) throw new ErrorFatal("Expecting: tuple of arity "+arity+" but got tuple of arity "+ans.arity());
             return ans;
         } catch(Throwable ex) {
             throw new ErrorFatal("Expecting: <tuple> <atom label=\"..\"/> .. </tuple>", ex);
         }
     }
 
-    /** Parse tuples. */
-    private TupleSet parseTuples(XMLNode tuples, int arity) throws Err {
-        TupleSet ans = factory.noneOf(arity);
-        for(XMLNode sub:tuples) if (sub.is("tuple")) ans.add(parseTuple(sub, arity));
-        return ans;
-    }
-
     /** Parse sig/set. */
     private Sig parseSig(String id, int depth) throws IOException, Err {
         Sig ans = id2sig.get(id);
         if (ans!=null) return ans;
-        XMLNode node = nmap.get(id);
+        Decl node = nmap.get(id);
         if (node==null) throw new IOException("Unknown SigID "+id+" encountered.");
         if (!node.is("sig")) throw new IOException("ID "+id+" is not a sig.");
         String label   = label(node);
@@ -142,15 +155,14 @@ public final class A4SolutionReader {
         if (depth > nmap.size()) throw new IOException("Sig "+label+" (id="+id+") is in a cyclic inheritance relationship.");
         List<Sig> parents = null;
         TupleSet ts = factory.noneOf(1);
-        for(XMLNode sub:node) {
-           if (sub.is("atom")) { ts.add(factory.tuple(sub.getAttribute("label"))); continue; }
-           if (!sub.is("type")) continue;
-           Sig parent = parseSig(sub.getAttribute("ID"), depth+1);
+        for(String atom: node.atoms) ts.add(factory.tuple(atom));
+        for(String parentID: node.typeIDs) {
+           Sig parent = parseSig(parentID, depth+1);
            if (parents==null) parents = new ArrayList<Sig>();
            parents.add(parent);
         }
         if (parents==null) {
-           String parentID = node.getAttribute("parentID");
+           String parentID = node.parentID;
            Sig parent = parseSig(parentID, depth+1);
            if (!(parent instanceof PrimSig)) throw new IOException("Parent of sig "+label+" (id="+id+") must not be a subset sig.");
            for(Expr choice: choices)
@@ -183,11 +195,10 @@ public final class A4SolutionReader {
     }
 
     /** Parse type. */
-    private Expr parseType(XMLNode node) throws IOException, Err {
+    private Expr parseType(List<String> ids) throws IOException, Err {
         Expr expr = null;
-        if (!node.is("types")) throw new IOException("<types>...</type> expected");
-        for(XMLNode n:node) if (n.is("type")) {
-            Sig sig=parseSig(n.getAttribute("ID"), 0);
+        for(String id: ids) {
+            Sig sig=parseSig(id, 0);
             if (expr==null) expr=sig; else expr=expr.product(sig);
         }
         if (expr==null) throw new IOException("<type ID=../> expected");
@@ -196,17 +207,17 @@ public final class A4SolutionReader {
 
     /** Parse field. */
     private Field parseField(String id) throws IOException, Err {
-       final XMLNode node = nmap.get(id);
+       final Decl node = nmap.get(id);
        if (node==null) throw new IOException("Unknown FieldID "+id+" encountered.");
        if (!node.is("field")) throw new IOException("ID "+id+" is not a field.");
        String label  = label(node);
        Pos isPrivate = yes(node,"private") ? Pos.UNKNOWN : null;
        Pos isMeta = yes(node,"meta") ? Pos.UNKNOWN : null;
        Expr type = null;
-       for(XMLNode sub:node) if (sub.is("types")) { Expr t=parseType(sub); if (type==null) type=t; else type=type.plus(t); }
+       for(List<String> sub:node.types) { Expr t=parseType(sub); if (type==null) type=t; else type=type.plus(t); }
        int arity;
        if (type==null || (arity=type.type().arity())<2) throw new IOException("Field "+label+" is maltyped.");
-       String parentID = node.getAttribute("parentID");
+       String parentID = node.parentID;
        Sig parent = id2sig.get(parentID);
        if (parent==null) throw new IOException("ID "+parentID+" is not a sig.");
        Field field = null;
@@ -221,12 +232,12 @@ public final class A4SolutionReader {
 
     /** Parse skolem. */
     private ExprVar parseSkolem(String id) throws IOException, Err {
-       final XMLNode node = nmap.get(id);
+       final Decl node = nmap.get(id);
        if (node==null) throw new IOException("Unknown ID "+id+" encountered.");
        if (!node.is("skolem")) throw new IOException("ID "+id+" is not a skolem.");
        String label = label(node);
        Expr type = null;
-       for(XMLNode sub:node) if (sub.is("types")) { Expr t=parseType(sub); if (type==null) type=t; else type=type.plus(t); }
+       for(List<String> sub:node.types) { Expr t=parseType(sub); if (type==null) type=t; else type=type.plus(t); }
        int arity;
        if (type==null || (arity=type.type().arity())<1) throw new IOException("Skolem "+label+" is maltyped.");
        ExprVar var = ExprVar.make(Pos.UNKNOWN, label, type.type());
@@ -235,46 +246,33 @@ public final class A4SolutionReader {
        return var;
     }
 
-    /** Parse everything. */
-    private A4SolutionReader(Iterable<Sig> sigs, XMLNode xml) throws IOException, Err {
+    /** Convert everything read from the given instance file into a new A4Solution. */
+    private A4SolutionReader(Iterable<Sig> sigs, A4InstanceFile file) throws IOException, Err {
+       this.file = file;
+       this.nmap = file.nmap;
        for(Sig s:sigs) if (!s.builtin) {
            allsigs.add(s);
            choices.add(s);
            for(Field f:s.getFields()) choices.add(f);
        }
-       // find <instance>..</instance>
-       if (!xml.is("alloy")) throw new ErrorSyntax("The XML file's root node must be <alloy> or <instance>.");
-       XMLNode inst = null;
-       for(XMLNode sub: xml) if (sub.is("instance")) { inst=sub; break; }
-       if (inst==null) throw new ErrorSyntax("The XML file must contain an <instance> element.");
+       final int bitwidth = file.bitwidth;
        // set up the basic values of the A4Solution object
-       final int bitwidth = Integer.parseInt(inst.getAttribute("bitwidth"));
-       final int maxseq = Integer.parseInt(inst.getAttribute("maxseq"));
        final int max = Util.max(bitwidth), min = Util.min(bitwidth);
        if (bitwidth>=1 && bitwidth<=30) for(int i=min; i<=max; i++) { atoms.add(Integer.toString(i)); }
-       for(XMLNode x:inst) {
-           String id=x.getAttribute("ID");
-           if (id.length()>0 && (x.is("field") || x.is("skolem") || x.is("sig"))) {
-              if (nmap.put(id, x)!=null) throw new IOException("ID "+id+" is repeated.");
-              if (x.is("sig")) {
-                  boolean isString = STRING.label.equals(label(x)) && yes(x, "builtin");
-                  for(XMLNode y:x) if (y.is("atom")) {
-                      String attr = y.getAttribute("label");
-                      atoms.add(attr);
-                      if (isString) strings.add(attr);
-                  }
-              }
-           }
+       for(Decl x:nmap.values()) if (x.is("sig")) {
+           boolean isString = STRING.label.equals(label(x)) && yes(x, "builtin");
+           atoms.addAll(x.atoms);
+           if (isString) strings.addAll(x.atoms);
        }
        // create the A4Solution object
        A4Options opt = new A4Options();
-       opt.originalFilename = inst.getAttribute("filename");
-       sol = new A4Solution(inst.getAttribute("command"), bitwidth, maxseq, strings, atoms, null, opt, 1);
+       opt.originalFilename = file.filename;
+       sol = new A4Solution(file.command, bitwidth, file.maxseq, strings, atoms, null, opt, 1);
        factory = sol.getFactory();
        // parse all the sigs, fields, and skolems
-       for(Map.Entry<String,XMLNode> e:nmap.entrySet()) if (e.getValue().is("sig")) parseSig(e.getKey(), 0);
-       for(Map.Entry<String,XMLNode> e:nmap.entrySet()) if (e.getValue().is("field")) parseField(e.getKey());
-       for(Map.Entry<String,XMLNode> e:nmap.entrySet()) if (e.getValue().is("skolem")) parseSkolem(e.getKey());
+       for(Map.Entry<String,Decl> e:nmap.entrySet()) if (e.getValue().is("sig")) parseSig(e.getKey(), 0);
+       for(Map.Entry<String,Decl> e:nmap.entrySet()) if (e.getValue().is("field")) parseField(e.getKey());
+       for(Map.Entry<String,Decl> e:nmap.entrySet()) if (e.getValue().is("skolem")) parseSkolem(e.getKey());
        for(Sig s:allsigs) if (!s.builtin) {
           TupleSet ts = expr2ts.remove(s);
           if (ts==null) ts = factory.noneOf(1); // If the sig was NOT mentioned in the XML file...
@@ -297,6 +295,17 @@ public final class A4SolutionReader {
        sol.solve(null, null, null, false);
     }
 
+    /** Convert everything read from the given instance file into a new A4Solution (see A4InstanceFile.read() for how the list of sigs is used). */
+    static A4Solution read(Iterable<Sig> sigs, A4InstanceFile file) throws Err {
+       try {
+          if (sigs == null) sigs = new ArrayList<Sig>();
+          A4SolutionReader x = new A4SolutionReader(sigs, file);
+          return x.sol;
+       } catch(Throwable ex) {
+          if (ex instanceof Err) throw ((Err)ex); else throw new ErrorFatal("Fatal error occured: "+ex, ex);
+       }
+    }
+
     /** Parse the XML element into an AlloyInstance.
      *
      * <p> The list of sigs, if not null, will be used as the sigs (and their fields) that we expect to exist;
@@ -304,12 +313,52 @@ public final class A4SolutionReader {
      * <br> if there's a sig or field X in the XML but not in the list, then X (and its value in XML file) is added to the solution.
      */
     public static A4Solution read(Iterable<Sig> sigs, XMLNode xml) throws Err {
+       return read(sigs, new A4InstanceFile(xml));
+    }
+
+    /** Parse the given file (which can be an XML file, or a binary instance file) into an AlloyInstance.
+     * <p> The list of sigs is used in the same way as read(sigs, xml).
+     * <p> If the same file is needed more than once (or its source files are needed too), use A4InstanceFile instead so that it is read only once.
+     */
+    public static A4Solution read(Iterable<Sig> sigs, File file) throws Err {
+       return read(sigs, new A4InstanceFile(file, false));
+    }
+
+    /** Returns true if the given file is a binary instance file (as opposed to an XML file). */
+    public static boolean isBinary(File file) {
        try {
-          if (sigs == null) sigs = new ArrayList<Sig>();
-          A4SolutionReader x = new A4SolutionReader(sigs, xml);
-          return x.sol;
-       } catch(Throwable ex) {
-          if (ex instanceof Err) throw ((Err)ex); else throw new ErrorFatal("Fatal error occured: "+ex, ex);
+          InputStream bin = A4InstanceFile.openBinary(file, null);
+          Util.close(bin);
+          return bin!=null;
+       } catch(IOException ex) {
+          return false;
        }
     }
+
+    /** Returns true if the given file is an XML file that holds a metamodel (as opposed to a solution). */
+    public static boolean isMetamodel(File file) {
+       XMLParser xml = null;
+       try {
+          xml = new XMLParser(file); // if the file is a binary instance file, the parser will simply report that it is malformed
+          if (xml.next()!=XMLParser.START || !xml.is("alloy")) return false;
+          while(xml.next()==XMLParser.START) {
+             if (xml.is("instance")) return "yes".equals(xml.getAttribute("metamodel"));
+             xml.skip();
+          }
+          return false;
+       } catch(IOException ex) {
+          return false;
+       } finally {
+          if (xml!=null) xml.close();
+       }
+    }
+
+    /** Reads the source files embedded in the given instance file (which can be an XML file, or a binary instance file)
+     * and adds them to the given map; returns the filename of the main module.
+     */
+    public static String readSources(File file, Map<String,String> sources) throws Err {
+       A4InstanceFile x = new A4InstanceFile(file);
+       sources.putAll(x.getSources());
+       return x.getOriginalFilename();
+    }
 }
@@ -15,11 +15,22 @@
 
 package edu.mit.csail.sdg.alloy4compiler.translator;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import edu.mit.csail.sdg.alloy4.A4Reporter;
 import edu.mit.csail.sdg.alloy4.ConstList;
 import edu.mit.csail.sdg.alloy4.Err;
@@ -35,11 +46,58 @@ import edu.mit.csail.sdg.alloy4compiler.ast.Type;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.PrimSig;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.SubsetSig;
+import kodkod.instance.Tuple;
 
-/** This helper class contains helper routines for writing an A4Solution object out as an XML file. */
+/** This helper class contains helper routines for writing an A4Solution object out as an XML file
+ * (or as a file in the compact binary format described below).
+ *
+ * <p> The binary format holds the same information as the XML format, in the same order:
+ * <br> (1) the 4 bytes 0x89 'A' '4' 'I', then 1 byte for the format version, then 1 byte of flags
+ * (bit 0 means the rest is compressed by zlib; bit 1 means the source files are in the shared source directory)
+ * <br> (2) the build date, bitwidth, maxseq, original command, and original filename
+ * <br> (3) the number of source files, followed by the filename and content (or the hash of the content) of each source file
+ * <br> (4) each sig, field, and skolem (as a 1-byte kind followed by its attributes, atoms, tuples, and types), then a 0 byte.
+ *
+ * <p> Every number is written as an unsigned varint (7 bits per byte, least significant group first, high bit set on all but the last byte);
+ * every string is written as the number of bytes in its UTF-8 encoding, followed by those bytes.
+ * <br> Each atom is written as its index in the order that atoms are first written;
+ * when an atom is written for the first time, its index is followed by its label.
+ * <br> A set of tuples is written as the number of tuples; if nonzero, it is followed by the arity, then every atom of every tuple.
+ *
+ * <p> If the source files are shared, each one is stored in the subdirectory SOURCES of the instance file's directory,
+ * in a file whose name is the hexadecimal SHA-1 hash of its content's UTF-8 encoding; in XML format, each &lt;source&gt; element
+ * then has a "hash" attribute instead of a "content" attribute.
+ */
 
 public final class A4SolutionWriter {
 
+    /** The 4 bytes that every binary instance file begins with. */
+    static final byte[] MAGIC = new byte[] { (byte)0x89, 'A', '4', 'I' };
+
+    /** The version of the binary format written by this class (files without SHARED_SOURCES are marked as UNSHARED_VERSION instead). */
+    static final int VERSION = 2;
+
+    /** The version that files without SHARED_SOURCES are marked as (since their format did not change, older readers can still read them). */
+    static final int UNSHARED_VERSION = 1;
+
+    /** The bit in the binary header's flags that indicates the rest of the file is compressed by zlib. */
+    static final int COMPRESSED = 1;
+
+    /** The bit in the binary header's flags that indicates the source files are given by their hash (this was added in version 2). */
+    static final int SHARED_SOURCES = 2;
+
+    /** The name of the directory (next to the instance files) that stores the shared source files. */
+    public static final String SOURCES = "sources";
+
+    /** The kinds of records in the binary format. */
+    static final int END = 0, SIG = 1, FIELD = 2, SKOLEM = 3;
+
+    /** The sig attributes that are written as bit 0, bit 1, bit 2... of a sig's flags in the binary format (in the same order as the XML format). */
+    static final String[] SIG_FLAGS = new String[] {"builtin", "abstract", "one", "lone", "some", "private", "meta", "exact", "enum"};
+
+    /** The field attributes that are written as bit 0, bit 1... of a field's flags in the binary format. */
+    static final String[] FIELD_FLAGS = new String[] {"private", "meta"};
+
     /** Maps each Sig, Field, and Skolem to a unique id. */
     private final IdentityHashMap<Expr,String> map = new IdentityHashMap<Expr,String>();
 
@@ -52,9 +110,35 @@ public final class A4SolutionWriter {
     /** This is the list of toplevel sigs. */
     private final List<PrimSig> toplevels = new ArrayList<PrimSig>();
 
-    /** This is the output file. */
+    /** This is the output file if we are writing XML; else it is null. */
     private final PrintWriter out;
 
+    /** This is the output file if we are writing the binary format; else it is null. */
+    private final OutputStream bin;
+
+    /** The bytes that have not yet been written to the binary output file. */
+    private final byte[] buf;
+
+    /** The number of bytes in buf that have not yet been written to the binary output file. */
+    private int len = 0;
+
+    /** If nonnull, it is the first error that occurred while writing to the binary output file. */
+    private IOException error = null;
+
+    /** Maps each Kodkod atom already written to the binary output file to its index. */
+    private final Map<Object,Integer> atoms = new HashMap<Object,Integer>();
+
+    /** The text that has not yet been written to the XML output file (or null if we are writing the binary format).
+     * <p> Everything is first appended here, then handed to the PrintWriter in large blocks, since every call on a PrintWriter is synchronized.
+     */
+    private final StringBuilder xml;
+
+    /** The buffer used to copy the text from xml to the XML output file (or null if we are writing the binary format). */
+    private final char[] chars;
+
+    /** Maps each Kodkod atom already written to the XML output file to its XML-encoded " &lt;atom label=".."/&gt;" element. */
+    private final Map<Object,String> atomXML = new HashMap<Object,String>();
+
     /** Helper method that returns a unique id for the given Sig, Field, or Skolem. */
     private String map(Expr obj) {
        String id = map.get(obj);
@@ -68,42 +152,126 @@ public final class A4SolutionWriter {
        if (x!=Sig.UNIV) return x.children(); else return toplevels;
     }
 
-    /** Write the given Expr and its Type. */
-    private boolean writeExpr(String prefix, Expr expr) throws Err {
+    //============================================================================================================================//
+
+    /** Write one byte to the binary output file (remembering the first error, which the caller will report). */
+    private void b(int x) {
+       if (len == buf.length) flush();
+       buf[len++] = (byte)x;
+    }
+
+    /** Write a nonnegative number to the binary output file. */
+    private void num(int x) {
+       while((x & ~0x7F) != 0) { b((x & 0x7F) | 0x80); x = x >>> 7; }
+       b(x);
+    }
+
+    /** Write a string to the binary output file. */
+    private void str(String x) {
+       byte[] array;
+       try { array = x.getBytes("UTF-8"); } catch(IOException ex) { if (error==null) error=ex; return; }
+       num(array.length);
+       if (array.length > buf.length-len) flush();
+       if (array.length > buf.length-len) { for(int i=0; i<array.length; i++) b(array[i]); return; }
+       System.arraycopy(array, 0, buf, len, array.length);
+       len += array.length;
+    }
+
+    /** Write a Kodkod atom to the binary output file (if it is the first time, its label follows its index). */
+    private void atom(Object x) {
+       Integer i = atoms.get(x);
+       if (i!=null) { num(i); return; }
+       num(atoms.size());
+       str(sol.atom2name(x));
+       atoms.put(x, atoms.size());
+    }
+
+    /** Returns the XML-encoded " &lt;atom label=".."/&gt;" element for the given Kodkod atom (computing it only the first time). */
+    private String atomXML(Object x) {
+       String ans = atomXML.get(x);
+       if (ans==null) {
+          StringBuilder sb = new StringBuilder();
+          Util.encodeXMLs(sb, " <atom label=\"", sol.atom2name(x), "\"/>");
+          ans = sb.toString();
+          atomXML.put(x, ans);
+       }
+       return ans;
+    }
+
+    /** Hand the pending text to the XML output file (but if force==false, only do it once enough text has accumulated). */
+    private void spill(boolean force) {
+       int n = xml.length();
+       if (n==0 || (!force && n<chars.length)) return;
+       for(int i=0; i<n; i=i+chars.length) {
+          int m = Math.min(chars.length, n-i);
+          xml.getChars(i, i+m, chars, 0);
+          out.write(chars, 0, m);
+       }
+       xml.setLength(0);
+    }
+
+    /** Write the pending bytes to the binary output file. */
+    private void flush() {
+       if (len>0 && error==null) try { bin.write(buf, 0, len); } catch(IOException ex) { error=ex; }
+       len = 0;
+    }
+
+    //============================================================================================================================//
+
+    /** Returns the type of the given Expr, grown (if necessary) until the value of the Expr is fully contained inside it. */
+    private Type type(Expr expr) throws Err {
+       return sol==null ? expr.type() : type(sol, expr);
+    }
+
+    /** Returns the type of the given Expr, grown (if necessary) until the value of the Expr in the given solution is fully contained inside it.
+     * <p> This is the type that the instance file records for a sig, field, or skolem; so anyone that converts a solution directly
+     * (rather than reading it back from an instance file) should call this method to get the same type.
+     */
+    public static Type type(A4Solution sol, Expr expr) throws Err {
        Type type = expr.type();
-       if (!type.hasTuple()) return false;
-       if (sol!=null) {
-          // Check to see if the tupleset is *really* fully contained inside "type".
-          // If not, then grow "type" until the tupleset is fully contained inside "type"
-          Expr sum = type.toExpr();
-          int lastSize = (-1);
-          while(true) {
-             A4TupleSet ts = (A4TupleSet)(sol.eval(expr.minus(sum)));
-             int n = ts.size();
-             if (n<=0) break;
-             if (lastSize>0 && lastSize<=n) throw new ErrorFatal("An internal error occurred in the evaluator.");
-             lastSize=n;
-             Type extra = ts.iterator().next().type();
-             type = type.merge(extra);
-             sum = sum.plus(extra.toExpr());
+       // Check to see if the tupleset is *really* fully contained inside "type".
+       // If not, then grow "type" until the tupleset is fully contained inside "type"
+       Expr sum = type.toExpr();
+       int lastSize = (-1);
+       while(true) {
+          A4TupleSet ts = (A4TupleSet)(sol.eval(expr.minus(sum)));
+          int n = ts.size();
+          if (n<=0) break;
+          if (lastSize>0 && lastSize<=n) throw new ErrorFatal("An internal error occurred in the evaluator.");
+          lastSize=n;
+          Type extra = ts.iterator().next().type();
+          type = type.merge(extra);
+          sum = sum.plus(extra.toExpr());
+       }
+       return type;
+    }
+
+    /** Write the given tuples (unless ts==null), followed by the given type. */
+    private void writeTuplesAndType(A4TupleSet ts, Type type) throws Err {
+       if (out!=null) {
+          if (ts!=null) for(Tuple t: ts.kodkodTuples()) {
+             xml.append("   <tuple>");
+             for(int i=0, n=t.arity(); i<n; i++) xml.append(atomXML(t.atom(i)));
+             xml.append(" </tuple>\n");
+             spill(false);
           }
-          // Now, write out the tupleset
-          A4TupleSet ts = (A4TupleSet)(sol.eval(expr));
-          for(A4Tuple t: ts) {
-             if (prefix.length()>0) { out.print(prefix); prefix=""; }
-             out.print("   <tuple>");
-             for(int i=0; i<t.arity(); i++) Util.encodeXMLs(out, " <atom label=\"", t.atom(i), "\"/>");
-             out.print(" </tuple>\n");
+          for(List<PrimSig> ps: type.fold()) {
+             xml.append("   <types>");
+             for(PrimSig sig: ps) Util.encodeXMLs(xml, " <type ID=\"", map(sig), "\"/>");
+             xml.append(" </types>\n");
           }
+          spill(false);
+       } else {
+          int n = (ts==null ? 0 : ts.size());
+          num(n);
+          if (n>0) {
+             num(ts.arity());
+             for(Tuple t: ts.kodkodTuples()) for(int i=0, arity=t.arity(); i<arity; i++) atom(t.atom(i));
+          }
+          List<List<PrimSig>> fold = type.fold();
+          num(fold.size());
+          for(List<PrimSig> ps: fold) { num(ps.size()); for(PrimSig sig: ps) str(map(sig)); }
        }
-       // Now, write out the type
-       if (prefix.length()>0) return false;
-       for(List<PrimSig> ps: type.fold()) {
-          out.print("   <types>");
-          for(PrimSig sig: ps) Util.encodeXMLs(out, " <type ID=\"", map(sig), "\"/>");
-          out.print(" </types>\n");
-       }
-       return true;
     }
 
     /** Write the given Sig. */
@@ -116,28 +284,39 @@ public final class A4SolutionWriter {
           if (ts2==null) ts2 = ts3; else ts2 = ts2.plus(ts3);
        }
        if (rep!=null) rep.write(x);
-       Util.encodeXMLs(out, "\n<sig label=\"", x.label, "\" ID=\"", map(x));
-       if (x instanceof PrimSig && x!=Sig.UNIV) Util.encodeXMLs(out, "\" parentID=\"", map(((PrimSig)x).parent));
-       if (x.builtin) out.print("\" builtin=\"yes");
-       if (x.isAbstract!=null) out.print("\" abstract=\"yes");
-       if (x.isOne!=null) out.print("\" one=\"yes");
-       if (x.isLone!=null) out.print("\" lone=\"yes");
-       if (x.isSome!=null) out.print("\" some=\"yes");
-       if (x.isPrivate!=null) out.print("\" private=\"yes");
-       if (x.isMeta!=null) out.print("\" meta=\"yes");
-       if (x instanceof SubsetSig && ((SubsetSig)x).exact) out.print("\" exact=\"yes");
-       if (x.isEnum!=null) out.print("\" enum=\"yes");
-       out.print("\">\n");
+       String id = map(x), parentID = (x instanceof PrimSig && x!=Sig.UNIV) ? map(((PrimSig)x).parent) : null;
+       boolean[] flags = new boolean[] {x.builtin, x.isAbstract!=null, x.isOne!=null, x.isLone!=null, x.isSome!=null,
+          x.isPrivate!=null, x.isMeta!=null, x instanceof SubsetSig && ((SubsetSig)x).exact, x.isEnum!=null};
+       if (out!=null) {
+          Util.encodeXMLs(xml, "\n<sig label=\"", x.label, "\" ID=\"", id);
+          if (parentID!=null) Util.encodeXMLs(xml, "\" parentID=\"", parentID);
+          for(int i=0; i<flags.length; i++) if (flags[i]) { xml.append("\" "); xml.append(SIG_FLAGS[i]); xml.append("=\"yes"); }
+          xml.append("\">\n");
+       } else {
+          b(SIG); str(x.label); str(id); str(parentID==null ? "" : parentID);
+          int mask = 0;
+          for(int i=0; i<flags.length; i++) if (flags[i]) mask |= (1<<i);
+          num(mask);
+       }
        try {
-           if (sol!=null && x!=Sig.UNIV && x!=Sig.SIGINT && x!=Sig.SEQIDX) {
-              ts = (A4TupleSet)(sol.eval(x));
-              for(A4Tuple t: ts.minus(ts2))  Util.encodeXMLs(out, "   <atom label=\"", t.atom(0), "\"/>\n");
+           if (sol!=null && x!=Sig.UNIV && x!=Sig.SIGINT && x!=Sig.SEQIDX) ts = (A4TupleSet)(sol.eval(x));
+           A4TupleSet mine = (ts==null ? null : ts.minus(ts2));
+           if (out!=null) {
+              if (mine!=null) for(Tuple t: mine.kodkodTuples()) { xml.append("  ").append(atomXML(t.atom(0))).append('\n'); spill(false); }
+           } else {
+              num(mine==null ? 0 : mine.size());
+              if (mine!=null) for(Tuple t: mine.kodkodTuples()) atom(t.atom(0));
            }
        } catch(Throwable ex) {
            throw new ErrorFatal("Error evaluating sig " + x.label, ex);
        }
-       if (x instanceof SubsetSig) for(Sig p:((SubsetSig)x).parents) Util.encodeXMLs(out, "   <type ID=\"", map(p), "\"/>\n");
-       out.print("</sig>\n");
+       if (out!=null) {
+          if (x instanceof SubsetSig) for(Sig p:((SubsetSig)x).parents) Util.encodeXMLs(xml, "   <type ID=\"", map(p), "\"/>\n");
+          xml.append("</sig>\n");
+          spill(false);
+       } else {
+          if (x instanceof SubsetSig) { num(((SubsetSig)x).parents.size()); for(Sig p:((SubsetSig)x).parents) str(map(p)); } else num(0);
+       }
        for(Field field: x.getFields()) writeField(field);
        return ts;
     }
@@ -148,12 +327,20 @@ public final class A4SolutionWriter {
           if (sol==null && x.isMeta!=null) return; // when writing the metamodel, skip the metamodel fields!
           if (x.type().hasNoTuple()) return;         // we do not allow "none" in the XML file's type declarations
           if (rep!=null) rep.write(x);
-          Util.encodeXMLs(out, "\n<field label=\"", x.label, "\" ID=\"", map(x), "\" parentID=\"", map(x.sig));
-          if (x.isPrivate!=null) out.print("\" private=\"yes");
-          if (x.isMeta!=null) out.print("\" meta=\"yes");
-          out.print("\">\n");
-          writeExpr("", x);
-          out.print("</field>\n");
+          Type type = type(x);
+          A4TupleSet ts = (sol==null ? null : sol.eval(x));
+          if (out!=null) {
+             Util.encodeXMLs(xml, "\n<field label=\"", x.label, "\" ID=\"", map(x), "\" parentID=\"", map(x.sig));
+             if (x.isPrivate!=null) xml.append("\" private=\"yes");
+             if (x.isMeta!=null) xml.append("\" meta=\"yes");
+             xml.append("\">\n");
+             writeTuplesAndType(ts, type);
+             xml.append("</field>\n");
+          } else {
+             b(FIELD); str(x.label); str(map(x)); str(map(x.sig));
+             num((x.isPrivate!=null ? 1 : 0) | (x.isMeta!=null ? 2 : 0));
+             writeTuplesAndType(ts, type);
+          }
        } catch(Throwable ex) {
           throw new ErrorFatal("Error evaluating field "+x.sig.label+"."+x.label, ex);
        }
@@ -164,26 +351,49 @@ public final class A4SolutionWriter {
        try {
           if (sol==null) return;             // when writing a metamodel, skip the skolems
           if (x.type().hasNoTuple()) return;   // we do not allow "none" in the XML file's type declarations
-          StringBuilder sb = new StringBuilder();
-          Util.encodeXMLs(sb, "\n<skolem label=\"", x.label, "\" ID=\"", map(x), "\">\n");
-          if (writeExpr(sb.toString(), x)) { out.print("</skolem>\n"); }
+          writeSkolem(x.label, map(x), x);
        } catch(Throwable ex) {
           throw new ErrorFatal("Error evaluating skolem "+x.label, ex);
        }
     }
 
-    /** If sol==null, write the list of Sigs as a Metamodel, else write the solution as an XML file. */
-    private A4SolutionWriter(A4Reporter rep, A4Solution sol, Iterable<Sig> sigs, int bitwidth, int maxseq, String originalCommand, String originalFileName, PrintWriter out, Iterable<Func> extraSkolems) throws Err {
+    /** Write the given expression as a Skolem with the given label and id (but only if its value is not empty). */
+    private void writeSkolem(String label, String id, Expr x) throws Err {
+       Type type = type(x);
+       A4TupleSet ts = (A4TupleSet)(sol.eval(x));
+       if (ts.size()==0) return;
+       if (out!=null) {
+          Util.encodeXMLs(xml, "\n<skolem label=\"", label, "\" ID=\"", id, "\">\n");
+          writeTuplesAndType(ts, type);
+          xml.append("</skolem>\n");
+       } else {
+          b(SKOLEM); str(label); str(id);
+          writeTuplesAndType(ts, type);
+       }
+    }
+
+    /** If sol==null, write the list of Sigs as a Metamodel, else write the solution as an XML file (or in the binary format if bin!=null). */
+    private A4SolutionWriter(A4Reporter rep, A4Solution sol, Iterable<Sig> sigs, int bitwidth, int maxseq, String originalCommand, String originalFileName, PrintWriter out, OutputStream bin, Map<String,String> sources, Iterable<Func> extraSkolems) throws Err {
         this.rep = rep;
         this.out = out;
+        this.bin = bin;
+        this.buf = (bin!=null ? new byte[65536] : null);
+        this.xml = (out!=null ? new StringBuilder(65536) : null);
+        this.chars = (out!=null ? new char[32768] : null);
         this.sol = sol;
         for (Sig s:sigs) if (s instanceof PrimSig && ((PrimSig)s).parent==Sig.UNIV) toplevels.add((PrimSig)s);
-        out.print("<instance bitwidth=\""); out.print(bitwidth);
-        out.print("\" maxseq=\""); out.print(maxseq);
-        out.print("\" command=\""); Util.encodeXML(out, originalCommand);
-        out.print("\" filename=\""); Util.encodeXML(out, originalFileName);
-        if (sol==null) out.print("\" metamodel=\"yes");
-        out.print("\">\n");
+        if (out!=null) {
+           xml.append("<instance bitwidth=\""); xml.append(bitwidth);
+           xml.append("\" maxseq=\""); xml.append(maxseq);
+           xml.append("\" command=\""); Util.encodeXML(xml, originalCommand);
+           xml.append("\" filename=\""); Util.encodeXML(xml, originalFileName);
+           if (sol==null) xml.append("\" metamodel=\"yes");
+           xml.append("\">\n");
+        } else {
+           str(Version.buildDate()); num(bitwidth); num(maxseq); str(originalCommand); str(originalFileName);
+           num(sources==null ? 0 : sources.size());
+           if (sources!=null) for(Map.Entry<String,String> e: sources.entrySet()) { str(e.getKey()); str(e.getValue()); }
+        }
         writesig(Sig.UNIV);
         for (Sig s:sigs) if (s instanceof SubsetSig) writesig(s);
         if (sol!=null) for (ExprVar s:sol.getAllSkolems()) { if (rep!=null) rep.write(s); writeSkolem(s); }
@@ -194,25 +404,30 @@ public final class A4SolutionWriter {
             label="$"+label;
             try {
                 if (rep!=null) rep.write(f.call());
-                StringBuilder sb = new StringBuilder();
-                Util.encodeXMLs(sb, "\n<skolem label=\"", label, "\" ID=\"m"+m+"\">\n");
-                if (writeExpr(sb.toString(), f.call())) { out.print("</skolem>\n"); }
+                writeSkolem(label, "m"+m, f.call());
                 m++;
             } catch(Throwable ex) {
                 throw new ErrorFatal("Error evaluating skolem "+label, ex);
             }
         }
-        out.print("\n</instance>\n");
+        if (out!=null) { xml.append("\n</instance>\n"); spill(true); } else { b(END); flush(); }
     }
 
     /** If this solution is a satisfiable solution, this method will write it out in XML format. */
     static void writeInstance(A4Reporter rep, A4Solution sol, PrintWriter out, Iterable<Func> extraSkolems, Map<String,String> sources) throws Err {
+        writeInstance(rep, sol, out, extraSkolems, sources, false);
+    }
+
+    /** If this solution is a satisfiable solution, this method will write it out in XML format
+     * (if shared==true, then each source file is given by its hash, as returned by shareSources()).
+     */
+    static void writeInstance(A4Reporter rep, A4Solution sol, PrintWriter out, Iterable<Func> extraSkolems, Map<String,String> sources, boolean shared) throws Err {
         if (!sol.satisfiable()) throw new ErrorAPI("This solution is unsatisfiable.");
         try {
             Util.encodeXMLs(out, "<alloy builddate=\"", Version.buildDate(), "\">\n\n");
-            new A4SolutionWriter(rep, sol, sol.getAllReachableSigs(), sol.getBitwidth(), sol.getMaxSeq(), sol.getOriginalCommand(), sol.getOriginalFilename(), out, extraSkolems);
+            new A4SolutionWriter(rep, sol, sol.getAllReachableSigs(), sol.getBitwidth(), sol.getMaxSeq(), sol.getOriginalCommand(), sol.getOriginalFilename(), out, null, null, extraSkolems);
             if (sources!=null) for(Map.Entry<String,String> e: sources.entrySet()) {
-                Util.encodeXMLs(out, "\n<source filename=\"", e.getKey(), "\" content=\"", e.getValue(), "\"/>\n");
+                Util.encodeXMLs(out, "\n<source filename=\"", e.getKey(), shared ? "\" hash=\"" : "\" content=\"", e.getValue(), "\"/>\n");
             }
             out.print("\n</alloy>\n");
         } catch(Throwable ex) {
@@ -221,10 +436,80 @@ public final class A4SolutionWriter {
         if (out.checkError()) throw new ErrorFatal("Error writing the solution XML file.");
     }
 
+    /** If this solution is a satisfiable solution, this method will write it out in the binary format (compressed if compress==true,
+     * and if shared==true, then each source file is given by its hash, as returned by shareSources()).
+     * <p> The OutputStream is flushed but not closed.
+     */
+    static void writeInstance(A4Reporter rep, A4Solution sol, OutputStream out, Iterable<Func> extraSkolems, Map<String,String> sources, boolean compress, boolean shared) throws Err {
+        if (!sol.satisfiable()) throw new ErrorAPI("This solution is unsatisfiable.");
+        Deflater zip = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        IOException error;
+        try {
+            out.write(MAGIC);
+            out.write(shared ? VERSION : UNSHARED_VERSION);
+            out.write((compress ? COMPRESSED : 0) | (shared ? SHARED_SOURCES : 0));
+            OutputStream body = compress ? new DeflaterOutputStream(out, zip, 65536) : out;
+            error = new A4SolutionWriter(rep, sol, sol.getAllReachableSigs(), sol.getBitwidth(), sol.getMaxSeq(), sol.getOriginalCommand(), sol.getOriginalFilename(), null, body, sources, extraSkolems).error;
+            if (error==null && compress) ((DeflaterOutputStream)body).finish();
+            if (error==null) out.flush();
+        } catch(IOException ex) {
+            error = ex;
+        } catch(Throwable ex) {
+            if (ex instanceof Err) throw (Err)ex; else throw new ErrorFatal("Error writing the solution file.", ex);
+        } finally {
+            if (zip!=null) zip.end();
+        }
+        if (error!=null) throw new ErrorFatal("Error writing the solution file.", error);
+    }
+
+    /** Returns the hexadecimal SHA-1 hash of the given UTF-8 encoded content. */
+    static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+            StringBuilder sb = new StringBuilder(digest.length*2);
+            for(byte b: digest) { sb.append(Character.forDigit((b>>4) & 15, 16)).append(Character.forDigit(b & 15, 16)); }
+            return sb.toString();
+        } catch(NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("Every Java platform must support SHA-1.", ex); // should not happen
+        }
+    }
+
+    /** Stores each source file in the shared source directory inside the given directory (unless an identical copy is already there),
+     * then returns a map from each source file's name to the hash of its content.
+     * <p> Each new file is written under a temporary name first, then renamed, so that a reader never sees a partially written source file.
+     * <br> An existing file is reused only if its content is identical (so a damaged file, or a colliding one, is replaced).
+     */
+    static Map<String,String> shareSources(File dir, Map<String,String> sources) throws IOException {
+        Map<String,String> ans = new LinkedHashMap<String,String>();
+        File store = new File(dir, SOURCES);
+        for(Map.Entry<String,String> e: sources.entrySet()) {
+            byte[] content = e.getValue().getBytes("UTF-8");
+            String hash = hash(content);
+            ans.put(e.getKey(), hash);
+            File file = new File(store, hash);
+            if (same(file, content)) continue;
+            if (!store.isDirectory() && !store.mkdirs() && !store.isDirectory()) throw new IOException("Cannot create the directory "+store);
+            File tmp = File.createTempFile(hash, ".tmp", store);
+            FileOutputStream fos = new FileOutputStream(tmp);
+            boolean ok = false;
+            try { fos.write(content); ok = true; } finally { if (!Util.close(fos)) ok = false; if (!ok) tmp.delete(); }
+            if (!ok) throw new IOException("Cannot write to the file "+tmp);
+            if (file.exists()) file.delete(); // it is damaged (renameTo() cannot replace an existing file on every platform)
+            if (!tmp.renameTo(file)) { tmp.delete(); if (!same(file, content)) throw new IOException("Cannot write to the file "+file); }
+        }
+        return ans;
+    }
+
+    /** Returns true if the given file exists and has exactly the given content. */
+    private static boolean same(File file, byte[] content) {
+        if (!file.isFile() || file.length()!=content.length) return false;
+        try { return Arrays.equals(A4InstanceFile.readBytes(file), content); } catch(IOException ex) { return false; }
+    }
+
     /** Write the metamodel as &lt;instance&gt;..&lt;/instance&gt; in XML format. */
     public static void writeMetamodel(ConstList<Sig> sigs, String originalFilename, PrintWriter out) throws Err {
         try {
-            new A4SolutionWriter(null, null, sigs, 4, 4, "show metamodel", originalFilename, out, null);
+            new A4SolutionWriter(null, null, sigs, 4, 4, "show metamodel", originalFilename, out, null, null, null);
         } catch(Throwable ex) {
             if (ex instanceof Err) throw (Err)ex; else throw new ErrorFatal("Error writing the solution XML file.", ex);
         }
@@ -0,0 +1,357 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.translator;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import edu.mit.csail.sdg.alloy4.Util;
+import kodkod.engine.satlab.SATFactory;
+import kodkod.engine.satlab.SATSolver;
+
+/** An implementation of SATSolver that pipes the CNF into the standard input of an external command-line solver,
+ * and parses the "s ..." and "v ..." lines from its standard output (this is the SAT competition output format).
+ *
+ * <p> Since the DIMACS header must give the number of variables and clauses before the first clause,
+ * the clauses are encoded into DIMACS text as they arrive, and kept in memory until there are MAX_CHUNKS chunks of them;
+ * beyond that, the text is moved into a temporary file, so that a huge CNF does not have to fit in the heap.
+ * solve() then starts the solver, and a separate thread feeds it the header and the clauses (from the file, then from memory),
+ * while the calling thread parses the model as it comes out (without splitting each line into Strings).
+ *
+ * <p> Each call to solve() runs the solver from scratch on every clause added so far, so clauses may be added after solve()
+ * (this is how Kodkod enumerates solutions); but that means asking for N solutions feeds the whole CNF to the solver N times.
+ *
+ * <p> The solver is killed (and solve() throws RuntimeException) if it runs longer than the timeout,
+ * if the thread calling solve() is interrupted, or if free() is called from another thread.
+ */
+
+final class PipeSolver implements SATSolver {
+
+    /** The command to run (the executable followed by its options). */
+    private final String[] command;
+
+    /** The number of milliseconds that each call to solve() may take (or 0 if there is no limit). */
+    private final long timeout;
+
+    /** The directory for the temporary file (or "" to use the default temporary directory). */
+    private final String tempDirectory;
+
+    /** The DIMACS text of the clauses so far that are not in the temporary file
+     * (we move on to a new chunk as soon as fewer than 12 bytes remain in the current one).
+     */
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+    /** This is the chunk size. */
+    private static final int capacity = 65536;
+
+    /** The most chunks we keep in memory (64M bytes); once they are full, they are all appended to the temporary file. */
+    private static final int MAX_CHUNKS = 1024;
+
+    /** If nonnull, this is the temporary file holding the DIMACS text of the earlier clauses. */
+    private File spill = null;
+
+    /** If spill!=null, this is the channel we append to it through. */
+    private FileChannel spillChannel = null;
+
+    /** The number of variables so far. */
+    private int vars = 0;
+
+    /** The number of clauses so far. */
+    private int clauses = 0;
+
+    /** The result of the last call to solve() (or null if clauses have been added since then). */
+    private Boolean sat = null;
+
+    /** If sat==TRUE, this stores the value of each variable (bit i is the value of variable i+1). */
+    private final BitSet solution = new BitSet();
+
+    /** The solver currently running (or null if none). */
+    private Process process = null;
+
+    /** If nonnull, it is the reason why the solver currently running was killed. */
+    private volatile String killed = null;
+
+    /** Helper method that returns a factory for PipeSolver instances that run the given executable with the given options,
+     * that allow each call to solve() to take up to the given number of seconds (0 means no limit),
+     * and that put the temporary file for a CNF too large to keep in memory into the given directory ("" means the default one).
+     * <p> The factory claims to be incremental (so that solutions can be enumerated), but each call to solve() reruns the solver on the whole CNF.
+     */
+    public static final SATFactory factory(String executable, String[] options, int timeout, final String tempDirectory) {
+        final List<String> command = new ArrayList<String>();
+        command.add(executable);
+        if (options!=null) for(String x: options) if (x.length()>0) command.add(x);
+        final long millis = timeout>0 ? timeout*1000L : 0;
+        return new SATFactory() {
+            /** {@inheritDoc} */
+            @Override public SATSolver instance() { return new PipeSolver(command.toArray(new String[command.size()]), millis, tempDirectory); }
+            /** {@inheritDoc} */
+            @Override public boolean incremental() { return true; }
+            /** {@inheritDoc} */
+            @Override public String toString() { return command.toString(); }
+        };
+    }
+
+    /** Constructs a PipeSolver that will run the given command. */
+    private PipeSolver(String[] command, long timeout, String tempDirectory) {
+        this.command = command;
+        this.timeout = timeout;
+        this.tempDirectory = tempDirectory==null ? "" : tempDirectory;
+        chunks.add(ByteBuffer.allocate(capacity));
+    }
+
+    /** Helper method that returns a chunk with at least 12 bytes remaining. */
+    private ByteBuffer chunk() {
+        ByteBuffer last = chunks.get(chunks.size()-1);
+        if (last.remaining() >= 12) return last;
+        if (chunks.size() >= MAX_CHUNKS) { spill(); return chunks.get(0); }
+        last = ByteBuffer.allocate(capacity);
+        chunks.add(last);
+        return last;
+    }
+
+    /** Helper method that appends every chunk to the temporary file (creating it if needed), then keeps just the first chunk (now empty). */
+    private void spill() {
+        try {
+            if (spill==null) {
+                File file = File.createTempFile("tmp", ".cnf", tempDirectory.length()>0 ? new File(tempDirectory) : null);
+                file.deleteOnExit();
+                spillChannel = new FileOutputStream(file).getChannel();
+                spill = file;
+            }
+            for(ByteBuffer x: chunks) { x.flip(); while(x.hasRemaining()) spillChannel.write(x); }
+        } catch(IOException ex) {
+            throw new RuntimeException("Cannot write the CNF into a temporary file.", ex);
+        }
+        ByteBuffer first = chunks.get(0);
+        first.clear();
+        chunks.clear();
+        chunks.add(first);
+    }
+
+    /** {@inheritDoc} */
+    public void addVariables(int numVars) { if (numVars >= 0) vars += numVars; }
+
+    /** {@inheritDoc} */
+    public boolean addClause(int[] lits) {
+        if (lits.length>0) {
+            clauses++;
+            sat = null;
+            for(int i=0; i<lits.length; i++) WriteCNF.text(chunk(), lits[i]);
+            chunk().put((byte)'0').put((byte)'\n');
+            return true;
+        }
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    public int numberOfVariables() { return vars; }
+
+    /** {@inheritDoc} */
+    public int numberOfClauses() { return clauses; }
+
+    /** {@inheritDoc} */
+    public boolean valueOf(int variable) {
+        if (!Boolean.TRUE.equals(sat)) throw new IllegalStateException();
+        if (variable<1 || variable>vars) throw new IllegalArgumentException(variable + " !in [1.." + vars + "]");
+        return solution.get(variable-1);
+    }
+
+    /** Kills the solver if it is running (the call to solve() will then throw RuntimeException), and deletes the temporary file (if any). */
+    public void free() {
+        kill("The solver was cancelled.");
+        synchronized(this) {
+            Util.close(spillChannel);
+            if (spill!=null) spill.delete();
+            spillChannel = null;
+            spill = null;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void finalize() throws Throwable {
+        super.finalize();
+        free();
+    }
+
+    /** Helper method that kills the solver currently running (if any), and remembers the given reason. */
+    private void kill(String reason) {
+        synchronized(this) { if (process==null) return; if (killed==null) killed = reason; process.destroy(); }
+    }
+
+    /** {@inheritDoc} */
+    public boolean solve() {
+        if (sat!=null) return sat;
+        final Process p;
+        final byte[] error = new byte[1024];
+        final int[] errorLength = new int[1];
+        synchronized(this) {
+            killed = null;
+            try { p = process = new ProcessBuilder(command).start(); } catch(IOException ex) { throw new RuntimeException("Cannot run the solver " + command[0], ex); }
+        }
+        // Feed the CNF into the solver, and keep the tail of whatever it writes to stderr (for the error message)
+        final byte[] header = ("p cnf " + vars + " " + clauses + "\n").getBytes();
+        final File file = spill;
+        final Thread feeder = new Thread(new Runnable() {
+            public void run() {
+                OutputStream out = p.getOutputStream();
+                InputStream in = null;
+                try {
+                    out.write(header);
+                    if (file!=null) {
+                        in = new FileInputStream(file);
+                        byte[] buf = new byte[capacity];
+                        for(int n; (n=in.read(buf))>=0;) out.write(buf, 0, n);
+                    }
+                    for(ByteBuffer x: chunks) out.write(x.array(), 0, x.position());
+                } catch(IOException ex) {
+                    // the solver has exited early (or the file was deleted by free()); the reader will find out why
+                } finally {
+                    Util.close(in);
+                    Util.close(out);
+                }
+            }
+        });
+        final Thread drain = new Thread(new Runnable() {
+            public void run() {
+                InputStream in = p.getErrorStream();
+                byte[] buf = new byte[8192];
+                try {
+                    for(int n; (n=in.read(buf))>=0;) synchronized(error) {
+                        if (n>=error.length) { System.arraycopy(buf, n-error.length, error, 0, error.length); errorLength[0] = error.length; continue; }
+                        int keep = Math.min(errorLength[0], error.length-n);
+                        System.arraycopy(error, errorLength[0]-keep, error, 0, keep);
+                        System.arraycopy(buf, 0, error, keep, n);
+                        errorLength[0] = keep+n;
+                    }
+                } catch(IOException ex) {
+                    // the solver has exited
+                } finally {
+                    Util.close(in);
+                }
+            }
+        });
+        // Parse the output in another thread, so that this thread can give up on the solver without waiting for its output to end
+        // (the output may stay open after the solver is killed, for example if the solver was started by a shell script)
+        final BitSet model = new BitSet();
+        final Object[] result = new Object[1]; // this will become TRUE, FALSE, null (if the output ended early), or a RuntimeException
+        final boolean[] done = new boolean[1];
+        final Thread reader = new Thread(new Runnable() {
+            public void run() {
+                InputStream in = new BufferedInputStream(p.getInputStream(), capacity);
+                Object ans = null;
+                try { ans = read(in, model); } catch(IOException ex) { ans = null; } catch(RuntimeException ex) { ans = ex; } finally { Util.close(in); }
+                synchronized(done) { result[0] = ans; done[0] = true; done.notifyAll(); }
+            }
+        });
+        feeder.setDaemon(true); drain.setDaemon(true); reader.setDaemon(true);
+        feeder.start(); drain.start(); reader.start();
+        // Wait for the answer, but kill the solver if it times out, if this thread is interrupted, or if free() is called
+        final long deadline = timeout>0 ? System.currentTimeMillis()+timeout : 0;
+        Object ans;
+        try {
+            synchronized(done) {
+                while(!done[0] && killed==null) {
+                    try { done.wait(50); } catch(InterruptedException ex) { kill("The solver was interrupted."); Thread.currentThread().interrupt(); break; }
+                    if (deadline>0 && !done[0] && System.currentTimeMillis()>=deadline) kill("The solver timed out after " + (timeout/1000) + " seconds.");
+                }
+                ans = done[0] ? result[0] : null;
+            }
+        } finally {
+            synchronized(this) { process = null; p.destroy(); }
+        }
+        if (killed!=null && !(ans instanceof Boolean)) throw new RuntimeException(killed);
+        if (ans instanceof RuntimeException) throw (RuntimeException)ans;
+        if (ans==null) {
+            try { drain.join(1000); } catch(InterruptedException ex) { Thread.currentThread().interrupt(); }
+            String msg;
+            synchronized(error) { msg = new String(error, 0, errorLength[0]).trim(); }
+            throw new RuntimeException("Invalid " + command[0] + " output: no line specifying the outcome." + (msg.length()>0 ? "\n" + msg : ""));
+        }
+        solution.clear();
+        solution.or(model);
+        sat = (Boolean)ans;
+        return sat;
+    }
+
+    /** Helper method that parses the solver output; returns TRUE or FALSE once the outcome and the full model (if any) are known,
+     * or null if the output ends before the outcome; the model is stored into the given BitSet (bit i is the value of variable i+1).
+     * @throws RuntimeException if the output is malformed, or if it ends after "s SATISFIABLE" but before the "v" line ending with 0
+     */
+    private Boolean read(InputStream in, BitSet solution) throws IOException {
+        Boolean ans = null;
+        boolean model = false; // true when the "v" lines have ended with 0
+        while(true) {
+            int c = in.read();
+            if (c<0) return end(ans, model);
+            if (c=='s' || c=='S') {
+                StringBuilder sb = new StringBuilder();
+                for(c = in.read(); c>=0 && c!='\n'; c = in.read()) sb.append((char)c);
+                String line = sb.toString().trim();
+                if (line.equalsIgnoreCase("SATISFIABLE")) ans = Boolean.TRUE;
+                else if (line.equalsIgnoreCase("UNSATISFIABLE")) return Boolean.FALSE;
+                else throw new RuntimeException("Invalid " + command[0] + " output. Line: s " + line);
+                if (model) return ans;
+            } else if (c=='v' || c=='V') {
+                // parse the literals in place, until the end of the line
+                int lit = 0, sign = 0; // sign==0 means we are between numbers
+                for(c = in.read(); ; c = in.read()) {
+                    if (c>='0' && c<='9') {
+                        if (sign==0) sign = 1;
+                        if (lit > (Integer.MAX_VALUE-9)/10) throw new RuntimeException("Invalid " + command[0] + " output: the variable number is too large.");
+                        lit = lit*10 + (c-'0');
+                    } else if (c=='-' && sign==0) {
+                        sign = -1;
+                    } else if (c==' ' || c=='\t' || c=='\r' || c=='\n' || c<0) {
+                        if (sign!=0) {
+                            if (lit==0) { model = true; } else {
+                                if (lit>vars) throw new RuntimeException("Invalid variable value: |" + lit + "| !in [1.." + vars + "]");
+                                solution.set(lit-1, sign>0);
+                            }
+                            lit = 0; sign = 0;
+                        }
+                        if (c=='\n' || c<0) break;
+                    } else {
+                        throw new RuntimeException("Invalid " + command[0] + " output: encountered a non-integer variable token.");
+                    }
+                }
+                if (model && ans!=null) return ans;
+                if (c<0) return end(ans, model);
+            } else {
+                // not a solution line or a variable line, so ignore it
+                while(c>=0 && c!='\n') c = in.read();
+                if (c<0) return end(ans, model);
+            }
+        }
+    }
+
+    /** Helper method that returns what read() should return when the output ends (given the outcome and whether the model has ended). */
+    private Boolean end(Boolean ans, boolean model) {
+        if (ans!=null && !model) throw new RuntimeException("Invalid " + command[0] + " output: the model is truncated (no \"v\" line ends with 0).");
+        return model ? ans : null;
+    }
+
+    /** {@inheritDoc} */
+    @Override public String toString() { return command[0]; }
+}
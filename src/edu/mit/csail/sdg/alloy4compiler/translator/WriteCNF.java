@@ -15,17 +15,36 @@
 
 package edu.mit.csail.sdg.alloy4compiler.translator;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 import edu.mit.csail.sdg.alloy4.Util;
 import kodkod.engine.satlab.SATFactory;
 import kodkod.engine.satlab.SATSolver;
 
 /** An implementation of SATSolver that dumps the CNF to a file and then throws an exception
  * (this code is adapted from ExternalSolver from Kodkod).
+ *
+ * <p> The file begins with the "p cnf VARS CLAUSES" line (padded with spaces, since it is written last).
+ * <br> In the text format, each clause then follows as the usual DIMACS line of literals terminated by 0.
+ * <br> In the binary format, each clause is written as its literals followed by a 0 byte,
+ * where each literal L is encoded as the number 2*abs(L) (plus 1 if L is negative),
+ * written 7 bits at a time from the least significant bits to the most significant bits,
+ * with the highest bit of each byte set if more bytes follow (this is the same literal encoding as the binary DRAT format,
+ * but unlike a binary DRAT line, a clause is not preceded by an 'a' byte, since every clause here is an addition).
+ *
+ * <p> If compressed, the file is in gzip format, made up of 2 members: the first one holds the header line uncompressed
+ * (so that it can be overwritten in place at the end), and the second one holds the clauses.
+ * The gzip tool and GZIPInputStream both treat such a file as the concatenation of the 2 members.
  */
 
-final class WriteCNF implements SATSolver {
+public final class WriteCNF implements SATSolver {
 
     /** This runtime exception is thrown when the CNF file has been written successfully. */
     public static final class WriteCNFCompleted extends RuntimeException {
@@ -35,14 +54,34 @@ final class WriteCNF implements SATSolver {
         public WriteCNFCompleted() { super("CNF written successfully."); }
     }
 
+    /** A GZIPOutputStream that uses the fastest compression level (since the CNF file can be very large). */
+    private static final class FastGZIPOutputStream extends GZIPOutputStream {
+        /** Constructs a new gzip stream with the given buffer size that writes to the given stream. */
+        FastGZIPOutputStream(OutputStream out, int size) throws IOException {
+            super(out, size);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+
     /** This is the CNF file we are generating. */
-    private final RandomAccessFile cnf;
+    private final FileChannel cnf;
 
-    /** This buffers up the clauses we are writing to the CNF file, to avoid excessive I/O. */
-    private final StringBuilder buffer;
+    /** True if the clauses are written in the binary format. */
+    private final boolean binary;
+
+    /** If nonnull, the clauses are written through this compressor rather than directly into the CNF file. */
+    private final GZIPOutputStream zip;
+
+    /** This buffers up the clauses we are writing to the CNF file, to avoid excessive I/O
+     * (this is a heap buffer rather than a direct buffer, since the compressor needs its backing array).
+     */
+    private final ByteBuffer buffer;
 
     /** This is the buffer size. */
-    private static final int capacity = 8192;
+    private static final int capacity = 65536;
+
+    /** This is the length of the header line (including the line break), which is reserved at the start of the file. */
+    private static final int HEADER = String.valueOf(Integer.MAX_VALUE).length()*2 + 9;
 
     /** The number of variables so far. */
     private int vars = 0;
@@ -50,37 +89,71 @@ final class WriteCNF implements SATSolver {
     /** The number of clauses so far. */
     private int clauses = 0;
 
-    /** Helper method that returns a factory for WriteCNF instances. */
+    /** Helper method that returns a factory for WriteCNF instances that write the text format without compression. */
     public static final SATFactory factory(final String filename) {
+        return factory(filename, false, false);
+    }
+
+    /** Helper method that returns a factory for WriteCNF instances (that write the binary format if binary==true, and compress the file if compress==true). */
+    public static final SATFactory factory(final String filename, final boolean binary, final boolean compress) {
         return new SATFactory() {
             /** {@inheritDoc} */
-            @Override public SATSolver instance() { return new WriteCNF(filename); }
+            @Override public SATSolver instance() { return new WriteCNF(filename, binary, compress); }
             /** {@inheritDoc} */
             @Override public boolean incremental() { return false; }
         };
     }
 
     /** Constructs a WriteCNF solver that will write CNF into the given file, without solving it. */
-    private WriteCNF(String filename) {
+    private WriteCNF(String filename, boolean binary, boolean compress) {
+        FileChannel cnf = null;
         try {
-            this.cnf = new RandomAccessFile(filename, "rw");
-            this.cnf.setLength(0);
-            this.buffer = new StringBuilder(capacity);
-            for(int i = String.valueOf(Integer.MAX_VALUE).length()*2 + 8; i > 0; i--) {
-                // get enough space into the buffer for the cnf header, which will be written last
-                buffer.append(' ');
-            }
-            buffer.append('\n');
+            cnf = new FileOutputStream(filename).getChannel();
+            // get enough space for the cnf header, which will be written last
+            byte[] header = header("", compress);
+            write(cnf, header, 0);
+            cnf.position(header.length);
+            this.cnf = cnf;
+            this.binary = binary;
+            this.buffer = ByteBuffer.allocate(capacity);
+            this.zip = compress ? new FastGZIPOutputStream(Channels.newOutputStream(cnf), capacity) : null;
         } catch (Exception ex) {
+            Util.close(cnf);
             throw new RuntimeException("WriteCNF failed.", ex);
         }
     }
 
+    /** Returns the header line with the given text padded with spaces (wrapped inside a gzip member if compress==true). */
+    private static byte[] header(String text, boolean compress) {
+        byte[] line = new byte[HEADER];
+        for(int i=0; i<HEADER-1; i++) line[i] = i<text.length() ? (byte)(text.charAt(i)) : (byte)' ';
+        line[HEADER-1] = '\n';
+        if (!compress) return line;
+        // a gzip member with one uncompressed block, so that its length does not depend on the text
+        CRC32 crc = new CRC32();
+        crc.update(line);
+        long c = crc.getValue();
+        int n = HEADER;
+        byte[] ans = new byte[10 + 5 + n + 8];
+        ans[0] = 0x1f; ans[1] = (byte)0x8b; ans[2] = 8; ans[9] = (byte)255; // deflate; no flags, no modification time; unknown OS
+        ans[10] = 1; ans[11] = (byte)n; ans[12] = (byte)(n>>8); ans[13] = (byte)(~n); ans[14] = (byte)((~n)>>8); // the final block; stored
+        System.arraycopy(line, 0, ans, 15, n);
+        for(int i=0; i<4; i++) { ans[15+n+i] = (byte)(c >> (8*i)); ans[19+n+i] = (byte)(n >> (8*i)); }
+        return ans;
+    }
+
+    /** Helper method that writes the given bytes into the file at the given position. */
+    private static void write(FileChannel cnf, byte[] bytes, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while(buf.hasRemaining()) position += cnf.write(buf, position);
+    }
+
     /** Helper method that flushes the buffer. */
     private void flush() {
         try {
-            cnf.writeBytes(buffer.toString());
-            buffer.setLength(0);
+            buffer.flip();
+            if (zip!=null) zip.write(buffer.array(), 0, buffer.limit()); else while(buffer.hasRemaining()) cnf.write(buffer);
+            buffer.clear();
         } catch (IOException ex) {
             throw new RuntimeException("WriteCNF failed.", ex);
         }
@@ -93,18 +166,41 @@ final class WriteCNF implements SATSolver {
     }
 
     /** {@inheritDoc} */
-    public void free() { Util.close(cnf); }
+    public void free() { Util.close(zip); Util.close(cnf); }
 
     /** {@inheritDoc} */
     public void addVariables(int numVars) {  if (numVars >= 0) vars += numVars; }
 
+    /** Helper method that appends the given literal to the buffer (followed by a space if we are writing the text format). */
+    private void literal(int lit) {
+        if (buffer.remaining() < 12) flush(); // at most 12 bytes are needed (for example, "-2147483647 ")
+        if (binary) {
+            long x = (lit<0) ? (-(long)lit)*2+1 : ((long)lit)*2;
+            while((x & ~0x7FL) != 0) { buffer.put((byte)((x & 0x7F) | 0x80)); x = x >>> 7; }
+            buffer.put((byte)x);
+            return;
+        }
+        text(buffer, lit);
+    }
+
+    /** Helper method that appends the given literal (in decimal, followed by a space) to the given buffer, which must have at least 12 bytes remaining. */
+    static void text(ByteBuffer buffer, int lit) {
+        if (lit<0) { buffer.put((byte)'-'); lit = -lit; }
+        // write the digits from the least significant to the most significant, then reverse them
+        int start = buffer.position(), end;
+        do { buffer.put((byte)('0' + lit%10)); lit = lit/10; } while(lit>0);
+        end = buffer.position() - 1;
+        for(; start<end; start++, end--) { byte tmp = buffer.get(start); buffer.put(start, buffer.get(end)); buffer.put(end, tmp); }
+        buffer.put((byte)' ');
+    }
+
     /** {@inheritDoc} */
     public boolean addClause(int[] lits) {
         if (lits.length>0) {
             clauses++;
-            if (buffer.length() > capacity) flush();
-            for(int i=0; i<lits.length; i++) buffer.append(lits[i]).append(' ');
-            buffer.append("0\n");
+            for(int i=0; i<lits.length; i++) literal(lits[i]);
+            if (buffer.remaining() < 2) flush();
+            if (binary) buffer.put((byte)0); else buffer.put((byte)'0').put((byte)'\n');
             return true;
         }
         return false;
@@ -120,8 +216,9 @@ final class WriteCNF implements SATSolver {
     public boolean solve() {
         try {
             flush();
-            cnf.seek(0);
-            cnf.writeBytes("p cnf " + vars + " " + clauses);
+            if (zip!=null) zip.finish();
+            write(cnf, header("p cnf " + vars + " " + clauses, zip!=null), 0);
+            if (zip!=null) zip.close(); // this also closes the file
             cnf.close();
         } catch (Exception ex) {
             throw new RuntimeException("WriteCNF failed.", ex);
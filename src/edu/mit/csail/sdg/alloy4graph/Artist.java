@@ -26,14 +26,17 @@ import java.awt.Shape;
 import java.awt.font.FontRenderContext;
 import java.awt.font.GlyphVector;
 import java.awt.geom.CubicCurve2D;
+import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import edu.mit.csail.sdg.alloy4.OurPDFWriter;
+import edu.mit.csail.sdg.alloy4.OurSVGWriter;
 
 /** This class abstracts the drawing operations so that we can
- * draw the graph using different frameworks such as Java2D or PDF.
+ * draw the graph using different frameworks such as Java2D, PDF, or SVG.
  *
- * <p><b>Thread Safety:</b> Can be called only by the AWT event thread.
+ * <p><b>Thread Safety:</b> Each Artist can be used by only one thread at a time, and the thread must own the Graphics2D or writer it wraps
+ * (the static font-measuring methods are synchronized, so that graphs can be laid out and drawn on background threads).
  */
 
 public final strictfp class Artist {
@@ -50,26 +53,32 @@ public final strictfp class Artist {
     /** The corresponding OurPDFWriter. */
     private OurPDFWriter pdf;
 
+    /** The corresponding OurSVGWriter. */
+    private OurSVGWriter svg;
+
     /** Construct an artist that acts as a wrapper around the given Graphics2D object. */
-    public Artist(Graphics2D graphics2D)  { this.gr=graphics2D; this.pdf=null; }
+    public Artist(Graphics2D graphics2D)  { this.gr=graphics2D; this.pdf=null; this.svg=null; }
 
     /** Construct an artist that acts as a wrapper around the given OurPDFWriter object. */
-    public Artist(OurPDFWriter pdfWriter)  { this.gr=null; this.pdf=pdfWriter; }
+    public Artist(OurPDFWriter pdfWriter)  { this.gr=null; this.pdf=pdfWriter; this.svg=null; }
+
+    /** Construct an artist that acts as a wrapper around the given OurSVGWriter object. */
+    public Artist(OurSVGWriter svgWriter)  { this.gr=null; this.pdf=null; this.svg=svgWriter; }
 
     /** Shifts the coordinate space by the given amount. */
-    public void translate(int x, int y)  { if (gr!=null) gr.translate(x,y); else pdf.shiftCoordinateSpace(x, y); }
+    public void translate(int x, int y)  { if (gr!=null) gr.translate(x,y); else if (pdf!=null) pdf.shiftCoordinateSpace(x, y); else svg.shiftCoordinateSpace(x, y); }
 
     /** Draws a circle of the given radius, centered at (0,0) */
-    public void drawCircle(int radius)  { if (gr!=null) gr.drawArc(-radius, -radius, radius*2, radius*2, 0, 360); else pdf.drawCircle(radius, false); }
+    public void drawCircle(int radius)  { if (gr!=null) gr.drawArc(-radius, -radius, radius*2, radius*2, 0, 360); else if (pdf!=null) pdf.drawCircle(radius, false); else svg.drawCircle(radius, false); }
 
     /** Fills a circle of the given radius, centered at (0,0) */
-    public void fillCircle(int radius)  { if (gr!=null) gr.fillArc(-radius, -radius, radius*2, radius*2, 0, 360); else pdf.drawCircle(radius, true); }
+    public void fillCircle(int radius)  { if (gr!=null) gr.fillArc(-radius, -radius, radius*2, radius*2, 0, 360); else if (pdf!=null) pdf.drawCircle(radius, true); else svg.drawCircle(radius, true); }
 
     /** Draws a line from (x1,y1) to (x2,y2) */
-    public void drawLine(int x1, int y1, int x2, int y2)  { if (gr!=null) gr.drawLine(x1,y1,x2,y2); else pdf.drawLine(x1, y1, x2, y2); }
+    public void drawLine(int x1, int y1, int x2, int y2)  { if (gr!=null) gr.drawLine(x1,y1,x2,y2); else if (pdf!=null) pdf.drawLine(x1, y1, x2, y2); else svg.drawLine(x1, y1, x2, y2); }
 
     /** Changes the current color. */
-    public void setColor(Color color)  { if (gr!=null) gr.setColor(color); else pdf.setColor(color); }
+    public void setColor(Color color)  { if (gr!=null) gr.setColor(color); else if (pdf!=null) pdf.setColor(color); else svg.setColor(color); }
 
     /** Returns true if left<=x<=right or right<=x<=left. */
     private static boolean in(double left, double x, double right)  { return (left<=x && x<=right) || (right<=x && x<=left); }
@@ -98,7 +107,7 @@ public final strictfp class Artist {
     }
 
     /** Draws the outline of the given shape. */
-    public void draw(Shape shape, boolean fillOrNot)  { if (gr==null) pdf.drawShape(shape, fillOrNot); else if (fillOrNot) gr.fill(shape); else gr.draw(shape); }
+    public void draw(Shape shape, boolean fillOrNot)  { if (pdf!=null) pdf.drawShape(shape, fillOrNot); else if (svg!=null) svg.drawShape(shape, fillOrNot); else if (fillOrNot) gr.fill(shape); else gr.draw(shape); }
 
     /** The pattern for dotted line. */
     private static float[] dot = new float[]{1f,3f};
@@ -122,6 +131,12 @@ public final strictfp class Artist {
            gr.setStroke(bs);
            return;
         }
+        if (svg!=null) switch(style) {
+          case BOLD:   svg.setBoldLine(); return;
+          case DOTTED: svg.setDottedLine(); return;
+          case DASHED: svg.setDashedLine(); return;
+          default:     svg.setNormalLine(); return;
+        }
         switch(style) {
           case BOLD:   pdf.setBoldLine(); return;
           case DOTTED: pdf.setDottedLine(); return;
@@ -145,10 +160,16 @@ public final strictfp class Artist {
         if (gr!=null) { gr.drawString(text,x,y); return; }
         calc();
         Font font = (fontBoldness ? cachedBoldFont : cachedPlainFont);
-        GlyphVector gv = font.createGlyphVector(new FontRenderContext(null,false,false), text);
-        translate(x,y);
-        draw(gv.getOutline(), true);
-        translate(-x,-y);
+        FontRenderContext frc = new FontRenderContext(null,false,false);
+        GlyphVector gv = font.createGlyphVector(frc, text);
+        // Each distinct glyph is stored in the PDF or SVG file once, then every occurrence merely refers to it
+        for(int i=0; i<gv.getNumGlyphs(); i++) {
+            int code = gv.getGlyphCode(i);
+            Point2D at = gv.getGlyphPosition(i);
+            Shape glyph = font.createGlyphVector(frc, new int[]{code}).getOutline();
+            if (pdf!=null) pdf.fillReusableShape((fontBoldness ? "B" : "P") + code, glyph, x + at.getX(), y + at.getY());
+            else svg.fillReusableShape((fontBoldness ? "B" : "P") + code, glyph, x + at.getX(), y + at.getY());
+        }
     }
 
     /** If nonnull, it caches a Graphics2D object for calculating string bounds. */
@@ -173,7 +194,7 @@ public final strictfp class Artist {
     private static int cachedMaxDescent = -1;
 
     /** Allocates the nonbold and bold fonts, then calculates the max ascent and descent. */
-    private static void calc() {
+    private static synchronized void calc() {
        if (cachedMaxDescent >= 0) return; // already done
        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
        cachedGraphics = (Graphics2D)(image.getGraphics());
@@ -185,19 +206,19 @@ public final strictfp class Artist {
     }
 
     /** Returns the max ascent when drawing text using the given font size and font boldness settings. */
-    public static int getMaxAscent() {
+    public static synchronized int getMaxAscent() {
         calc();
         return cachedMaxAscent;
     }
 
     /** Returns the sum of the max ascent and max descent when drawing text using the given font size and font boldness settings. */
-    public static int getMaxAscentAndDescent() {
+    public static synchronized int getMaxAscentAndDescent() {
         calc();
         return cachedMaxAscent + cachedMaxDescent;
     }
 
     /** Returns the bounding box when drawing the given string using the given font size and font boldness settings. */
-    public static Rectangle2D getBounds(boolean fontBoldness, String string) {
+    public static synchronized Rectangle2D getBounds(boolean fontBoldness, String string) {
         calc();
         return (fontBoldness ? cachedBoldMetrics : cachedPlainMetrics).getStringBounds(string, cachedGraphics);
     }
@@ -16,24 +16,37 @@
 package edu.mit.csail.sdg.alloy4graph;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.io.File;
+import java.io.IOException;
 import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
 import java.awt.geom.RoundRectangle2D;
+import edu.mit.csail.sdg.alloy4.OurPDFWriter;
+import edu.mit.csail.sdg.alloy4.OurPNGWriter;
+import edu.mit.csail.sdg.alloy4.OurSVGWriter;
 import edu.mit.csail.sdg.alloy4.Pair;
 import edu.mit.csail.sdg.alloy4.Util;
 import static edu.mit.csail.sdg.alloy4graph.Artist.getBounds;
 
 /** Mutable; represents a graph.
  *
- * <p><b>Thread Safety:</b> Can be called only by the AWT event thread.
+ * <p><b>Thread Safety:</b> Can be called only by the thread that owns the graph (which is the AWT event thread once it is shown);
+ * different graphs can be built, laid out, and written out by different threads at the same time.
  */
 
 public final strictfp class Graph {
@@ -55,6 +68,14 @@ public final strictfp class Graph {
    /** The horizontal padding to put on the right side of a self-loop's edge label. */
    static final int selfLoopGR = 20;
 
+   /** If the graph has at least this many nodes (including the dummy nodes that break up long edges), then layout() follows
+    * the single barycenter pass with several sweeps of the median heuristic, since a single pass leaves many crossings in large graphs.
+    */
+   static final int largeGraph = 400;
+
+   /** The maximum number of up+down sweeps that the median heuristic performs when laying out a large graph. */
+   static final int largeGraphSweeps = 8;
+
    /** The maximum ascent and descent. We deliberately do NOT make this field "static" because only AWT thread can call Artist. */
    private final int ad = Artist.getMaxAscentAndDescent();
 
@@ -81,6 +102,23 @@ public final strictfp class Graph {
    /** The height of each layer. */
    int[] layerPH = null;
 
+   /** The spatial index over the current node and edge positions, or null if it has not been built since they last moved
+    * (layout() builds it right away; after a node is dragged, it is rebuilt the next time someone needs it).
+    */
+   private GraphIndex index = null;
+
+   /** This number increases whenever recalcBound() is called (that is, whenever nodes or edges may have moved). */
+   int revision = 0;
+
+   /** The last id handed out by nextID(). */
+   private static long lastID = 0;
+
+   /** Returns a number that has not been returned before. */
+   private static synchronized long nextID() { return ++lastID; }
+
+   /** A number that uniquely identifies this graph (so that caches such as GraphViewer's tiles can refer to this graph without keeping it alive). */
+   final long id = nextID();
+
    /** The list of layers;  must stay in sync with GraphNode.graph and GraphNode.layer
     * (empty iff there are no nodes; every node is always in exactly one layer, and appears exactly once in that layer)
     */
@@ -396,6 +434,112 @@ public final strictfp class Graph {
 
    //============================================================================================================================//
 
+   /** Layout step #5 for large graphs: refine the barycenter ordering with several sweeps of the weighted median heuristic.
+    * <p> This follows "A Technique for Drawing Directed Graphs" by Emden Gansner, Eleftherios Koutsofios, Stephen North, and Kiem-Phong Vo
+    * (IEEE Transactions on Software Engineering, 1993); after each up+down sweep we count the crossings, and we keep the best ordering seen.
+    */
+   private void layout_reorderPerLayerMedian() {
+      final int layers = layers();
+      if (layers < 2) return;
+      final int[] idx = new int[nodes.size()];
+      final double[] key = new double[nodes.size()];
+      for(int layer=0; layer<layers; layer++) layout_index(layer, idx);
+      long best = layout_crossings(idx);
+      List<List<GraphNode>> bestOrder = layout_copyLayers();
+      for(int iteration=0, stale=0; iteration<largeGraphSweeps && stale<2 && best>0; iteration++) {
+         // Upward sweep: order each layer by the positions of its neighbors in the layer below; then the downward sweep does the opposite.
+         for(int layer=1; layer<layers; layer++)    layout_medianSort(layer, layer-1, false, idx, key);
+         for(int layer=layers-2; layer>=0; layer--) layout_medianSort(layer, layer+1, true,  idx, key);
+         long now = layout_crossings(idx);
+         if (now < best) { best = now; bestOrder = layout_copyLayers(); stale = 0; } else stale++;
+      }
+      for(int layer=0; layer<layers; layer++) { List<GraphNode> list = layerlist.get(layer); list.clear(); list.addAll(bestOrder.get(layer)); }
+   }
+
+   /** Records the index of each node within the given layer into idx[] (which is indexed by node.pos) */
+   private void layout_index(int layer, int[] idx) {
+      int i=0; for(GraphNode n: layerlist.get(layer)) { idx[n.pos()] = i; i++; }
+   }
+
+   /** Returns a copy of the current ordering of every layer. */
+   private List<List<GraphNode>> layout_copyLayers() {
+      List<List<GraphNode>> ans = new ArrayList<List<GraphNode>>(layerlist.size());
+      for(List<GraphNode> layer: layerlist) ans.add(new ArrayList<GraphNode>(layer));
+      return ans;
+   }
+
+   /** Sort the given layer by the weighted median position of each node's neighbors in the adjacent layer (using idx[] for the positions).
+    * <p> A node without neighbors in the adjacent layer keeps its current relative position.
+    */
+   private void layout_medianSort(int layer, int adjacent, boolean useIns, final int[] idx, final double[] key) {
+      final List<GraphNode> list = layerlist.get(layer);
+      final int size = list.size(), other = layerlist.get(adjacent).size();
+      if (size < 2) return;
+      int[] p = new int[8];
+      for(GraphNode n: list) {
+         List<GraphEdge> edges = useIns ? n.ins : n.outs;
+         int m = 0;
+         for(GraphEdge e: edges) {
+            if (m==p.length) p = Arrays.copyOf(p, m*2);
+            p[m++] = idx[(useIns ? e.a() : e.b()).pos()];
+         }
+         double med;
+         if (m==0) { key[n.pos()] = -1; continue; }
+         Arrays.sort(p, 0, m);
+         if (m%2==1) med = p[m/2];
+         else if (m==2) med = (p[0]+p[1]) / 2D;
+         else {
+            double left = p[m/2-1] - p[0], right = p[m-1] - p[m/2];
+            med = (left+right==0) ? (p[m/2-1]+p[m/2]) / 2D : (p[m/2-1]*right + p[m/2]*left) / (left+right);
+         }
+         // Normalize into the scale of this layer, so that nodes without neighbors can be slotted in by their current index
+         key[n.pos()] = other<2 ? idx[n.pos()] : (med * (size-1) / (other-1));
+      }
+      for(GraphNode n: list) if (key[n.pos()] < 0) key[n.pos()] = idx[n.pos()];
+      sortLayer(layer, new Comparator<GraphNode>() {
+         public int compare(GraphNode o1, GraphNode o2) {
+            if (o1==o2) return 0;
+            int n = Double.compare(key[o1.pos()], key[o2.pos()]); if (n!=0) return n; else return idx[o1.pos()] < idx[o2.pos()] ? -1 : 1;
+         }
+      });
+      layout_index(layer, idx);
+   }
+
+   /** Returns the total number of edge crossings between every pair of adjacent layers (using idx[] for the positions).
+    * <p> This uses the accumulator tree described by Wilhelm Barth, Michael Junger, and Petra Mutzel
+    * in "Simple and Efficient Bilayer Cross Counting" (Graph Drawing 2002), so each pair of layers takes O(E log V) time.
+    */
+   private long layout_crossings(int[] idx) {
+      long ans = 0;
+      for(int layer=layers()-1; layer>0; layer--) {
+         int q = layerlist.get(layer-1).size(), first = 1, count = 0;
+         while(first < q) first = first * 2;
+         int[] tree = new int[2*first-1];
+         first = first - 1;
+         int[] south = new int[8];
+         for(GraphNode n: layerlist.get(layer)) {
+            int start = count;
+            for(GraphEdge e: n.outs) {
+               if (count==south.length) south = Arrays.copyOf(south, count*2);
+               south[count++] = idx[e.b().pos()];
+            }
+            Arrays.sort(south, start, count);
+         }
+         for(int k=0; k<count; k++) {
+            int index = south[k] + first;
+            tree[index]++;
+            while(index > 0) {
+               if (index%2 == 1) ans += tree[index+1];
+               index = (index-1) / 2;
+               tree[index]++;
+            }
+         }
+      }
+      return ans;
+   }
+
+   //============================================================================================================================//
+
    /** For each edge coming out of this layer of nodes, add bends to it if it currently overlaps some nodes inappropriately. */
    private void checkUpperCollision(List<GraphNode> top) {
       final int room=2; // This is how much we need to stay clear of a node's boundary
@@ -450,7 +594,8 @@ public final strictfp class Graph {
    private boolean free(GraphNode a, GraphNode b) {
       if (a.layer() > b.layer()) { GraphNode tmp=a; a=b; b=tmp; }
       Line2D.Double line = new Line2D.Double(a.x(), a.y(), b.x(), b.y());
-      for(GraphNode n:nodes) if (n!=a && n!=b && a.layer()<n.layer() && n.layer()<b.layer() && n.shape()!=null) {
+      // Only the nodes in the layers strictly between a and b can be in the way
+      for(int i=a.layer()+1; i<b.layer(); i++) for(GraphNode n: layerlist.get(i)) if (n!=a && n!=b && n.shape()!=null) {
          if (line.intersects(n.getBoundingBox(10,10))) return false;
       }
       return true;
@@ -473,6 +618,7 @@ public final strictfp class Graph {
       final int layers = layout_decideLayer();
       layout_dummyNodesIfNeeded();
       layout_reorderPerLayer();
+      if (nodes.size() >= largeGraph) layout_reorderPerLayerMedian();
 
       // For each layer, this array stores the height of its tallest node
       layerPH = new int[layers];
@@ -496,25 +642,99 @@ public final strictfp class Graph {
          for(int i=0; i<3; i++) for(int layer=0; layer<layers; layer++) layout_xAssignment(layer(layer));
       }
 
-      // Calculate each node's y; we start at y==5 so that we're not touching the top-edge of the window
+      // Calculate each node's y
+      layout_assignY();
+
+      relayout_edges(true);
+
+      // Since we're doing layout for the first time, we need to explicitly set top and bottom, since
+      // otherwise "recalcBound" will merely "extend top and bottom" as needed.
+      recalcBound(true);
+
+      // Build the spatial index now, since layout() usually runs on a background thread, while hit-testing runs on the AWT thread
+      index();
+   }
+
+   /** Calculate each node's y based on the height of each layer; we start at y==5 so that we're not touching the top-edge of the window. */
+   private void layout_assignY() {
       int py=5;
-      for(int layer=layers-1; layer>=0; layer--) {
+      for(int layer=layers()-1; layer>=0; layer--) {
          final int ph = layerPH[layer];
          for(GraphNode n:layer(layer)) n.setY(py + ph/2);
          py = py + ph + yJump;
       }
+   }
 
-      relayout_edges(true);
+   //============================================================================================================================//
 
-      // Since we're doing layout for the first time, we need to explicitly set top and bottom, since
-      // otherwise "recalcBound" will merely "extend top and bottom" as needed.
+   /** Immutable; this records where each node of a laid-out graph was, so that a similar graph can later be laid out the same way. */
+   public static final class Snapshot {
+      /** Maps the uuid of each non-dummy node to its {layer, x}; nodes whose uuid is null or shared by another node are omitted. */
+      private final Map<Object,int[]> map;
+      /** Constructs a snapshot from the given map. */
+      private Snapshot(Map<Object,int[]> map) { this.map = map; }
+   }
+
+   /** Assuming layout() has been called, this returns a snapshot of where each node is, for use by layoutLike(). */
+   public Snapshot snapshot() {
+      Map<Object,int[]> map = new HashMap<Object,int[]>();
+      Set<Object> duplicates = new HashSet<Object>();
+      for(GraphNode n: nodes) if (n.shape()!=null && n.uuid!=null) {
+         if (map.put(n.uuid, new int[]{n.layer(), n.x()})!=null) duplicates.add(n.uuid);
+      }
+      for(Object x: duplicates) map.remove(x);
+      return new Snapshot(map);
+   }
+
+   /** Performs the layout by reusing the node positions in the given snapshot (typically taken from an older version of this graph
+    * that differs only in its styles, or in which edges are shown), so that the nodes stay where the user last saw them.
+    * <p> Every node keeps its old layer and X position; then only the dummy nodes and the edges are laid out again.
+    * <p> This succeeds only if every node has a counterpart in the snapshot, and no edge connects two nodes of the same layer;
+    * otherwise, this method returns false without changing anything (and the caller should call layout() instead).
+    */
+   public boolean layoutLike(Snapshot old) {
+      if (nodes.size()==0) return false;
+      for(GraphNode n: nodes) if (n.shape()==null || n.uuid==null || !old.map.containsKey(n.uuid)) return false;
+      for(GraphEdge e: edges) if (e.a()!=e.b() && old.map.get(e.a().uuid)[0]==old.map.get(e.b().uuid)[0]) return false;
+
+      // Calculate each node's width and height, then put it back where it was
+      for(GraphNode n: nodes) { n.calcBounds(); int[] p = old.map.get(n.uuid); n.setLayer(p[0]); n.setX(p[1]); }
+
+      // Make every edge point downward (just like layout_backEdges), then break up long edges with dummy nodes
+      for(GraphEdge e: edges) if (e.a().layer() < e.b().layer()) e.set(e.bhead(), e.ahead()).reverse();
+      layout_dummyNodesIfNeeded();
+
+      // Place the dummy nodes along the straight line between the two endpoints of their edge, then order each layer by X
+      for(GraphEdge e: edges) if (e.a().shape()!=null && e.b().shape()==null) {
+         GraphNode a = e.a(), b = e.b();
+         while(b.shape()==null) b = b.outs.get(0).b();
+         for(GraphNode d = e.b(); d.shape()==null; d = d.outs.get(0).b())
+            d.setX(a.x() + (b.x()-a.x()) * (a.layer()-d.layer()) / (a.layer()-b.layer()));
+      }
+      for(int i=0; i<layers(); i++) sortLayer(i, new Comparator<GraphNode>() {
+         public int compare(GraphNode o1, GraphNode o2) {
+            if (o1.x()<o2.x()) return -1; else if (o1.x()>o2.x()) return 1; else return o1.pos()<o2.pos() ? -1 : (o1.pos()>o2.pos() ? 1 : 0);
+         }
+      });
+
+      // The nodes may have changed size, so recompute the height of each layer, then each node's Y position
+      layerPH = new int[layers()];
+      for(GraphNode n: nodes) if (layerPH[n.layer()] < n.getHeight()) layerPH[n.layer()] = n.getHeight();
+      layout_assignY();
+
+      // Finally, re-route every edge (this also spreads apart any nodes that now overlap because they grew)
+      relayout_edges(true);
       recalcBound(true);
+      index();
+      return true;
    }
 
    //============================================================================================================================//
 
    /** Re-establish top/left/width/height. */
    void recalcBound(boolean fresh) {
+      index = null;
+      revision++;
       if (nodes.size()==0) { top=0; bottom=10; totalHeight=10; left=0; totalWidth=10; return; }
       if (fresh) { top=nodes.get(0).y()-nodes.get(0).getHeight()/2-5; bottom=nodes.get(0).y()+nodes.get(0).getHeight()/2+5; }
       // Find the leftmost and rightmost pixel
@@ -654,11 +874,12 @@ public final strictfp class Graph {
          int w = (int) getBounds(true, e.getValue().a).getWidth();
          if (x>=getLeft()+10 && x<=getLeft()+10+w) return e.getKey();
       }
-      for(GraphNode n: nodes) {
+      GraphIndex index = index();
+      for(GraphNode n: index.nodes(new Rectangle2D.Double(x, y, 0, 0))) {
          if (n.shape()==null && Math.abs(n.x()-x)<10 && Math.abs(n.y()-y)<10) return n;
          if (n.contains(x,y)) return n;
       }
-      for(GraphEdge e: edges) {
+      for(GraphEdge e: index.edges(new Rectangle2D.Double(x-12/scale, y, 24/scale, 0))) {
          if (e.a() != e.b()) {
             double dx;
             dx = e.path().getXatY(y, 0, 1, Double.NaN); if (!Double.isNaN(dx) && StrictMath.abs(x-dx)<12/scale) return e;
@@ -672,10 +893,22 @@ public final strictfp class Graph {
       return null;
    }
 
+   /** Returns the spatial index over the current node and edge positions (building it if necessary). */
+   GraphIndex index() {
+      if (index==null) index = new GraphIndex(this);
+      return index;
+   }
+
    //============================================================================================================================//
 
    /** Assuming layout has been performed, this draws the graph with the given magnification scale. */
-   void draw(Artist gr, double scale, Object highlight, boolean showLegends) {
+   void draw(Artist gr, double scale, Object highlight, boolean showLegends) { draw(gr, scale, highlight, showLegends, null); }
+
+   /** Assuming layout has been performed, this draws the graph with the given magnification scale,
+    * skipping the nodes and edges that lie completely outside the given rectangle (unless clip==null).
+    * <p> The rectangle is given in the graph's own coordinates (the same as GraphNode.x() and GraphNode.y()).
+    */
+   void draw(Artist gr, double scale, Object highlight, boolean showLegends, Rectangle2D clip) {
       if (nodes.size()==0) return; // The rest of this procedure assumes there is at least one node
       Object group = null;
       GraphNode highFirstNode = null, highLastNode = null;
@@ -692,20 +925,17 @@ public final strictfp class Graph {
          group = highlight;
       }
       // Since drawing an edge will automatically draw all segments if they're connected via dummy nodes,
-      // we must make sure we only draw out edges from non-dummy-nodes
+      // we must make sure we only draw out edges from non-dummy-nodes (and the index's list of edges contains exactly those)
       int maxAscent = Artist.getMaxAscent();
-      for(GraphNode n:nodes) if (n.shape()!=null) {
-         for(GraphEdge e:n.outs)  if (e.group!=group) e.draw(gr, scale, highFirstEdge, group);
-         for(GraphEdge e:n.selfs) if (e.group!=group) e.draw(gr, scale, highFirstEdge, group);
-      }
+      GraphIndex index = index();
+      List<GraphNode> shownNodes = (clip==null ? nodes : index.nodes(clip));
+      List<GraphEdge> shownEdges = (clip==null ? index.chains : index.chains(clip));
+      for(GraphEdge e:shownEdges) if (e.group!=group) e.draw(gr, scale, highFirstEdge, group);
       if (group!=null) {
-         for(GraphNode n:nodes) if (n.shape()!=null) {
-            for(GraphEdge e:n.outs)  if (e.group==group && e!=highFirstEdge) e.draw(gr, scale, highFirstEdge, group);
-            for(GraphEdge e:n.selfs) if (e.group==group && e!=highFirstEdge) e.draw(gr, scale, highFirstEdge, group);
-         }
+         for(GraphEdge e:shownEdges) if (e.group==group && e!=highFirstEdge) e.draw(gr, scale, highFirstEdge, group);
          if (highFirstEdge!=null) highFirstEdge.draw(gr, scale, highFirstEdge, group);
       }
-      for(GraphNode n:nodes) if (highFirstNode!=n && highLastNode!=n) n.draw(gr, scale, n==highlight);
+      for(GraphNode n:shownNodes) if (highFirstNode!=n && highLastNode!=n) n.draw(gr, scale, n==highlight);
       if (highFirstNode!=null) highFirstNode.draw(gr, scale, true);
       if (highLastNode!=null && highLastNode!=highFirstNode) highLastNode.draw(gr, scale, true);
       if (highFirstEdge!=null) highFirstEdge.drawLabel(gr, highFirstEdge.color(), new Color(255,255,255,160));
@@ -734,6 +964,93 @@ public final strictfp class Graph {
       }
    }
 
+   /** Assuming the graph has just been drawn with no highlighting, this redraws the given node as highlighted
+    * (together with every node that is drawn after it and may overlap it, so that the stacking order stays the same).
+    */
+   void drawHighlighted(Artist gr, double scale, GraphNode node) {
+      boolean after = false;
+      for(GraphNode n: index().nodes(GraphIndex.bounds(node))) {
+         if (n==node) after=true;
+         if (after) n.draw(gr, scale, n==node);
+      }
+   }
+
+   //============================================================================================================================//
+
+   /** Assuming layout has been performed, this writes the graph as a PNG file with the given magnification scale and image resolution.
+    * <p> The picture is drawn in horizontal strips by several threads at once (see OurPNGWriter.writePNG),
+    * and each strip only draws the nodes and edges that overlap it; so even very large pictures never need to be in memory all at once.
+    */
+   public void writePNG(String filename, final double scale, double dpiX, double dpiY) throws IOException {
+      try {
+         int width = (int) (getTotalWidth()*scale);   if (width<10) width=10;
+         int height = (int) (getTotalHeight()*scale); if (height<10) height=10;
+         final double w = width/scale;
+         index(); // Build the index now, so that the drawing threads only need to query it
+         OurPNGWriter.writePNG(new OurPNGWriter.Painter() {
+            public void paint(Graphics2D gr, int y, int h) {
+               gr.scale(scale,scale);
+               gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+               draw(new Artist(gr), scale, null, false, new Rectangle2D.Double(getLeft(), y/scale+getTop(), w, h/scale));
+            }
+         }, width, height, filename, dpiX, dpiY);
+      } catch(Throwable ex) {
+         if (ex instanceof IOException) throw (IOException)ex;
+         throw new IOException("Failure writing the PNG file to " + filename + " (" + ex + ")");
+      }
+   }
+
+   /** Assuming layout has been performed, this writes the graph as a one-page PDF file with the given image resolution
+    * (the graph is scaled to fit an 8.5 inch by 11 inch page with 0.5 inch margins).
+    */
+   public void writePDF(String filename, int dpi) throws IOException {
+      try {
+         double xwidth = dpi*8L+(dpi/2L); // Width is up to 8.5 inch
+         double xheight = dpi*11L;        // Height is up to 11 inch
+         double scale1 = (xwidth-dpi)  / getTotalWidth();  // We leave 0.5 inch on the left and right
+         double scale2 = (xheight-dpi) / getTotalHeight(); // We leave 0.5 inch on the left and right
+         if (scale1<scale2) scale2=scale1; // Choose the scale such that the image does not exceed the page in either direction
+         OurPDFWriter x = new OurPDFWriter(filename, dpi, scale2);
+         boolean ok = false;
+         try {
+            draw(new Artist(x), scale2, null, false);
+            x.close();
+            ok = true;
+         } finally {
+            if (!ok) {
+               try { x.close(); } catch(IOException ex) { } // this releases the file and the compressor (if the failed call was not close() itself)
+               new File(filename).delete(); // so that we do not leave a partial file behind, even if close() was what failed
+            }
+         }
+      } catch(Throwable ex) {
+         if (ex instanceof IOException) throw (IOException)ex;
+         throw new IOException("Failure writing the PDF file to " + filename + " (" + ex + ")");
+      }
+   }
+
+   /** Assuming layout has been performed, this writes the graph as an SVG file with the given magnification scale. */
+   public void writeSVG(String filename, double scale) throws IOException {
+      try {
+         int width = (int) (getTotalWidth()*scale);   if (width<10) width=10;
+         int height = (int) (getTotalHeight()*scale); if (height<10) height=10;
+         OurSVGWriter x = new OurSVGWriter(filename, width, height, scale);
+         boolean ok = false;
+         try {
+            draw(new Artist(x), scale, null, false);
+            x.close();
+            ok = true;
+         } finally {
+            if (!ok) {
+               try { x.close(); } catch(IOException ex) { } // this releases the file (if the failed call was not close() itself)
+               new File(filename).delete(); // so that we do not leave a truncated file behind, even if close() was what failed
+            }
+         }
+      } catch(Throwable ex) {
+         if (ex instanceof IOException) throw (IOException)ex;
+         throw new IOException("Failure writing the SVG file to " + filename + " (" + ex + ")");
+      }
+   }
+
    //============================================================================================================================//
 
    /** Helper method that encodes a String for printing into a DOT file. */
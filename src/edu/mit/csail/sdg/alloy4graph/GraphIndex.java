@@ -0,0 +1,248 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4graph;
+
+import static edu.mit.csail.sdg.alloy4graph.Artist.getBounds;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.awt.geom.CubicCurve2D;
+import java.awt.geom.Rectangle2D;
+
+/** Mutable; this is a uniform grid over the bounding boxes of the nodes and edge segments of a laid-out graph,
+ * so that drawing and hit-testing only need to look at the elements near a given rectangle.
+ *
+ * <p> Each node is one item, and each edge segment (that is, each GraphEdge, including the ones that connect dummy nodes)
+ * is one item; since a segment never spans more than one layer, its bounding box stays small even if the edge it belongs to is long.
+ * Query results are returned in the same order as Graph.nodes and Graph.edges (or, for drawn edges, the order that Graph.draw() paints them),
+ * so the caller can use them without changing the stacking order or which element wins a hit test.
+ *
+ * <p> The index becomes stale as soon as any node or edge moves; Graph discards it whenever that happens.
+ *
+ * <p><b>Thread Safety:</b> Can be constructed only by the thread that owns the Graph; once constructed, the queries are synchronized
+ * (so that several threads can draw different parts of the same graph at the same time).
+ */
+
+final class GraphIndex {
+
+    /** The width and height of each grid cell. */
+    private static final int CELL = 256;
+
+    /** The list of nodes, in the same order as Graph.nodes. */
+    private final List<GraphNode> nodes;
+
+    /** The list of edge segments, in the same order as Graph.edges. */
+    private final List<GraphEdge> edges;
+
+    /** The list of drawn edges (that is, the edges leaving a real node), in the order that Graph.draw() paints them;
+     * drawing one of these will also draw every segment that follows it through dummy nodes.
+     */
+    final List<GraphEdge> chains = new ArrayList<GraphEdge>();
+
+    /** For each edge segment, the position (in the chains list) of the drawn edge it belongs to. */
+    private final int[] owner;
+
+    /** The top-left corner of the grid, and the number of columns and rows. */
+    private final int x0, y0, cols, rows;
+
+    /** For each cell, the items that overlap it (nodes are 0..#nodes-1, edge segments are #nodes..#nodes+#edges-1). */
+    private final int[][] cells;
+
+    /** For each cell, the number of items stored in it. */
+    private final int[] counts;
+
+    /** For each item, the last query that returned it (so that each query reports an item at most once). */
+    private final int[] seen;
+
+    /** For each drawn edge, the last query that returned it. */
+    private final int[] seenChain;
+
+    /** The number of queries so far. */
+    private int query = 0;
+
+    /** Constructs the index for the given graph, assuming every node and edge has been laid out. */
+    GraphIndex(Graph graph) {
+        nodes = graph.nodes;
+        edges = graph.edges;
+        for(GraphNode n: nodes) if (n.shape()!=null) { chains.addAll(n.outs); chains.addAll(n.selfs); }
+        owner = new int[edges.size()];
+        seenChain = new int[chains.size()];
+        IdentityHashMap<GraphEdge,Integer> pos = new IdentityHashMap<GraphEdge,Integer>();
+        for(int i=0; i<edges.size(); i++) pos.put(edges.get(i), i);
+        for(int i=0; i<chains.size(); i++) for(GraphEdge e=chains.get(i); ; e=e.b().outs.get(0)) {
+            Integer j = pos.get(e);
+            if (j!=null) owner[j] = i;
+            if (e.b().shape()!=null || e.b().outs.isEmpty()) break;
+        }
+        // Leave room for the arrow heads, the line thickness, and the smoothing done by Artist.drawSmoothly()
+        final int fluff = (int) getBounds(false, "X").getHeight() + 15;
+        int n = nodes.size(), m = n + edges.size();
+        double[] box = new double[4*m];
+        double minX = Double.POSITIVE_INFINITY, minY = minX, maxX = Double.NEGATIVE_INFINITY, maxY = maxX;
+        for(int i=0; i<m; i++) {
+            if (i<n) bound(nodes.get(i), box, 4*i); else bound(edges.get(i-n), fluff, box, 4*i);
+            minX = Math.min(minX, box[4*i]);   minY = Math.min(minY, box[4*i+1]);
+            maxX = Math.max(maxX, box[4*i+2]); maxY = Math.max(maxY, box[4*i+3]);
+        }
+        if (m==0) { minX=0; minY=0; maxX=0; maxY=0; }
+        x0 = (int) StrictMath.floor(minX);
+        y0 = (int) StrictMath.floor(minY);
+        cols = ((int) StrictMath.floor(maxX) - x0) / CELL + 1;
+        rows = ((int) StrictMath.floor(maxY) - y0) / CELL + 1;
+        cells = new int[cols*rows][];
+        counts = new int[cols*rows];
+        seen = new int[m];
+        for(int i=0; i<n; i++) add(i, box[4*i], box[4*i+1], box[4*i+2], box[4*i+3]);
+        for(int i=n; i<m; i++) {
+            // A segment between two adjacent layers can still run a long way sideways, so we add each curve piece separately
+            // (cutting it into smaller pieces as needed) rather than the segment's bounding box, which could cover many empty cells
+            GraphEdge e = edges.get(i-n);
+            for(CubicCurve2D.Double c: e.path().list) add(i, c, fluff, 0);
+            if (e.getLabelW()>0 && e.getLabelH()>0) add(i, e.getLabelX()-fluff, e.getLabelY()-fluff, e.getLabelX()+e.getLabelW()+fluff, e.getLabelY()+e.getLabelH()+fluff);
+            if (e.path().list.isEmpty()) add(i, box[4*i], box[4*i+1], box[4*i+2], box[4*i+3]);
+        }
+    }
+
+    /** Adds the given item to every cell overlapping the rectangle (x1,y1)..(x2,y2). */
+    private void add(int item, double x1, double y1, double x2, double y2) {
+        int c1 = col(x1), c2 = col(x2), r1 = row(y1), r2 = row(y2);
+        for(int r=r1; r<=r2; r++) for(int c=c1; c<=c2; c++) {
+            int k = r*cols + c;
+            if (cells[k]==null) cells[k] = new int[4];
+            else if (cells[k][counts[k]-1]==item) continue; // the previous piece of the same curve already added the item to this cell
+            else if (counts[k]==cells[k].length) cells[k] = Arrays.copyOf(cells[k], counts[k]*2);
+            cells[k][counts[k]++] = item;
+        }
+    }
+
+    /** Adds the given item to every cell that the given curve piece (grown by fluff on every side) may pass through. */
+    private void add(int item, CubicCurve2D.Double c, int fluff, int depth) {
+        // A cubic bezier curve always lies within the convex hull of its 4 points
+        double x1 = min(c.x1, c.ctrlx1, c.ctrlx2, c.x2), x2 = max(c.x1, c.ctrlx1, c.ctrlx2, c.x2);
+        double y1 = min(c.y1, c.ctrly1, c.ctrly2, c.y2), y2 = max(c.y1, c.ctrly1, c.ctrly2, c.y2);
+        if (depth<12 && x2-x1>CELL && y2-y1>CELL/4) {
+            CubicCurve2D.Double first = new CubicCurve2D.Double(), second = new CubicCurve2D.Double();
+            Curve.divide(0.5D, c, first, second);
+            add(item, first, fluff, depth+1);
+            add(item, second, fluff, depth+1);
+        } else {
+            add(item, x1-fluff, y1-fluff, x2+fluff, y2+fluff);
+        }
+    }
+
+    /** Stores the bounding box of the given node into box[i..i+3] as (x1,y1,x2,y2). */
+    private static void bound(GraphNode node, double[] box, int i) {
+        // Circles are drawn around the label box, so we use the half-diagonal rather than the half-width and half-height
+        int w = node.getWidth()/2, h = node.getHeight()/2, r = (int) StrictMath.sqrt(w*(double)w + h*(double)h) + 8;
+        if (node.shape()==null) r = 10; // the mouse can hit a dummy node within 10 pixels of its center
+        box[i] = node.x()-r; box[i+1] = node.y()-r; box[i+2] = node.x()+r; box[i+3] = node.y()+r;
+    }
+
+    /** Returns the bounding box of the given node. */
+    static Rectangle2D bounds(GraphNode node) {
+        double[] box = new double[4];
+        bound(node, box, 0);
+        return new Rectangle2D.Double(box[0], box[1], box[2]-box[0], box[3]-box[1]);
+    }
+
+    /** Stores the bounding box of the given edge segment (and its label), grown by fluff on every side, into box[i..i+3]. */
+    private static void bound(GraphEdge e, int fluff, double[] box, int i) {
+        double x1 = Double.POSITIVE_INFINITY, y1 = x1, x2 = Double.NEGATIVE_INFINITY, y2 = x2;
+        for(CubicCurve2D.Double c: e.path().list) {
+            // A cubic bezier curve always lies within the convex hull of its 4 points
+            x1 = Math.min(x1, min(c.x1, c.ctrlx1, c.ctrlx2, c.x2)); x2 = Math.max(x2, max(c.x1, c.ctrlx1, c.ctrlx2, c.x2));
+            y1 = Math.min(y1, min(c.y1, c.ctrly1, c.ctrly2, c.y2)); y2 = Math.max(y2, max(c.y1, c.ctrly1, c.ctrly2, c.y2));
+        }
+        if (e.getLabelW()>0 && e.getLabelH()>0) {
+            x1 = Math.min(x1, e.getLabelX()); x2 = Math.max(x2, e.getLabelX()+e.getLabelW());
+            y1 = Math.min(y1, e.getLabelY()); y2 = Math.max(y2, e.getLabelY()+e.getLabelH());
+        }
+        if (x1>x2) { x1 = e.a().x(); x2 = x1; y1 = e.a().y(); y2 = y1; }
+        box[i] = x1-fluff; box[i+1] = y1-fluff; box[i+2] = x2+fluff; box[i+3] = y2+fluff;
+    }
+
+    /** Returns the smallest of the 4 numbers. */
+    private static double min(double a, double b, double c, double d) { return Math.min(Math.min(a, b), Math.min(c, d)); }
+
+    /** Returns the largest of the 4 numbers. */
+    private static double max(double a, double b, double c, double d) { return Math.max(Math.max(a, b), Math.max(c, d)); }
+
+    /** Returns the column containing the given X coordinate (clamped to the grid). */
+    private int col(double x) {
+        double c = StrictMath.floor((x-x0) / CELL);
+        return c<0 ? 0 : (c>=cols ? cols-1 : (int)c);
+    }
+
+    /** Returns the row containing the given Y coordinate (clamped to the grid). */
+    private int row(double y) {
+        double r = StrictMath.floor((y-y0) / CELL);
+        return r<0 ? 0 : (r>=rows ? rows-1 : (int)r);
+    }
+
+    /** Returns the sorted list of items in the cells overlapping the given rectangle (x1,y1)..(x2,y2);
+     * every item overlapping the rectangle is included, but the result may also include some nearby items.
+     */
+    private int[] query(double x1, double y1, double x2, double y2) {
+        if (x2 < x0 || y2 < y0 || x1 >= x0 + (double)cols*CELL || y1 >= y0 + (double)rows*CELL) return new int[0];
+        int c1 = col(x1), c2 = col(x2), r1 = row(y1), r2 = row(y2), size = 0;
+        int[] ans = new int[16];
+        query++;
+        for(int r=r1; r<=r2; r++) for(int c=c1; c<=c2; c++) {
+            int k = r*cols + c;
+            for(int j=0; j<counts[k]; j++) {
+                int i = cells[k][j];
+                if (seen[i]==query) continue; else seen[i]=query;
+                if (size==ans.length) ans = Arrays.copyOf(ans, size*2);
+                ans[size++] = i;
+            }
+        }
+        ans = Arrays.copyOf(ans, size);
+        Arrays.sort(ans);
+        return ans;
+    }
+
+    /** Returns the nodes that may overlap the given rectangle, in the same order as Graph.nodes. */
+    synchronized List<GraphNode> nodes(Rectangle2D rect) {
+        int[] items = query(rect.getMinX(), rect.getMinY(), rect.getMaxX(), rect.getMaxY());
+        List<GraphNode> ans = new ArrayList<GraphNode>();
+        for(int i: items) if (i < nodes.size()) ans.add(nodes.get(i)); else break;
+        return ans;
+    }
+
+    /** Returns the edge segments that may pass through the given rectangle, in the same order as Graph.edges. */
+    synchronized List<GraphEdge> edges(Rectangle2D rect) {
+        int[] items = query(rect.getMinX(), rect.getMinY(), rect.getMaxX(), rect.getMaxY());
+        List<GraphEdge> ans = new ArrayList<GraphEdge>();
+        for(int i: items) if (i >= nodes.size()) ans.add(edges.get(i - nodes.size()));
+        return ans;
+    }
+
+    /** Returns the drawn edges that may overlap the given rectangle, in the order that Graph.draw() paints them. */
+    synchronized List<GraphEdge> chains(Rectangle2D rect) {
+        int[] items = query(rect.getMinX(), rect.getMinY(), rect.getMaxX(), rect.getMaxY());
+        int[] ans = new int[items.length];
+        int size = 0;
+        for(int i: items) if (i >= nodes.size()) {
+            int c = owner[i - nodes.size()];
+            if (seenChain[c]!=query) { seenChain[c]=query; ans[size++]=c; }
+        }
+        Arrays.sort(ans, 0, size);
+        List<GraphEdge> list = new ArrayList<GraphEdge>(size);
+        for(int i=0; i<size; i++) list.add(chains.get(ans[i]));
+        return list;
+    }
+}
@@ -34,9 +34,12 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.swing.JLabel;
 import javax.swing.JMenuItem;
 import javax.swing.JPanel;
@@ -48,8 +51,6 @@ import javax.swing.border.EmptyBorder;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import edu.mit.csail.sdg.alloy4.OurDialog;
-import edu.mit.csail.sdg.alloy4.OurPDFWriter;
-import edu.mit.csail.sdg.alloy4.OurPNGWriter;
 import edu.mit.csail.sdg.alloy4.OurUtil;
 import edu.mit.csail.sdg.alloy4.Util;
 
@@ -109,6 +110,9 @@ public final strictfp class GraphViewer extends JPanel {
     /** Stores the mouse positions needed to calculate drag-and-drop. */
     private int oldMouseX=0, oldMouseY=0, oldX=0, oldY=0;
 
+    /** Returns the graph being displayed. */
+    public Graph alloyGetGraph() { return graph; }
+
     /** Repaint this component. */
     public void alloyRepaint() {
         Container c=getParent();
@@ -118,12 +122,17 @@ public final strictfp class GraphViewer extends JPanel {
     }
 
     /** Construct a GraphViewer that displays the given graph. */
-    public GraphViewer(final Graph graph) {
+    public GraphViewer(final Graph graph) { this(graph, false); }
+
+    /** Construct a GraphViewer that displays the given graph; if alreadyLaidOut==false, we will call graph.layout() first.
+     * <p> (Passing true lets the caller run the potentially slow layout on a background thread beforehand.)
+     */
+    public GraphViewer(final Graph graph, boolean alreadyLaidOut) {
         OurUtil.make(this, BLACK, WHITE, new EmptyBorder(0,0,0,0));
         setBorder(null);
         this.scale = graph.defaultScale;
         this.graph = graph;
-        graph.layout();
+        if (!alreadyLaidOut) graph.layout();
         final JMenuItem zoomIn = new JMenuItem("Zoom In");
         final JMenuItem zoomOut = new JMenuItem("Zoom Out");
         final JMenuItem zoomToFit = new JMenuItem("Zoom to Fit");
@@ -359,7 +368,6 @@ public final strictfp class GraphViewer extends JPanel {
        if (filename.exists() && !OurDialog.askOverwrite(filename.getAbsolutePath())) return;
        // Attempt to write the PNG or PDF file
        try {
-          System.gc(); // Try to avoid possible premature out-of-memory exceptions
           if (b3.isSelected())
              alloySaveAsPDF(filename.getAbsolutePath(), (int)dpi);
           else
@@ -373,39 +381,12 @@ public final strictfp class GraphViewer extends JPanel {
 
     /** Export the current drawing as a PDF file with the given image resolution. */
     public void alloySaveAsPDF(String filename, int dpi) throws IOException {
-       try {
-          double xwidth = dpi*8L+(dpi/2L); // Width is up to 8.5 inch
-          double xheight = dpi*11L;        // Height is up to 11 inch
-          double scale1 = (xwidth-dpi)  / graph.getTotalWidth();  // We leave 0.5 inch on the left and right
-          double scale2 = (xheight-dpi) / graph.getTotalHeight(); // We leave 0.5 inch on the left and right
-          if (scale1<scale2) scale2=scale1; // Choose the scale such that the image does not exceed the page in either direction
-          OurPDFWriter x = new OurPDFWriter(filename, dpi, scale2);
-          graph.draw(new Artist(x), scale2, null, false);
-          x.close();
-       } catch(Throwable ex) {
-          if (ex instanceof IOException) throw (IOException)ex;
-          throw new IOException("Failure writing the PDF file to " + filename + " (" + ex + ")");
-       }
+       graph.writePDF(filename, dpi);
     }
 
     /** Export the current drawing as a PNG file with the given file name and image resolution. */
     public void alloySaveAsPNG(String filename, double scale, double dpiX, double dpiY) throws IOException {
-       try {
-          int width = (int) (graph.getTotalWidth()*scale);   if (width<10) width=10;
-          int height = (int) (graph.getTotalHeight()*scale); if (height<10) height=10;
-          BufferedImage bf = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-          Graphics2D gr = (Graphics2D) (bf.getGraphics());
-          gr.setColor(WHITE);
-          gr.fillRect(0, 0, width, height);
-          gr.setColor(BLACK);
-          gr.scale(scale,scale);
-          gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-          graph.draw(new Artist(gr), scale, null, false);
-          OurPNGWriter.writePNG(bf, filename, dpiX, dpiY);
-       } catch(Throwable ex) {
-          if (ex instanceof IOException) throw (IOException)ex;
-          throw new IOException("Failure writing the PNG file to " + filename + " (" + ex + ")");
-       }
+       graph.writePNG(filename, scale, dpiX, dpiY);
     }
 
     /** Show the popup menu at location (x,y) */
@@ -423,17 +404,90 @@ public final strictfp class GraphViewer extends JPanel {
         return new Dimension((int)(graph.getTotalWidth()*scale), (int)(graph.getTotalHeight()*scale));
     }
 
-    /** This method is called by Swing to draw this component. */
+    //===================================================================================================
+
+    /** The width and height of each cached tile, in pixels. */
+    private static final int TILE = 256;
+
+    /** The maximum number of tiles we cache (shared by all GraphViewers, so that keeping many viewers around stays cheap). */
+    private static final int MAX_TILES = 64;
+
+    /** Immutable; identifies one tile of one drawing of one graph. */
+    private static final class TileKey {
+        /** The graph's id (not the graph itself, so that the cache does not keep the graphs of closed viewers alive). */ private final long id;
+        /** The graph's revision when it was drawn. */     private final int revision;
+        /** The zoom scale. */                             private final double scale;
+        /** The column and row of the tile. */             private final int col, row;
+        /** Constructs a new key. */
+        private TileKey(Graph graph, double scale, int col, int row) {
+            this.id=graph.id; this.revision=graph.revision; this.scale=scale; this.col=col; this.row=row;
+        }
+        /** {@inheritDoc} */
+        @Override public boolean equals(Object that) {
+            if (!(that instanceof TileKey)) return false;
+            TileKey x = (TileKey)that;
+            return id==x.id && revision==x.revision && scale==x.scale && col==x.col && row==x.row;
+        }
+        /** {@inheritDoc} */
+        @Override public int hashCode() {
+            long s = Double.doubleToLongBits(scale);
+            return (int)(id ^ (id>>>32)) + 31*revision + (int)(s ^ (s>>>32)) + 1013*col + 7919*row;
+        }
+    }
+
+    /** The cache of rendered tiles, in least-recently-used order (tiles of outdated revisions are never hit again, so they simply age out). */
+    private static final LinkedHashMap<TileKey,BufferedImage> tiles = new LinkedHashMap<TileKey,BufferedImage>(MAX_TILES, 0.75f, true) {
+        private static final long serialVersionUID = 0;
+        @Override protected boolean removeEldestEntry(Map.Entry<TileKey,BufferedImage> eldest) { return size() > MAX_TILES; }
+    };
+
+    /** Returns the given tile of the unhighlighted drawing at the current zoom scale (rendering it if it is not cached). */
+    private BufferedImage tile(int col, int row) {
+        TileKey key = new TileKey(graph, scale, col, row);
+        BufferedImage ans = tiles.get(key);
+        if (ans!=null) return ans;
+        ans = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D gr = ans.createGraphics();
+        gr.setColor(WHITE);
+        gr.fillRect(0, 0, TILE, TILE);
+        gr.setColor(BLACK);
+        gr.translate(-col*TILE, -row*TILE);
+        gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        gr.scale(scale, scale);
+        graph.draw(new Artist(gr), scale, null, true, new Rectangle2D.Double(col*TILE/scale+graph.getLeft(), row*TILE/scale+graph.getTop(), TILE/scale, TILE/scale));
+        gr.dispose();
+        tiles.put(key, ans);
+        return ans;
+    }
+
+    /** This method is called by Swing to draw this component.
+     * <p> While the mouse is merely hovering, the drawing is assembled from cached tiles (with the hovered node, if any, drawn on top);
+     * otherwise we draw directly, but only the nodes and edges that overlap the area Swing asked us to repaint.
+     */
     @Override public void paintComponent(final Graphics gr) {
         super.paintComponent(gr);
         Graphics2D g2 = (Graphics2D)gr;
         AffineTransform oldAF = (AffineTransform) (g2.getTransform().clone());
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        g2.scale(scale, scale);
+        Rectangle clip = g2.getClipBounds();
+        if (clip==null) clip = new Rectangle(0, 0, getWidth(), getHeight());
         Object sel=(selected!=null ? selected : highlight);
         GraphNode c=null;
         if (sel instanceof GraphNode && ((GraphNode)sel).shape()==null) { c = (GraphNode)sel; sel = c.ins.get(0); }
-        graph.draw(new Artist(g2), scale, sel, true);
+        // Unless the device transform is a whole-pixel translation (for example, on a HiDPI screen), the tiles would have to be resampled
+        boolean plain = (oldAF.getType() & ~AffineTransform.TYPE_TRANSLATION)==0
+           && oldAF.getTranslateX()==StrictMath.rint(oldAF.getTranslateX()) && oldAF.getTranslateY()==StrictMath.rint(oldAF.getTranslateY());
+        if (plain && selected==null && (sel==null || sel instanceof GraphNode)) {
+           int c1 = StrictMath.max(clip.x, 0) / TILE, c2 = StrictMath.min(clip.x + clip.width, (int)(graph.getTotalWidth()*scale)) / TILE;
+           int r1 = StrictMath.max(clip.y, 0) / TILE, r2 = StrictMath.min(clip.y + clip.height, (int)(graph.getTotalHeight()*scale)) / TILE;
+           for(int row=r1; row<=r2; row++) for(int col=c1; col<=c2; col++) g2.drawImage(tile(col, row), col*TILE, row*TILE, null);
+           g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+           g2.scale(scale, scale);
+           if (sel!=null) graph.drawHighlighted(new Artist(g2), scale, (GraphNode)sel);
+        } else {
+           g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+           g2.scale(scale, scale);
+           graph.draw(new Artist(g2), scale, sel, true, new Rectangle2D.Double(clip.x/scale+graph.getLeft(), clip.y/scale+graph.getTop(), clip.width/scale, clip.height/scale));
+        }
         if (c!=null) { gr.setColor(((GraphEdge)sel).color()); gr.fillArc(c.x()-5-graph.getLeft(), c.y()-5-graph.getTop(), 10, 10, 0, 360); }
         g2.setTransform(oldAF);
     }
@@ -17,6 +17,7 @@ package edu.mit.csail.sdg.alloy4viz;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,7 +29,8 @@ import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
 
 /** Immutable; represents an Alloy instance that can be displayed in the visualizer.
  *
- * <p><b>Thread Safety:</b> Can be called only by the AWT event thread.
+ * <p><b>Thread Safety:</b> Can be called only by the AWT event thread
+ * (or by a background thread that is generating a graph; the column index built on demand is guarded by this object's lock).
  */
 
 public final class AlloyInstance {
@@ -75,6 +77,14 @@ public final class AlloyInstance {
     */
    private final Map<AlloyRelation,Set<AlloyTuple>> rel2tuples;
 
+   /** For each relation that has been looked up by relation2tuples(rel,column,atom), this stores one map per column,
+    * which maps each atom to the sorted list of tuples having that atom in that column.
+    */
+   private final Map<AlloyRelation,List<Map<AlloyAtom,List<AlloyTuple>>>> columns = new HashMap<AlloyRelation,List<Map<AlloyAtom,List<AlloyTuple>>>>();
+
+   /** This always stores an empty unmodifiable list of tuples. */
+   private static final List<AlloyTuple> noTupleList = ConstList.make();
+
    /** This always stores an empty unmodifiable list of atoms. */
    private static final List<AlloyAtom> noAtom = ConstList.make();
 
@@ -199,6 +209,29 @@ public final class AlloyInstance {
       return answer!=null ? answer : noTuple;
    }
 
+   /** Returns an unmodifiable sorted list of AlloyTuple(s) in this relation that have the given atom at the given column;
+    * answer can be an empty list.
+    * <p> The first lookup into a relation indexes every column of that relation,
+    * so every later lookup into that relation takes time proportional to the size of its answer.
+    */
+   public synchronized List<AlloyTuple> relation2tuples(AlloyRelation rel, int column, AlloyAtom atom) {
+      List<Map<AlloyAtom,List<AlloyTuple>>> index = columns.get(rel);
+      if (index==null) {
+         index = new ArrayList<Map<AlloyAtom,List<AlloyTuple>>>(rel.getArity());
+         for(int i=0; i<rel.getArity(); i++) index.add(new HashMap<AlloyAtom,List<AlloyTuple>>());
+         for(AlloyTuple tuple: relation2tuples(rel)) for(int i=0; i<tuple.getArity(); i++) {
+            AlloyAtom a = tuple.getAtoms().get(i);
+            List<AlloyTuple> list = index.get(i).get(a);
+            if (list==null) index.get(i).put(a, list=new ArrayList<AlloyTuple>());
+            list.add(tuple);
+         }
+         for(Map<AlloyAtom,List<AlloyTuple>> map: index) for(Map.Entry<AlloyAtom,List<AlloyTuple>> e: map.entrySet()) e.setValue(Collections.unmodifiableList(e.getValue()));
+         columns.put(rel, index);
+      }
+      List<AlloyTuple> answer = (column>=0 && column<index.size()) ? index.get(column).get(atom) : null;
+      return answer!=null ? answer : noTupleList;
+   }
+
    /** Two instances are equal if they have the same filename, same commands,
     * same model, and same atoms and tuples relationships.
     */
@@ -69,12 +69,32 @@ public final class StaticGraphMaker {
 
    /** Produces a single Graph from the given Instance and View and choice of Projection */
    public static JPanel produceGraph(AlloyInstance instance, VizState view, AlloyProjection proj) throws ErrorFatal {
-      view = new VizState(view);
+      return produceGraph(instance, view, proj, null);
+   }
+
+   /** Produces a single Graph from the given Instance and View and choice of Projection;
+    * if template!=null, we first try to keep every node where it was in the template (see Graph.layoutLike).
+    */
+   static JPanel produceGraph(AlloyInstance instance, VizState view, AlloyProjection proj, Graph.Snapshot template) throws ErrorFatal {
+      Graph graph = produceLaidOutGraph(instance, new VizState(view), proj, template);
+      if (graph == null) throw new ErrorFatal("The graph generation was interrupted.");
+      return new GraphViewer(graph, true);
+   }
+
+   /** Produces a single Graph from the given Instance and View and choice of Projection, then lays it out.
+    * <p> Since this method does not touch any Swing component, it can be called from a background thread,
+    * as long as the caller passes in a private copy of the VizState that no other thread is modifying.
+    * <p> If template!=null, we first try to keep every node where it was in the template (see Graph.layoutLike).
+    * <p> If the current thread is interrupted before the layout begins, we skip the layout and return null.
+    */
+   static Graph produceLaidOutGraph(AlloyInstance instance, VizState view, AlloyProjection proj, Graph.Snapshot template) throws ErrorFatal {
       if (proj == null) proj = new AlloyProjection();
       Graph graph = new Graph(view.getFontSize() / 12.0D);
       new StaticGraphMaker(graph, instance, view, proj);
       if (graph.nodes.size()==0) new GraphNode(graph, "", "Due to your theme settings, every atom is hidden.", "Please click Theme and adjust your settings.");
-      return new GraphViewer(graph);
+      if (Thread.currentThread().isInterrupted()) return null;
+      if (template==null || !graph.layoutLike(template)) graph.layout();
+      return graph;
    }
 
    /** The list of colors, in order, to assign each legend. */
@@ -287,26 +307,25 @@ public final class StaticGraphMaker {
       //   and SET2's "show in relational attribute" is on,
       //   then the A node would have a line that says "F: B (SET1, SET2)->C, D->E"
       //
-      Map<GraphNode,String> map = new LinkedHashMap<GraphNode,String>();
+      Map<GraphNode,StringBuilder> map = new LinkedHashMap<GraphNode,StringBuilder>();
       for (AlloyTuple tuple: instance.relation2tuples(rel)) {
          GraphNode start=atom2node.get(tuple.getStart());
          if (start==null) continue; // null means the node won't be shown, so we can't show any attributes
-         String attr="";
+         StringBuilder attr=new StringBuilder();
          List<AlloyAtom> atoms=tuple.getAtoms();
          for (int i=1; i<atoms.size(); i++) {
-            if (i>1) attr+="->";
-            attr+=atomname(atoms.get(i),true);
+            if (i>1) attr.append("->");
+            attr.append(atomname(atoms.get(i),true));
          }
          if (attr.length()==0) continue;
-         String oldattr=map.get(start);
-         if (oldattr!=null && oldattr.length()>0) attr=oldattr+", "+attr;
-         if (attr.length()>0) map.put(start,attr);
+         StringBuilder oldattr=map.get(start); // append in place, so a node with many tuples does not make this quadratic
+         if (oldattr==null) map.put(start,attr); else oldattr.append(", ").append(attr);
       }
-      for (Map.Entry<GraphNode,String> e: map.entrySet()) {
+      for (Map.Entry<GraphNode,StringBuilder> e: map.entrySet()) {
          GraphNode node = e.getKey();
          Set<String> list = attribs.get(node);
          if (list==null) attribs.put(node, list=new TreeSet<String>());
-         String attr = e.getValue();
+         String attr = e.getValue().toString();
          if (view.label.get(rel).length()>0) attr = view.label.get(rel) + ": " + attr;
          list.add(attr);
       }
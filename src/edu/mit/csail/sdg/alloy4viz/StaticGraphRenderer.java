@@ -0,0 +1,101 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4viz;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorFatal;
+import edu.mit.csail.sdg.alloy4compiler.ast.Func;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
+import edu.mit.csail.sdg.alloy4graph.Graph;
+
+/** This utility class renders an instance straight into a PNG, PDF, or SVG file, without creating any Swing component
+ * (so it can be used in batch jobs, and with java.awt.headless=true).
+ *
+ * <p><b>Thread Safety:</b> Safe; different threads can render at the same time, since each call works on its own instance, theme, and graph.
+ */
+
+public final class StaticGraphRenderer {
+
+   /** Constructor is private, since this utility class never needs to be instantiated. */
+   private StaticGraphRenderer() { }
+
+   /** Reads the instance from the given XML file, customizes it with the given theme file (unless themeFilename==null),
+    * lays it out, then writes it to the given output file.
+    *
+    * <p> The output format is chosen by the output file's extension: ".png", ".pdf", or ".svg".
+    * For PNG and SVG, the picture is magnified by the given scale (and a PNG is marked as 72*scale dots-per-inch);
+    * for PDF, the picture is fitted onto an 8.5 inch by 11 inch page at 72*scale dots-per-inch.
+    *
+    * <p> If the theme projects over some types, the first atom of each projected type is chosen (just like the visualizer does initially).
+    *
+    * @throws Err if the instance cannot be read
+    * @throws IOException if the theme cannot be read, or the output file cannot be written
+    */
+   public static void render(String instanceFilename, String themeFilename, String outputFilename, double scale) throws Err, IOException {
+      render(StaticInstanceReader.parseInstance(new File(instanceFilename)), themeFilename, outputFilename, scale);
+   }
+
+   /** Converts the given satisfiable solution straight into an instance (without writing an instance file),
+    * customizes it with the given theme file (unless themeFilename==null), lays it out, then writes it to the given output file.
+    * <p> The macros (which can be null) and the output file are treated as in StaticInstanceReader.parseInstance(sol, macros) and render(instanceFilename...).
+    * @throws Err if the solution cannot be converted
+    * @throws IOException if the theme cannot be read, or the output file cannot be written
+    */
+   public static void render(A4Solution sol, Iterable<Func> macros, String themeFilename, String outputFilename, double scale) throws Err, IOException {
+      render(StaticInstanceReader.parseInstance(sol, macros), themeFilename, outputFilename, scale);
+   }
+
+   /** Customizes the given instance with the given theme file (unless themeFilename==null), lays it out, then writes it to the given output file. */
+   private static void render(AlloyInstance instance, String themeFilename, String outputFilename, double scale) throws Err, IOException {
+      VizState theme = new VizState(instance);
+      if (themeFilename!=null) theme.loadPaletteXML(themeFilename);
+      write(layout(instance, theme, null), outputFilename, scale);
+   }
+
+   /** Generates the graph for the given instance and projection (or the default projection if proj==null) using the given theme, then lays it out.
+    * <p> The theme is copied first, so the caller may keep using it; but no other thread may modify it while this method is running.
+    * @throws ErrorFatal if the graph cannot be generated
+    */
+   public static Graph layout(AlloyInstance instance, VizState theme, AlloyProjection proj) throws ErrorFatal {
+      VizState copy = new VizState(theme);
+      if (proj == null) {
+         Map<AlloyType,AlloyAtom> map = new LinkedHashMap<AlloyType,AlloyAtom>();
+         for(AlloyType type: copy.getProjectedTypes()) {
+            List<AlloyAtom> atoms = instance.type2atoms(type);
+            map.put(type, atoms.size()>0 ? atoms.get(0) : null);
+         }
+         proj = new AlloyProjection(map);
+      }
+      Graph graph = StaticGraphMaker.produceLaidOutGraph(instance, copy, proj, null);
+      if (graph == null) throw new ErrorFatal("The graph generation was interrupted.");
+      return graph;
+   }
+
+   /** Writes the given laid-out graph into the given file (see render() for how the format and scale are chosen). */
+   public static void write(Graph graph, String outputFilename, double scale) throws IOException {
+      String name = outputFilename.toLowerCase(Locale.US);
+      if (name.endsWith(".png")) graph.writePNG(outputFilename, scale, 72*scale, 72*scale);
+      else if (name.endsWith(".pdf")) graph.writePDF(outputFilename, (int) StrictMath.round(72*scale));
+      else if (name.endsWith(".svg")) graph.writeSVG(outputFilename, scale);
+      else throw new IOException("The output file \"" + outputFilename + "\" must end with .png, .pdf, or .svg");
+   }
+}
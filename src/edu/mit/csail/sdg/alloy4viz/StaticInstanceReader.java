@@ -26,22 +26,29 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorAPI;
 import edu.mit.csail.sdg.alloy4.ErrorFatal;
 import edu.mit.csail.sdg.alloy4.ErrorSyntax;
+import edu.mit.csail.sdg.alloy4.UniqueNameGenerator;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.XMLNode;
 import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
 import edu.mit.csail.sdg.alloy4compiler.ast.ExprVar;
+import edu.mit.csail.sdg.alloy4compiler.ast.Func;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.PrimSig;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.SubsetSig;
+import edu.mit.csail.sdg.alloy4compiler.ast.Type;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4InstanceFile;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4SolutionReader;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4SolutionWriter;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Tuple;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4TupleSet;
 
-/** This utility class parses an XML file into an AlloyInstance object.
+/** This utility class parses an XML file (or a binary instance file) into an AlloyInstance object,
+ * or converts a solution that is already in memory into an AlloyInstance object.
  *
  * <p><b>Thread Safety:</b> Can be called only by the AWT event thread.
  */
@@ -178,9 +185,9 @@ public final class StaticInstanceReader {
       }
    }
 
-   /** Construct an AlloySet or AlloyRelation corresponding to the given expression. */
-   private void setOrRel(A4Solution sol, String label, Expr expr, boolean isPrivate, boolean isMeta) throws Err {
-      for(List<PrimSig> ps:expr.type().fold()) {
+   /** Construct an AlloySet or AlloyRelation corresponding to the given expression (whose value must be fully contained inside the given type). */
+   private void setOrRel(A4Solution sol, String label, Expr expr, Type type, boolean isPrivate, boolean isMeta) throws Err {
+      for(List<PrimSig> ps:type.fold()) {
          if (ps.size()==1) {
             PrimSig t = ps.get(0);
             AlloySet set = makeSet(label, isPrivate, isMeta, sig(t));
@@ -210,13 +217,26 @@ public final class StaticInstanceReader {
       }
    }
 
-   /** Parse the file into an AlloyInstance if possible. */
-   private StaticInstanceReader(XMLNode root) throws Err {
+   /** Returns true if the given skolem (or macro) has a nonempty value (since A4SolutionWriter never writes an empty skolem). */
+   private static boolean nonempty(A4Solution sol, Expr expr) throws Err {
+      return expr.type().hasTuple() && ((A4TupleSet)(sol.eval(expr))).size()>0;
+   }
+
+   /** Parse the XML element into an AlloyInstance if possible. */
+   private static AlloyInstance parse(XMLNode root) throws Err {
       XMLNode inst = null;
       for(XMLNode sub: root) if (sub.is("instance")) { inst=sub; break; }
       if (inst==null) throw new ErrorSyntax("The XML file must contain an <instance> element.");
       boolean isMeta = "yes".equals(inst.getAttribute("metamodel"));
-      A4Solution sol = A4SolutionReader.read(new ArrayList<Sig>(), root);
+      return (new StaticInstanceReader(A4SolutionReader.read(new ArrayList<Sig>(), root), isMeta, false, null)).ans;
+   }
+
+   /** Convert the solution (which is a metamodel if isMeta==true) into an AlloyInstance if possible.
+    * <p> If direct==true, the solution came straight from the solver rather than from an instance file,
+    * so we skip and grow the same things that A4SolutionWriter would have skipped and grown when writing it out,
+    * and each macro with no arguments becomes a skolem named "$" followed by its name (just like A4SolutionWriter and A4SolutionReader do).
+    */
+   private StaticInstanceReader(A4Solution sol, boolean isMeta, boolean direct, Iterable<Func> macros) throws Err {
       for (Sig s:sol.getAllReachableSigs()) if (s instanceof PrimSig && ((PrimSig)s).parent==Sig.UNIV) toplevels.add((PrimSig)s);
       if (!isMeta) {
          sig2type.put(Sig.UNIV, AlloyType.UNIV);
@@ -231,9 +251,16 @@ public final class StaticInstanceReader {
          }
          for(Sig s:sol.getAllReachableSigs()) if (!s.builtin && s instanceof PrimSig) sig((PrimSig)s);
          for(Sig s:toplevels)                 if (!s.builtin || s==Sig.STRING)        atoms(sol, (PrimSig)s);
-         for(Sig s:sol.getAllReachableSigs()) if (s instanceof SubsetSig)             setOrRel(sol, s.label, s, s.isPrivate!=null, s.isMeta!=null);
-         for(Sig s:sol.getAllReachableSigs()) for(Field f:s.getFields())              setOrRel(sol, f.label, f, f.isPrivate!=null, f.isMeta!=null);
-         for(ExprVar s:sol.getAllSkolems())   setOrRel(sol, s.label, s, false, false);
+         for(Sig s:sol.getAllReachableSigs()) if (s instanceof SubsetSig)             setOrRel(sol, s.label, s, s.type(), s.isPrivate!=null, s.isMeta!=null);
+         for(Sig s:sol.getAllReachableSigs()) for(Field f:s.getFields())              setOrRel(sol, f.label, f, direct ? A4SolutionWriter.type(sol, f) : f.type(), f.isPrivate!=null, f.isMeta!=null);
+         UniqueNameGenerator un = new UniqueNameGenerator();
+         for(ExprVar s:sol.getAllSkolems())   if (nonempty(sol, s)) setOrRel(sol, un.seen(s.label), s, direct ? A4SolutionWriter.type(sol, s) : s.type(), false, false);
+         if (direct && macros!=null) for(Func f:macros) if (f.count()==0 && nonempty(sol, f.call())) {
+            // A4Solution names a skolem read back from a file by the tail of its label, made unique with respect to the earlier ones
+            String label = Util.tail(f.label);
+            while(label.length()>0 && label.charAt(0)=='$') label=label.substring(1);
+            setOrRel(sol, un.make("$"+label), f.call(), A4SolutionWriter.type(sol, f.call()), false, false);
+         }
       }
       if (isMeta) {
          sigMETA(Sig.UNIV);
@@ -287,19 +314,31 @@ public final class StaticInstanceReader {
       ans=new AlloyInstance(sol, sol.getOriginalFilename(), sol.getOriginalCommand(), am, atom2sets, rels, isMeta);
    }
 
-   /** Parse the file into an AlloyInstance if possible. */
+   /** Parse the file (which can be an XML file, or a binary instance file written by A4Solution.writeInstance) into an AlloyInstance if possible. */
    public static AlloyInstance parseInstance(File file) throws Err {
-      try {
-         return (new StaticInstanceReader(new XMLNode(file))).ans;
-      } catch(IOException ex) {
-         throw new ErrorFatal("Error reading the XML file: " + ex, ex);
-      }
+      return parseInstance(new A4InstanceFile(file));
+   }
+
+   /** Convert the instance file (which has already been read) into an AlloyInstance if possible. */
+   public static AlloyInstance parseInstance(A4InstanceFile file) throws Err {
+      return (new StaticInstanceReader(file.read(null), file.isMetamodel(), false, null)).ans;
+   }
+
+   /** Convert the satisfiable solution straight into an AlloyInstance, without writing it to an instance file and reading it back.
+    * <p> The result is the same as writing the solution out by A4Solution.writeInstance(rep, filename, macros, sources)
+    * then calling parseInstance(filename), except that the AlloyInstance refers to the given solution rather than to a copy read back from the file,
+    * and that every atom keeps its name from the given solution (whereas reading a file back may renumber the atoms of a sig with 10 or more atoms).
+    * @param macros - if nonnull, each macro with no arguments is included as a skolem (just like the macros given to writeInstance)
+    */
+   public static AlloyInstance parseInstance(A4Solution sol, Iterable<Func> macros) throws Err {
+      if (!sol.satisfiable()) throw new ErrorAPI("This solution is unsatisfiable.");
+      return (new StaticInstanceReader(sol, false, true, macros)).ans;
    }
 
    /** Parse the file into an AlloyInstance if possible, then close the Reader afterwards. */
    public static AlloyInstance parseInstance(Reader reader) throws Err {
       try {
-         return (new StaticInstanceReader(new XMLNode(reader))).ans;
+         return parse(new XMLNode(reader));
       } catch(IOException ex) {
          throw new ErrorFatal("Error reading the XML file: " + ex, ex);
       }
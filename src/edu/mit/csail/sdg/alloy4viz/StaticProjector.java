@@ -124,28 +124,40 @@ public final class StaticProjector {
       for(AlloyRelation r:oldInstance.model.getRelations()) {
          List<Integer> list=data.get(r);
          if (list==null) continue; // This means that relation was deleted entirely
+         // If an atom in the original tuple should be projected, but it doesn't match the
+         // chosen atom for that type, then this tuple must not be included in the new instance
+         AlloyAtom[] chosen=new AlloyAtom[list.size()];
+         for(int j=0; j<chosen.length; j++) chosen[j]=projection.getProjectedAtom(oldInstance.model.getTopmostSuperType(r.getTypes().get(list.get(j))));
+         // So we only need to look at the tuples that have the chosen atom in the first projected column
+         Collection<AlloyTuple> candidates;
+         if (chosen.length==0) candidates=oldInstance.relation2tuples(r);
+         else if (chosen[0]==null) continue;
+         else candidates=oldInstance.relation2tuples(r, list.get(0), chosen[0]);
+         if (candidates.isEmpty()) continue;
+         List<AlloyType> newObj=r.project(list);
+         AlloyRelation r2=null;
+         Set<AlloyTuple> answer=null;
+         AlloySet set=null;
+         if (newObj.size()>1) {
+            r2=new AlloyRelation(r.getName(), r.isPrivate, r.isMeta, newObj);
+            answer=rel2tuples.get(r2);
+         } else if (newObj.size()==1) {
+            set=new AlloySet(r.getName(), r.isPrivate, r.isMeta, newObj.get(0));
+         } else {
+            continue;
+         }
          tupleLabel:
-            for(AlloyTuple oldTuple:oldInstance.relation2tuples(r)) {
-               for (Integer i:list) {
-                  // If an atom in the original tuple should be projected, but it doesn't match the
-                  // chosen atom for that type, then this tuple must not be included in the new instance
-                  AlloyAtom a=oldTuple.getAtoms().get(i);
-                  AlloyType bt=r.getTypes().get(i);
-                  bt=oldInstance.model.getTopmostSuperType(bt);
-                  if (!a.equals(projection.getProjectedAtom(bt))) continue tupleLabel;
-               }
-               List<AlloyAtom> newTuple=oldTuple.project(list);
-               List<AlloyType> newObj=r.project(list);
-               if (newObj.size()>1 && newTuple.size()>1) {
-                  AlloyRelation r2=new AlloyRelation(r.getName(), r.isPrivate, r.isMeta, newObj);
-                  Set<AlloyTuple> answer=rel2tuples.get(r2);
+            for(AlloyTuple oldTuple:candidates) {
+               for(int j=1; j<chosen.length; j++) if (!oldTuple.getAtoms().get(list.get(j)).equals(chosen[j])) continue tupleLabel;
+               List<AlloyAtom> newTuple=(chosen.length==0) ? null : oldTuple.project(list);
+               if (r2!=null && (newTuple==null || newTuple.size()>1)) {
                   if (answer==null) rel2tuples.put(r2, answer=new LinkedHashSet<AlloyTuple>());
-                  answer.add(new AlloyTuple(newTuple));
-               } else if (newObj.size()==1 && newTuple.size()==1) {
+                  answer.add(newTuple==null ? oldTuple : new AlloyTuple(newTuple)); // If nothing is projected, the tuple is unchanged
+               } else if (set!=null && newTuple.size()==1) {
                   AlloyAtom a=newTuple.get(0);
-                  Set<AlloySet> answer=atom2sets.get(a);
-                  if (answer==null) atom2sets.put(a, answer=new LinkedHashSet<AlloySet>());
-                  answer.add(new AlloySet(r.getName(), r.isPrivate, r.isMeta, newObj.get(0)));
+                  Set<AlloySet> sets=atom2sets.get(a);
+                  if (sets==null) atom2sets.put(a, sets=new LinkedHashSet<AlloySet>());
+                  sets.add(set);
                }
             }
       }
@@ -18,8 +18,12 @@ package edu.mit.csail.sdg.alloy4viz;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,7 +38,8 @@ import edu.mit.csail.sdg.alloy4graph.DotStyle;
 
 /** This utility class contains methods to read and write VizState customizations.
  *
- * <p><b>Thread Safety:</b> Can be called only by the AWT event thread.
+ * <p><b>Thread Safety:</b> readAlloy(filename, model) can be called by any thread;
+ * the other methods can be called only by the thread that owns the given VizState (usually the AWT event thread).
  */
 
 public final class StaticThemeReaderWriter {
@@ -53,6 +58,43 @@ public final class StaticThemeReaderWriter {
       }
    }
 
+   /** The maximum number of resolved themes to keep in the cache; the least recently used ones are evicted first. */
+   private static final int MAX_CACHED_THEMES = 16;
+
+   /** This caches each resolved theme, keyed by the content of the theme file and by the model it was resolved against. */
+   private static final LinkedHashMap<List<Object>,VizState> themes = new LinkedHashMap<List<Object>,VizState>(16, 0.75f, true) {
+      private static final long serialVersionUID = 0;
+      @Override protected boolean removeEldestEntry(Map.Entry<List<Object>,VizState> eldest) { return size() > MAX_CACHED_THEMES; }
+   };
+
+   /** Returns the settings in the XML file, resolved against the given model (as if they were merged into a VizState with default settings).
+    *
+    * <p> The file is read every time (so that changes to it are noticed), but it is parsed and resolved only once
+    * for each distinct content and model; so switching between instances of the same model, or rendering many of them,
+    * does not parse the theme again.
+    *
+    * <p> The answer is shared, so the caller must not modify it; copying it into a VizState is cheap,
+    * since every copy shares its maps until the copy modifies them.
+    */
+   static VizState readAlloy(String filename, AlloyModel model) throws IOException {
+      File file = new File(filename);
+      try {
+         List<Object> key = Arrays.<Object>asList(Util.readAll(file.getPath()), model);
+         VizState ans;
+         synchronized(themes) { ans = themes.get(key); }
+         if (ans != null) return ans;
+         XMLNode elem = new XMLNode(new StringReader((String)(key.get(0))));
+         VizState theme = new VizState(new AlloyInstance(null, "", "", model,
+            new HashMap<AlloyAtom,Set<AlloySet>>(), new HashMap<AlloyRelation,Set<AlloyTuple>>(), false));
+         for(XMLNode sub: elem.getChildren("view")) parseView(sub,theme);
+         ans = new VizState(theme); // Making a copy marks every map as shared, so no VizState will ever modify these maps in place
+         synchronized(themes) { themes.put(key, ans); }
+         return ans;
+      } catch(Throwable e) {
+         throw new IOException("The file \""+file.getPath()+"\" is not a valid XML file, or an error occurred in reading.");
+      }
+   }
+
    /** Write the VizState's customizations into a new file (which will be overwritten if it exists). */
    public static void writeAlloy(String filename, VizState theme) throws IOException {
       PrintWriter bw = new PrintWriter(filename,"UTF-8");
@@ -66,6 +66,7 @@ import edu.mit.csail.sdg.alloy4.OurUtil;
 import edu.mit.csail.sdg.alloy4.Runner;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.Version;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4InstanceFile;
 import edu.mit.csail.sdg.alloy4graph.GraphViewer;
 
 /** GUI main window for the visualizer.
@@ -179,6 +180,9 @@ public final class VizGUI implements ComponentListener {
    /** Returns the current XML filename; "" if no file is currently loaded. */
    public String getXMLfilename() { return xmlFileName; }
 
+   /** The current XML file as it was read (so that the evaluator does not have to read it again); null if there is no XML file loaded. */
+   private A4InstanceFile xmlFile = null;
+
    //==============================================================================================//
 
    /** The list of XML files loaded in this session so far. */
@@ -326,6 +330,7 @@ public final class VizGUI implements ComponentListener {
     * @param windowmenu - if standalone==false and windowmenu!=null, then this will be added as a menu on the menubar
     * @param enumerator - if it's not null, it provides solution enumeration ability
     * @param evaluator - if it's not null, it provides solution evaluation ability
+    * (it is first given the current instance file as an A4InstanceFile, then each expression to evaluate as a String)
     *
     * <p> Note: if standalone==false and xmlFileName.length()==0, then we will initially hide the window.
     */
@@ -339,6 +344,7 @@ public final class VizGUI implements ComponentListener {
     * @param windowmenu - if standalone==false and windowmenu!=null, then this will be added as a menu on the menubar
     * @param enumerator - if it's not null, it provides solution enumeration ability
     * @param evaluator - if it's not null, it provides solution evaluation ability
+    * (it is first given the current instance file as an A4InstanceFile, then each expression to evaluate as a String)
     * @param makeWindow - if false, then we will only construct the JSplitPane, without making the window
     *
     * <p> Note: if standalone==false and xmlFileName.length()==0 and makeWindow==true, then we will initially hide the window.
@@ -587,7 +593,7 @@ public final class VizGUI implements ComponentListener {
                   "The ", true, "Alloy Evaluator ", false,
                   "allows you to type\nin Alloy expressions and see their values.\nFor example, ", true,
                   "univ", false, " shows the list of all atoms.\n(You can press UP and DOWN to recall old inputs).\n");
-         try { evaluator.compute(new File(xmlFileName)); } catch(Exception ex) { } // exception should not happen
+         try { evaluator.compute(xmlFile); } catch(Exception ex) { } // exception should not happen
          left = myEvaluatorPanel;
          left.setBorder(new OurBorder(false, false, false, false));
       }
@@ -666,9 +672,11 @@ public final class VizGUI implements ComponentListener {
       File f = new File(xmlFileName);
       if (forcefully || !xmlFileName.equals(this.xmlFileName)) {
          AlloyInstance myInstance;
+         A4InstanceFile myFile;
          try {
             if (!f.exists()) throw new IOException("File " + xmlFileName + " does not exist.");
-            myInstance = StaticInstanceReader.parseInstance(f);
+            myFile = new A4InstanceFile(f);
+            myInstance = StaticInstanceReader.parseInstance(myFile);
          } catch (Throwable e) {
             xmlLoaded.remove(fileName);
             xmlLoaded.remove(xmlFileName);
@@ -681,6 +689,7 @@ public final class VizGUI implements ComponentListener {
          repopulateProjectionPopup();
          xml2title.put(xmlFileName, makeVizTitle());
          this.xmlFileName = xmlFileName;
+         this.xmlFile = myFile;
       }
       if (!xmlLoaded.contains(xmlFileName)) xmlLoaded.add(xmlFileName);
       if (myGraphPanel != null) myGraphPanel.resetProjectionAtomCombos();
@@ -781,6 +790,8 @@ public final class VizGUI implements ComponentListener {
       if (wrap) return wrapMe();
       xmlLoaded.clear();
       xmlFileName="";
+      xmlFile=null;
+      if (myState!=null) myState.cancelGraphs(); // no point laying out graphs nobody will see
       if (standalone) System.exit(0); else if (frame!=null) frame.setVisible(false);
       return null;
    }
@@ -876,7 +887,7 @@ public final class VizGUI implements ComponentListener {
        Util.setCurrentDirectory(file.getParentFile());
        String filename = Util.canon(file.getPath());
        try {
-          Util.writeAll(filename, Util.readAll(xmlFileName));
+          if (xmlFile!=null) xmlFile.copyTo(new File(filename)); else Util.writeAll(filename, Util.readAll(xmlFileName));
        } catch (Throwable er) {
           OurDialog.alert("Error saving XML instance.\n\nError: " + er.getMessage());
        }
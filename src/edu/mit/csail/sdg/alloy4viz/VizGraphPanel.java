@@ -224,7 +224,37 @@ public final class VizGraphPanel extends JPanel {
       remakeAll();
    }
 
-   /** Regenerate the comboboxes and the graph. */
+   /** When a graph finishes being laid out in the background, we regenerate the display to show it. */
+   private final Runnable whenGraphReady = new Runnable() {
+      public void run() { remakeAll(); }
+   };
+
+   /** When prefetching, we consider the atoms that are this many steps forward (and half as many steps backward) of the current atom. */
+   private static final int PREFETCH_DISTANCE = 4;
+
+   /** Returns the projections reachable from the given choice by stepping one projected type's atom a few steps forward or backward;
+    * the nearest choices come first (and forward steps before backward steps, since that is the usual direction when browsing a trace).
+    */
+   private List<AlloyProjection> neighbors(Map<AlloyType,AlloyAtom> current) {
+      List<AlloyProjection> ans = new ArrayList<AlloyProjection>();
+      for(int distance=1; distance<=PREFETCH_DISTANCE; distance++) {
+         for(Map.Entry<AlloyType,AlloyAtom> e: current.entrySet()) {
+            TypePanel tp = type2panel.get(e.getKey());
+            if (tp==null || e.getValue()==null) continue;
+            List<AlloyAtom> atoms = tp.getAlloyAtoms();
+            int i = atoms.indexOf(e.getValue());
+            if (i<0) continue;
+            for(int j: new int[]{ i+distance, (distance*2 <= PREFETCH_DISTANCE) ? i-distance : -1 }) if (j>=0 && j<atoms.size()) {
+               Map<AlloyType,AlloyAtom> map = new LinkedHashMap<AlloyType,AlloyAtom>(current);
+               map.put(e.getKey(), atoms.get(j));
+               ans.add(new AlloyProjection(map));
+            }
+         }
+      }
+      return ans;
+   }
+
+   /** Regenerate the comboboxes and the graph (if the graph is not ready yet, a placeholder is shown until it is). */
    public void remakeAll() {
       Map<AlloyType,AlloyAtom> map=new LinkedHashMap<AlloyType,AlloyAtom>();
       navPanel.removeAll();
@@ -239,7 +269,8 @@ public final class VizGraphPanel extends JPanel {
          map.put(tp.getAlloyType(), tp.getAlloyAtom());
       }
       currentProjection = new AlloyProjection(map);
-      JPanel graph = vizState.getGraph(currentProjection);
+      JPanel graph = vizState.getGraph(currentProjection, whenGraphReady);
+      vizState.prefetchGraphs(neighbors(map));
       if (seeDot && (graph instanceof GraphViewer)) {
          viewer = null;
          JTextArea txt = OurUtil.textarea(graph.toString(), 10, 10, false, true, getFont());
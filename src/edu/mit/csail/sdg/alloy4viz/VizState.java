@@ -18,12 +18,24 @@ package edu.mit.csail.sdg.alloy4viz;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.swing.Icon;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
 import edu.mit.csail.sdg.alloy4.ConstSet;
 import edu.mit.csail.sdg.alloy4.MailBug;
 import edu.mit.csail.sdg.alloy4.OurCheckbox;
@@ -32,6 +44,8 @@ import edu.mit.csail.sdg.alloy4graph.DotColor;
 import edu.mit.csail.sdg.alloy4graph.DotPalette;
 import edu.mit.csail.sdg.alloy4graph.DotShape;
 import edu.mit.csail.sdg.alloy4graph.DotStyle;
+import edu.mit.csail.sdg.alloy4graph.Graph;
+import edu.mit.csail.sdg.alloy4graph.GraphViewer;
 
 /** Mutable; this stores an unprojected model as well as the current theme customization.
  *
@@ -49,9 +63,18 @@ public final class VizState {
       loadInstance(originalInstance);
    }
 
-   /** Make a copy of an existing VizState object. */
+   /** Make a copy of an existing VizState object.
+    * <p> The copy shares the customization maps with the old VizState, until either of them changes a map (then that map is copied first);
+    * so making a copy is cheap, and a copy given to a background thread is unaffected by later changes to the old VizState.
+    */
    public VizState(VizState old) {
       originalInstance = old.originalInstance;
+      copyTheme(old);
+      changedSinceLastSave = false;
+   }
+
+   /** Replaces the current (possibly projected) model, and every theme setting, by the ones from the given VizState. */
+   private void copyTheme(VizState old) {
       currentModel = old.currentModel;
       projectedTypes = new TreeSet<AlloyType>(old.projectedTypes);
       useOriginalNames = old.useOriginalNames;
@@ -60,24 +83,23 @@ public final class VizState {
       fontSize = old.fontSize;
       nodePalette = old.nodePalette;
       edgePalette = old.edgePalette;
-      nodeColor.putAll(old.nodeColor);
-      nodeStyle.putAll(old.nodeStyle);
-      nodeVisible.putAll(old.nodeVisible);
-      label.putAll(old.label);
-      number.putAll(old.number);
-      hideUnconnected.putAll(old.hideUnconnected);
-      showAsAttr.putAll(old.showAsAttr);
-      showAsLabel.putAll(old.showAsLabel);
-      shape.putAll(old.shape);
-      weight.putAll(old.weight);
-      attribute.putAll(old.attribute);
-      mergeArrows.putAll(old.mergeArrows);
-      constraint.putAll(old.constraint);
-      layoutBack.putAll(old.layoutBack);
-      edgeColor.putAll(old.edgeColor);
-      edgeStyle.putAll(old.edgeStyle);
-      edgeVisible.putAll(old.edgeVisible);
-      changedSinceLastSave = false;
+      nodeColor.share(old.nodeColor);
+      nodeStyle.share(old.nodeStyle);
+      nodeVisible.share(old.nodeVisible);
+      label.share(old.label);
+      number.share(old.number);
+      hideUnconnected.share(old.hideUnconnected);
+      showAsAttr.share(old.showAsAttr);
+      showAsLabel.share(old.showAsLabel);
+      shape.share(old.shape);
+      weight.share(old.weight);
+      attribute.share(old.attribute);
+      mergeArrows.share(old.mergeArrows);
+      constraint.share(old.constraint);
+      layoutBack.share(old.layoutBack);
+      edgeColor.share(old.edgeColor);
+      edgeStyle.share(old.edgeStyle);
+      edgeVisible.share(old.edgeVisible);
    }
 
    /** Clears the current theme. */
@@ -124,7 +146,7 @@ public final class VizState {
       edgeColor.put(ext,DotColor.BLACK); weight.put(ext,100); layoutBack.put(ext,true);
       edgeColor.put(in,DotColor.BLACK); weight.put(in,100); layoutBack.put(in,true);
       // Done
-      cache.clear();
+      flushGraphs();
       changedSinceLastSave=false;
    }
 
@@ -135,16 +157,16 @@ public final class VizState {
       this.originalInstance=unprojectedInstance;
       for (AlloyType t:getProjectedTypes()) if (!unprojectedInstance.model.hasType(t)) projectedTypes.remove(t);
       currentModel = StaticProjector.project(unprojectedInstance.model, projectedTypes);
-      cache.clear();
+      flushGraphs();
    }
 
    /** Erase the current theme customizations and then load it from a file.
     * @throws IOException - if an error occurred
     */
    public void loadPaletteXML(String filename) throws IOException {
-      resetTheme();
-      StaticThemeReaderWriter.readAlloy(filename,this);
-      cache.clear();
+      // The theme is resolved against our model once, and then shared by every VizState with an equal model (see StaticThemeReaderWriter)
+      copyTheme(StaticThemeReaderWriter.readAlloy(filename, originalInstance.model));
+      flushGraphs();
       changedSinceLastSave=false;
    }
 
@@ -156,8 +178,196 @@ public final class VizState {
       changedSinceLastSave=false;
    }
 
-   /** Caches previously generated graphs. */
-   private LinkedHashMap<AlloyProjection,JPanel> cache=new LinkedHashMap<AlloyProjection,JPanel>();
+   /** The maximum number of generated graphs to keep in the cache; the least recently used graphs are evicted first. */
+   private static final int MAX_CACHED_GRAPHS = 32;
+
+   /** Caches previously generated graphs (in least-recently-used order, so the eldest entry is the first to be evicted). */
+   private LinkedHashMap<AlloyProjection,JPanel> cache=new LinkedHashMap<AlloyProjection,JPanel>(16, 0.75f, true) {
+      private static final long serialVersionUID = 0;
+      @Override protected boolean removeEldestEntry(Map.Entry<AlloyProjection,JPanel> eldest) { return size() > MAX_CACHED_GRAPHS; }
+   };
+
+   /** Makes a thread factory for background graph layout threads with the given name and priority. */
+   private static ThreadFactory daemon(final String name, final int priority) {
+      return new ThreadFactory() {
+         public Thread newThread(Runnable task) {
+            Thread ans = new Thread(task, name);
+            ans.setDaemon(true);
+            ans.setPriority(priority);
+            return ans;
+         }
+      };
+   }
+
+   /** The background thread that builds and lays out the graphs the user asks for, so that the AWT event thread stays responsive.
+    * <p> Since it is a single thread, a cancelled request that has not started yet will never run at all.
+    */
+   private static final ExecutorService builder = Executors.newSingleThreadExecutor(daemon("Alloy graph layout", Thread.NORM_PRIORITY - 1));
+
+   /** The background thread that speculatively builds and lays out graphs the user is likely to ask for next.
+    * <p> We keep it as a ThreadPoolExecutor so that cancelled speculations can be purged from its queue right away
+    * (rather than piling up behind the one that is running).
+    */
+   private static final ThreadPoolExecutor prefetcher = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+      new LinkedBlockingQueue<Runnable>(), daemon("Alloy graph prefetch", Thread.MIN_PRIORITY));
+
+   /** This stores a background computation in progress (or queued).
+    * <p> Once the user asks for a graph that is being computed speculatively, the same task is also queued on the builder thread,
+    * and whichever thread gets to it first computes it (the other one will find it already claimed, and do nothing).
+    */
+   private static final class Job {
+      /** The task that computes the graph. */
+      Runnable task;
+      /** The future that can be used to cancel this computation. */
+      Future<?> future;
+      /** If nonnull, this is the copy of the task queued on the builder thread after the user asked for a speculative graph. */
+      Future<?> foreground;
+      /** True if this computation was started speculatively by prefetchGraphs() and nobody has asked for it yet. */
+      boolean speculative;
+      /** True if a thread has started running the task (guarded by this Job's lock). */
+      private boolean claimed;
+      /** If nonnull, this is the thread currently running the task (guarded by this Job's lock). */
+      private Thread runner;
+      /** Returns true if the current thread should run the task (that is, if no other thread has started it yet). */
+      synchronized boolean claim() {
+         if (claimed) return false;
+         claimed = true;
+         runner = Thread.currentThread();
+         return true;
+      }
+      /** Records that the task has finished. */
+      synchronized void finish() { runner = null; }
+      /** If the task is running, raise its thread to the builder thread's priority (the thread restores its own priority afterwards). */
+      synchronized void raise() { if (runner!=null && runner.getPriority() < Thread.NORM_PRIORITY - 1) runner.setPriority(Thread.NORM_PRIORITY - 1); }
+      /** Cancel every copy of the task. */
+      void cancel() {
+         future.cancel(true);
+         if (foreground!=null) foreground.cancel(true);
+      }
+   }
+
+   /** The background computations currently in progress (or queued), keyed by the projection they are generating. */
+   private final Map<AlloyProjection,Job> jobs = new HashMap<AlloyProjection,Job>();
+
+   /** The projection most recently requested by getGraph(projection, whenReady) that was not cached at the time (or null if none). */
+   private AlloyProjection wanted = null;
+
+   /** If wanted!=null, this is the callback to call once that projection's graph is ready. */
+   private Runnable wantedCallback = null;
+
+   /** When a theme change does not affect the layout, this remembers where the nodes were in each flushed graph,
+    * so that regenerating the graph can keep the nodes in place (the least recently flushed entries are evicted first).
+    */
+   private final LinkedHashMap<AlloyProjection,Graph.Snapshot> templates = new LinkedHashMap<AlloyProjection,Graph.Snapshot>(16, 0.75f, true) {
+      private static final long serialVersionUID = 0;
+      @Override protected boolean removeEldestEntry(Map.Entry<AlloyProjection,Graph.Snapshot> eldest) { return size() > MAX_CACHED_GRAPHS; }
+   };
+
+   /** This is incremented whenever the cache is flushed, so that results computed for older settings are discarded. */
+   private int generation = 0;
+
+   /** Flush all cached graphs, and cancel every background computation (since their results would be based on stale settings). */
+   private void flushGraphs() { flushGraphs(false); }
+
+   /** Flush all cached graphs, and cancel every background computation (since their results would be based on stale settings);
+    * if keepLayout==true, we remember where the nodes of each flushed graph were, so the regenerated graphs can keep them there.
+    */
+   private void flushGraphs(boolean keepLayout) {
+      if (!keepLayout) templates.clear();
+      else for(Map.Entry<AlloyProjection,JPanel> e: cache.entrySet()) if (e.getValue() instanceof GraphViewer)
+         templates.put(e.getKey(), ((GraphViewer)(e.getValue())).alloyGetGraph().snapshot());
+      cache.clear();
+      generation++;
+      cancelJobs();
+      wanted = null;
+      wantedCallback = null;
+   }
+
+   /** Cancel every background computation of this VizState. */
+   private void cancelJobs() {
+      for(Job job: jobs.values()) job.cancel();
+      jobs.clear();
+      prefetcher.purge();
+   }
+
+   /** Cancel every background computation of this VizState (for example, because its window has been closed). */
+   public void cancelGraphs() {
+      cancelJobs();
+      wanted = null;
+      wantedCallback = null;
+   }
+
+   /** Start building and laying out the graph for the given projection on the given background thread.
+    * <p> When done, the AWT event thread caches the result, and notifies wantedCallback if the user is waiting for it.
+    */
+   private void submit(final AlloyProjection projectionChoice, ExecutorService executor, boolean speculative) {
+      final VizState snapshot = new VizState(this);
+      final AlloyInstance inst = originalInstance;
+      final int gen = generation;
+      final Graph.Snapshot template = templates.get(projectionChoice);
+      final Job job = new Job();
+      job.speculative = speculative;
+      jobs.put(projectionChoice, job);
+      job.task = new Runnable() {
+         public void run() {
+            if (!job.claim()) return; // the other thread got to it first
+            Graph graph = null;
+            Throwable error = null;
+            int priority = Thread.currentThread().getPriority();
+            try {
+               graph = StaticGraphMaker.produceLaidOutGraph(inst, snapshot, projectionChoice, template);
+            } catch(Throwable ex) {
+               error = ex;
+            } finally {
+               job.finish();
+               Thread.currentThread().setPriority(priority); // in case raise() was called
+            }
+            if (graph==null && error==null) return; // cancelled
+            final Graph finalGraph = graph;
+            final Throwable finalError = error;
+            SwingUtilities.invokeLater(new Runnable() {
+               public void run() {
+                  if (gen!=generation || jobs.get(projectionChoice)!=job) return; // stale or cancelled
+                  jobs.remove(projectionChoice);
+                  boolean isWanted = projectionChoice.equals(wanted);
+                  if (finalGraph==null && !isWanted) return; // a failed speculation is not worth reporting
+                  JPanel done = (finalGraph!=null) ? new GraphViewer(finalGraph, true) : makeErrorPanel(finalError);
+                  done.setBorder(null);
+                  cache.put(projectionChoice, done);
+                  if (isWanted) {
+                     Runnable callback = wantedCallback;
+                     wanted = null;
+                     wantedCallback = null;
+                     if (callback!=null) callback.run();
+                  }
+                  if (finalGraph==null) cache.remove(projectionChoice); // so that the next request will try again
+               }
+            });
+         }
+      };
+      job.future = executor.submit(job.task);
+   }
+
+   /** The user has asked for the graph that the given speculative computation is generating;
+    * so if it has not started yet, we also queue it on the builder thread (instead of leaving it behind the other speculations),
+    * and if it has started already, we raise its thread's priority to that of the builder thread.
+    */
+   private void promote(Job job) {
+      job.speculative = false;
+      job.foreground = builder.submit(job.task);
+      job.raise(); // the speculative copy stays queued, so that cancel() can still interrupt it if it is the one running
+   }
+
+   /** Returns a panel that displays the given error. */
+   private static JPanel makeErrorPanel(Throwable ex) {
+      String msg = "An error has occurred: " + ex + "\n\nStackTrace:\n" + MailBug.dump(ex) + "\n";
+      JScrollPane scroll = OurUtil.scrollpane(OurUtil.textarea(msg, 0, 0, false, false));
+      JPanel ans = new JPanel();
+      ans.setLayout(new BorderLayout());
+      ans.add(scroll, BorderLayout.CENTER);
+      ans.setBackground(Color.WHITE);
+      return ans;
+   }
 
    /** Generate a VizGraphPanel for a given projection choice, using the current settings. */
    public JPanel getGraph(AlloyProjection projectionChoice) {
@@ -165,20 +375,58 @@ public final class VizState {
       if (ans!=null) return ans;
       AlloyInstance inst = originalInstance;
       try {
-         ans = StaticGraphMaker.produceGraph(inst, this, projectionChoice);
+         ans = StaticGraphMaker.produceGraph(inst, this, projectionChoice, templates.get(projectionChoice));
          cache.put(projectionChoice, ans);
       } catch(Throwable ex) {
-         String msg = "An error has occurred: " + ex + "\n\nStackTrace:\n" + MailBug.dump(ex) + "\n";
-         JScrollPane scroll = OurUtil.scrollpane(OurUtil.textarea(msg, 0, 0, false, false));
-         ans = new JPanel();
-         ans.setLayout(new BorderLayout());
-         ans.add(scroll, BorderLayout.CENTER);
-         ans.setBackground(Color.WHITE);
+         ans = makeErrorPanel(ex);
       }
       ans.setBorder(null);
       return ans;
    }
 
+   /** Generate a VizGraphPanel for a given projection choice, using the current settings, without blocking the AWT event thread.
+    *
+    * <p> If the graph is already cached, it is returned right away.
+    * Otherwise, this method returns a placeholder panel immediately, and builds and lays out the graph on a background thread;
+    * when that is done, the graph is cached, and then whenReady.run() is called by the AWT event thread
+    * (so the caller can call this method again to retrieve the finished graph).
+    *
+    * <p> Requesting a different projection, or changing any theme setting, cancels the computation in progress,
+    * and whenReady will not be called for it.
+    */
+   public JPanel getGraph(final AlloyProjection projectionChoice, final Runnable whenReady) {
+      JPanel ans = cache.get(projectionChoice);
+      if (ans!=null) return ans;
+      for(Iterator<Map.Entry<AlloyProjection,Job>> it = jobs.entrySet().iterator(); it.hasNext();) {
+         Map.Entry<AlloyProjection,Job> e = it.next();
+         if (!e.getValue().speculative && !e.getKey().equals(projectionChoice)) { e.getValue().cancel(); it.remove(); }
+      }
+      wanted = projectionChoice;
+      wantedCallback = whenReady;
+      Job job = jobs.get(projectionChoice);
+      if (job==null) submit(projectionChoice, builder, false); else if (job.speculative) promote(job);
+      ans = OurUtil.make(new JPanel(new BorderLayout()), Color.BLACK, Color.WHITE);
+      ans.add(OurUtil.label("Laying out the graph...", Color.GRAY), BorderLayout.NORTH);
+      ans.setBorder(null);
+      return ans;
+   }
+
+   /** Speculatively build and lay out the graphs for the given projection choices on a low-priority background thread,
+    * so that they are already cached if the user asks for them (for example, when stepping through the atoms of a projected type).
+    *
+    * <p> Any speculative computation that is not in the given list is cancelled;
+    * at most MAX_CACHED_GRAPHS/2 choices are considered, so that the speculation never evicts most of the cache.
+    */
+   public void prefetchGraphs(List<AlloyProjection> projectionChoices) {
+      if (projectionChoices.size() > MAX_CACHED_GRAPHS/2) projectionChoices = projectionChoices.subList(0, MAX_CACHED_GRAPHS/2);
+      for(Iterator<Map.Entry<AlloyProjection,Job>> it = jobs.entrySet().iterator(); it.hasNext();) {
+         Map.Entry<AlloyProjection,Job> e = it.next();
+         if (e.getValue().speculative && !projectionChoices.contains(e.getKey()) && !e.getKey().equals(wanted)) { e.getValue().cancel(); it.remove(); }
+      }
+      prefetcher.purge();
+      for(AlloyProjection p: projectionChoices) if (!cache.containsKey(p) && !jobs.containsKey(p)) submit(p, prefetcher, true);
+   }
+
    /** True if the theme has been modified since last save. */
    private boolean changedSinceLastSave=false;
 
@@ -186,12 +434,17 @@ public final class VizState {
    public boolean changedSinceLastSave() { return changedSinceLastSave; }
 
    /** Sets the "changed since last save" flag, then flush any cached generated graphs. */
-   private void change() { changedSinceLastSave=true; cache.clear(); }
+   private void change() { changedSinceLastSave=true; flushGraphs(); }
+
+   /** Sets the "changed since last save" flag, then flush any cached generated graphs;
+    * since the change does not affect the layout (eg. a color, a label, or which edges are shown), regenerated graphs keep their nodes in place.
+    */
+   private void restyle() { changedSinceLastSave=true; flushGraphs(true); }
 
    /** If oldValue is different from newValue, then sets the "changed since last save" flag and flush the cache. */
-   private void changeIf(Object oldValue, Object newValue) {
+   private void changeIf(Object oldValue, Object newValue, boolean keepLayout) {
       if (oldValue==null) { if (newValue==null) return; } else { if (oldValue.equals(newValue)) return; }
-      change();
+      if (keepLayout) restyle(); else change();
    }
 
    /*============================================================================================*/
@@ -276,7 +529,7 @@ public final class VizState {
 
    /** Sets whether we will use original atom names or not. */
    public void useOriginalName(Boolean newValue) {
-      if (newValue!=null && useOriginalNames!=newValue) { change(); useOriginalNames=newValue; }
+      if (newValue!=null && useOriginalNames!=newValue) { restyle(); useOriginalNames=newValue; }
    }
 
    /*============================================================================================*/
@@ -289,7 +542,7 @@ public final class VizState {
 
    /** Sets whether we will hide private sigs/fields/relations. */
    public void hidePrivate(Boolean newValue) {
-      if (newValue!=null && hidePrivate!=newValue) { change(); hidePrivate=newValue; }
+      if (newValue!=null && hidePrivate!=newValue) { restyle(); hidePrivate=newValue; }
    }
 
    /*============================================================================================*/
@@ -302,7 +555,7 @@ public final class VizState {
 
    /** Sets whether we will hide meta sigs/fields/relations. */
    public void hideMeta(Boolean newValue) {
-      if (newValue!=null && hideMeta!=newValue) { change(); hideMeta=newValue; }
+      if (newValue!=null && hideMeta!=newValue) { restyle(); hideMeta=newValue; }
    }
 
    /*============================================================================================*/
@@ -326,7 +579,7 @@ public final class VizState {
 
    /** Sets the default node palette. */
    public void setNodePalette(DotPalette x) {
-      if (nodePalette!=x && x!=null) {change(); nodePalette=x;}
+      if (nodePalette!=x && x!=null) {restyle(); nodePalette=x;}
    }
 
    /*============================================================================================*/
@@ -339,7 +592,7 @@ public final class VizState {
 
    /** Sets the default edge palette. */
    public void setEdgePalette(DotPalette x) {
-      if (edgePalette!=x && x!=null) {change(); edgePalette=x;}
+      if (edgePalette!=x && x!=null) {restyle(); edgePalette=x;}
    }
 
    /*============================================================================================*/
@@ -364,32 +617,41 @@ public final class VizState {
    public final MMap<Boolean> showAsAttr      = new MMap<Boolean>(true, false);
    public final MMap<Boolean> showAsLabel     = new MMap<Boolean>(true, false);
 
+   // Each map below may be shared with copies of this VizState (see the copy constructor);
+   // so every method that modifies a map must first call own() to make sure this VizState has its own copy of it.
+
    public final class MInt {
-      private final LinkedHashMap<AlloyElement,Integer> map = new LinkedHashMap<AlloyElement,Integer>();
+      private LinkedHashMap<AlloyElement,Integer> map = new LinkedHashMap<AlloyElement,Integer>();
+      private boolean shared = false;
       private MInt() { }
-      private void clear() { map.clear(); change(); }
-      private void putAll(MInt x) { map.putAll(x.map); change(); }
+      private void own() { if (shared) { map = new LinkedHashMap<AlloyElement,Integer>(map); shared = false; } }
+      private void share(MInt x) { map = x.map; shared = true; if (!x.shared) x.shared = true; }
+      private void clear() { if (shared) { map = new LinkedHashMap<AlloyElement,Integer>(); shared = false; } else map.clear(); change(); }
       public int get(AlloyElement x)             { Integer ans=map.get(x); if (ans==null) return 0; else return ans; }
-      public void put(AlloyElement x, Integer v) { if (v==null || v<0) v=0; changeIf(map.put(x,v), v); }
+      public void put(AlloyElement x, Integer v) { if (v==null || v<0) v=0; own(); changeIf(map.put(x,v), v, false); }
    }
 
    public final class MString {
-      private final LinkedHashMap<AlloyElement,String> map = new LinkedHashMap<AlloyElement,String>();
+      private LinkedHashMap<AlloyElement,String> map = new LinkedHashMap<AlloyElement,String>();
+      private boolean shared = false;
       private MString() { }
-      private void clear() { map.clear(); change(); }
-      private void putAll(MString x) { map.putAll(x.map); change(); }
+      private void own() { if (shared) { map = new LinkedHashMap<AlloyElement,String>(map); shared = false; } }
+      private void share(MString x) { map = x.map; shared = true; if (!x.shared) x.shared = true; }
+      private void clear() { if (shared) { map = new LinkedHashMap<AlloyElement,String>(); shared = false; } else map.clear(); change(); }
       public String get(AlloyElement x)         { String ans=map.get(x); if (ans==null) ans=x.getName().trim(); return ans; }
-      public void put(AlloyElement x, String v) { if (x==null && v==null) v=""; if (x!=null && x.getName().equals(v)) v=null; changeIf(map.put(x,v), v); }
+      public void put(AlloyElement x, String v) { if (x==null && v==null) v=""; if (x!=null && x.getName().equals(v)) v=null; own(); changeIf(map.put(x,v), v, true); }
    }
 
    public final class MMap<T> {
-      private final LinkedHashMap<AlloyElement,T> map = new LinkedHashMap<AlloyElement,T>();
+      private LinkedHashMap<AlloyElement,T> map = new LinkedHashMap<AlloyElement,T>();
+      private boolean shared = false;
       private final T onValue;
       private final T offValue;
       private MMap() { onValue=null; offValue=null; }
       private MMap(T on, T off) { this.onValue=on; this.offValue=off; }
-      private void clear() { map.clear(); change(); }
-      private void putAll(MMap<T> x) { map.putAll(x.map); change(); }
+      private void own() { if (shared) { map = new LinkedHashMap<AlloyElement,T>(map); shared = false; } }
+      private void share(MMap<T> x) { map = x.map; shared = true; if (!x.shared) x.shared = true; }
+      private void clear() { if (shared) { map = new LinkedHashMap<AlloyElement,T>(); shared = false; } else map.clear(); change(); }
       public T get(AlloyElement obj) { return map.get(obj); }
       public T resolve(AlloyElement obj) {
          AlloyModel m = currentModel;
@@ -398,8 +660,10 @@ public final class VizState {
       /** Set the value for the given object; can be "null" to mean "inherit" */
       public void put(AlloyElement obj, T value) {
          if (obj==null && value==null) return;
+         own();
          Object old = map.put(obj, value);
-         if ((old==null && value!=null) || (old!=null && !old.equals(value))) change();
+         // Changing which edges influence the layout, or their direction, requires a fresh layout
+         changeIf(old, value, this!=constraint && this!=layoutBack);
       }
       OurCheckbox pick(String label, String tooltip) {
          return new OurCheckbox(label, tooltip, (Boolean.TRUE.equals(get(null)) ? OurCheckbox.ON : OurCheckbox.OFF)) {
@@ -137,6 +137,7 @@ public final class SimpleCLI {
         String txt = sw.toString();
         A4SolutionReader.read(new ArrayList<Sig>(), new XMLNode(new StringReader(txt))).toString();
         StaticInstanceReader.parseInstance(new StringReader(txt));
+        StaticInstanceReader.parseInstance(sol, null);
     }
 
     public static void main(String[] args) throws Exception {
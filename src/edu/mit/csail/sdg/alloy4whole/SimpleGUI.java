@@ -145,7 +145,6 @@ import edu.mit.csail.sdg.alloy4.Runner;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.Version;
 import edu.mit.csail.sdg.alloy4.WorkerEngine;
-import edu.mit.csail.sdg.alloy4.XMLNode;
 import edu.mit.csail.sdg.alloy4compiler.ast.Browsable;
 import edu.mit.csail.sdg.alloy4compiler.ast.Command;
 import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
@@ -157,10 +156,10 @@ import edu.mit.csail.sdg.alloy4compiler.parser.CompUtil;
 import edu.mit.csail.sdg.alloy4compiler.sim.SimInstance;
 import edu.mit.csail.sdg.alloy4compiler.sim.SimTuple;
 import edu.mit.csail.sdg.alloy4compiler.sim.SimTupleset;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4InstanceFile;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Options;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Options.SatSolver;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
-import edu.mit.csail.sdg.alloy4compiler.translator.A4SolutionReader;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Tuple;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4TupleSet;
 import edu.mit.csail.sdg.alloy4viz.VizGUI;
@@ -968,6 +967,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
         opt.coreGranularity = CoreGranularity.get();
         opt.originalFilename = Util.canon(text.get().getFilename());
         opt.solver = Solver.get();
+        opt.shareSources = true; // only for our temporary files (so that enumerating many solutions does not write the same source files again and again); exporting an instance writes them inline
         task.bundleIndex = i;
         task.bundleWarningNonFatal = WarningNonfatal.get();
         task.map = text.takeSnapshot();
@@ -1466,35 +1466,39 @@ public final class SimpleGUI implements ComponentListener, Listener {
         return ct;
     }
 
-    /** This object performs expression evaluation. */
+    /** This object performs expression evaluation.
+     * <p> The instance file is read, and its model is parsed, only once (rather than once per expression);
+     * this is redone only when a different instance file is given.
+     */
     private static Computer evaluator = new Computer() {
+        /** The instance file; null if it has to be read from the filename. */
+        private A4InstanceFile file = null;
+        /** The instance filename. */
         private String filename = null;
+        /** The model and the solution that were built from the instance file; null if they have not been built yet. */
+        private Module root = null;
+        private A4Solution ans = null;
+        /** The resolution mode used when parsing the model. */
+        private int resolution = 0;
         public final String compute(final Object input) throws Exception {
-            if (input instanceof File) { filename = ((File)input).getAbsolutePath(); return ""; }
+            if (input instanceof A4InstanceFile) { if (file!=input) { file = (A4InstanceFile)input; root = null; ans = null; } return ""; }
+            if (input instanceof File) { file = null; filename = ((File)input).getAbsolutePath(); root = null; ans = null; return ""; }
             if (!(input instanceof String)) return "";
             final String str = (String)input;
             if (str.trim().length()==0) return ""; // Empty line
-            Module root = null;
-            A4Solution ans = null;
-            try {
-                Map<String,String> fc = new LinkedHashMap<String,String>();
-                XMLNode x = new XMLNode(new File(filename));
-                if (!x.is("alloy")) throw new Exception();
-                String mainname=null;
-                for(XMLNode sub: x) if (sub.is("instance")) {
-                   mainname=sub.getAttribute("filename");
-                   break;
-                }
-                if (mainname==null) throw new Exception();
-                for(XMLNode sub: x) if (sub.is("source")) {
-                   String name = sub.getAttribute("filename");
-                   String content = sub.getAttribute("content");
-                   fc.put(name, content);
-                }
-                root = CompUtil.parseEverything_fromFile(A4Reporter.NOP, fc, mainname, (Version.experimental && ImplicitThis.get()) ? 2 : 1);
-                ans = A4SolutionReader.read(root.getAllReachableSigs(), x);
+            int resolution = (Version.experimental && ImplicitThis.get()) ? 2 : 1;
+            if (root==null || resolution!=this.resolution) try {
+                root = null;
+                ans = null;
+                if (file==null) file = new A4InstanceFile(new File(filename));
+                Map<String,String> fc = new LinkedHashMap<String,String>(file.getSources());
+                Module root = CompUtil.parseEverything_fromFile(A4Reporter.NOP, fc, file.getOriginalFilename(), resolution);
+                A4Solution ans = file.read(root.getAllReachableSigs());
                 for(ExprVar a:ans.getAllAtoms())   { root.addGlobal(a.label, a); }
                 for(ExprVar a:ans.getAllSkolems()) { root.addGlobal(a.label, a); }
+                this.root = root;
+                this.ans = ans;
+                this.resolution = resolution;
             } catch(Throwable ex) {
                 throw new ErrorFatal("Failed to read or parse the XML file.");
             }
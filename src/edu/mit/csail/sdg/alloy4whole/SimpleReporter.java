@@ -41,7 +41,6 @@ import edu.mit.csail.sdg.alloy4.Pair;
 import edu.mit.csail.sdg.alloy4.Pos;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.Version;
-import edu.mit.csail.sdg.alloy4.XMLNode;
 import edu.mit.csail.sdg.alloy4.WorkerEngine.WorkerCallback;
 import edu.mit.csail.sdg.alloy4.WorkerEngine.WorkerTask;
 import edu.mit.csail.sdg.alloy4compiler.ast.Command;
@@ -359,9 +358,9 @@ final class SimpleReporter extends A4Reporter {
     /** Constructor is private. */
     private SimpleReporter(WorkerCallback cb, boolean recordKodkod) { this.cb=cb; this.recordKodkod=recordKodkod; }
 
-    /** Helper method to write out a full XML file. */
+    /** Helper method to write out a full instance file (in XML format, or in the binary format if the options asked for it). */
     private static void writeXML(A4Reporter rep, Module mod, String filename, A4Solution sol, Map<String,String> sources) throws Exception {
-        sol.writeXML(rep, filename, mod.getAllFunc(), sources);
+        sol.writeInstance(rep, filename, mod.getAllFunc(), sources);
         if ("yes".equals(System.getProperty("debug"))) validate(filename);
     }
 
@@ -412,9 +411,9 @@ final class SimpleReporter extends A4Reporter {
         }
     }
 
-    /** Validate the given filename to see if it is a valid Alloy XML instance file. */
+    /** Validate the given filename to see if it is a valid Alloy instance file. */
     private static void validate(String filename) throws Exception {
-        A4SolutionReader.read(new ArrayList<Sig>(), new XMLNode(new File(filename))).toString();
+        A4SolutionReader.read(new ArrayList<Sig>(), new File(filename)).toString();
         StaticInstanceReader.parseInstance(new File(filename));
     }
 
@@ -0,0 +1,72 @@
+package java_cup.runtime;
+
+import edu.mit.csail.sdg.alloy4.Pos;
+
+/**
+ * SymbolFactory that recycles the nonterminal Symbols it creates.
+ *
+ * <p> During an LR parse, every reduction allocates one Symbol for the left hand side,
+ * and the Symbols for the right hand side are dead as soon as they are popped off the
+ * parse stack (the action code only reads their value, left and right fields).
+ * So when the parser pops a handle, it gives the Symbols back to this factory,
+ * and the next reduction reuses them instead of allocating new ones.
+ *
+ * <p> Only Symbols created by this factory are ever recycled; terminal Symbols
+ * created by the scanner are left alone, since the scanner may still refer to them.
+ *
+ * <p><b>Thread Safety:</b>  Not safe for use by multiple threads.
+ */
+public final class PooledSymbolFactory implements SymbolFactory {
+
+    /** The maximum number of free Symbols we keep around. */
+    private static final int MAX = 256;
+
+    /** The free Symbols; free[0..count-1] are available. */
+    private final Symbol[] free = new Symbol[MAX];
+
+    /** The number of free Symbols. */
+    private int count = 0;
+
+    /** Constructs a new factory with an empty pool. */
+    public PooledSymbolFactory() { }
+
+    /** Returns a free Symbol (or a new one if the pool is empty), initialized with the given fields. */
+    private Symbol make(int id, int left, int right, Pos pos, Object value) {
+        Symbol ans;
+        if (count > 0) { ans = free[--count]; free[count] = null; } else { ans = new Symbol(id); ans.pooled = true; }
+        ans.sym = id;
+        ans.parse_state = 0;
+        ans.used_by_parser = false;
+        ans.left = left;
+        ans.right = right;
+        ans.pos = pos;
+        ans.value = value;
+        return ans;
+    }
+
+    /** If x is a Symbol created by this factory, then return it to the pool. */
+    public void recycle(Object x) {
+        if (count < MAX && x instanceof Symbol && ((Symbol)x).pooled) {
+            Symbol s = (Symbol)x;
+            s.value = null; // so that the pool doesn't keep AST nodes alive
+            s.pos = null;
+            free[count++] = s;
+        }
+    }
+
+    public Symbol newSymbol(String name, int id, Symbol left, Symbol right, Object value) {
+        return make(id, left.left, right.right, null, value);
+    }
+    public Symbol newSymbol(String name, int id, Symbol left, Symbol right) {
+        return make(id, left.left, right.right, null, null);
+    }
+    public Symbol newSymbol(String name, Pos pos, int id, Object value) {
+        return make(id, -1, -1, pos, value);
+    }
+    public Symbol newSymbol(String name, int id) {
+        return make(id, -1, -1, null, null);
+    }
+    public Symbol startSymbol(String name, int id, int state) {
+        return new Symbol(id, state);
+    }
+}
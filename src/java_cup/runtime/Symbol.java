@@ -98,6 +98,9 @@ public class Symbol {
   /** This allows us to catch some errors caused by scanners recycling
    *  symbols.  For the use of the parser only. [CSA, 23-Jul-1999] */
   boolean used_by_parser = false;
+  /** True if this Symbol was created by a PooledSymbolFactory and may be recycled
+   *  once the parser pops it.  For the use of the parser only. */
+  boolean pooled = false;
 
 /*******************************
   The data passed to parser
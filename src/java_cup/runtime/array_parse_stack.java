@@ -0,0 +1,64 @@
+package java_cup.runtime;
+
+import java.util.Stack;
+
+/** This class is a parse stack with unsynchronized push, pop, peek and elementAt.  <p>
+ *
+ *  The generated action code accesses the parse stack as a java.util.Stack, whose
+ *  methods are all synchronized since it extends java.util.Vector.  A parser only
+ *  ever touches its stack from one thread, so this subclass overrides the hot
+ *  methods to access Vector's backing array directly; every other Vector method
+ *  still works since the same elementData and elementCount fields are used.  <p>
+ *
+ *  The stack is meant to be reused by consecutive parses on the same thread
+ *  (see clear()), so that its backing array only has to grow once.
+ *
+ * @see     java_cup.runtime.lr_parser#stack
+ */
+
+public final class array_parse_stack extends Stack<Object> {
+
+  /** This silences javac's warning about missing serialVersionUID. */
+  private static final long serialVersionUID = 0;
+
+  /** Constructs an empty stack with the given initial capacity. */
+  public array_parse_stack(int capacity) { ensureCapacity(capacity); }
+
+  /** Pushes x onto the stack, then returns x. */
+  @Override public Object push(Object x) {
+    if (elementCount == elementData.length) ensureCapacity(elementCount + 1);
+    elementData[elementCount++] = x;
+    return x;
+  }
+
+  /** Removes and returns the top element; the stack must not be empty. */
+  @Override public Object pop() {
+    Object x = elementData[--elementCount];
+    elementData[elementCount] = null;
+    return x;
+  }
+
+  /** Removes the top n elements; if factory is not null, every removed Symbol that it created is handed back to it. */
+  public void pop(int n, PooledSymbolFactory factory) {
+    for (int i = 0; i < n; i++) {
+      Object x = elementData[--elementCount];
+      elementData[elementCount] = null;
+      if (factory != null) factory.recycle(x);
+    }
+  }
+
+  /** Returns the top element without removing it; the stack must not be empty. */
+  @Override public Object peek() { return elementData[elementCount - 1]; }
+
+  /** Returns the i-th element (0 is the bottom of the stack). */
+  @Override public Object elementAt(int i) { return elementData[i]; }
+
+  /** Returns true if the stack is empty. */
+  @Override public boolean empty() { return elementCount == 0; }
+
+  /** Removes every element, but keeps the backing array so that it can be reused. */
+  public void clear_for_reuse() {
+    for (int i = 0; i < elementCount; i++) elementData[i] = null;
+    elementCount = 0;
+  }
+}
@@ -0,0 +1,127 @@
+package java_cup.runtime;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/** This class stores a CUP action table or reduce-goto table in "row displacement"
+ *  form, so that a lookup is a constant-time array probe instead of the linear or
+ *  binary search performed by lr_parser.get_action() and lr_parser.get_reduce().  <p>
+ *
+ *  The packed tables generated by CUP store each state as a list of (symbol, value)
+ *  pairs terminated by a (-1, default) pair.  Here every row keeps only the entries
+ *  that differ from its default, and all rows are overlaid into one shared
+ *  value array: entry (state, sym) lives at index base[state]+sym, and check[]
+ *  records which state owns that slot.  If the slot is owned by another state,
+ *  the row's default is returned.  <p>
+ *
+ *  Instances are immutable once constructed, so a single instance can be shared
+ *  by every parser that uses the same generated tables.
+ *
+ * @see     java_cup.runtime.lr_parser#get_action
+ * @see     java_cup.runtime.lr_parser#get_reduce
+ */
+
+public final class compressed_table {
+
+  /** For each state, the offset of its row in the value array. */
+  private final int[] base;
+
+  /** For each state, the value to return when the symbol has no explicit entry. */
+  private final short[] deflt;
+
+  /** For each slot, the state that owns it (or -1 if the slot is unused). */
+  private final int[] check;
+
+  /** For each slot, the action or goto value stored there. */
+  private final short[] value;
+
+  /** Builds a compressed table from a CUP packed table.
+   *
+   * @param packed  the packed table (one row per state; rows may be null)
+   * @param missing the value to return for a null row, or if a row has no default entry
+   */
+  public compressed_table(short[][] packed, short missing) {
+    final int n = packed.length;
+    base = new int[n];
+    deflt = new short[n];
+    final int[][] keys = new int[n][];
+    final short[][] vals = new short[n][];
+    int maxKey = 0, total = 0;
+    for (int state = 0; state < n; state++) {
+      short[] row = packed[state];
+      short d = missing;
+      int count = 0;
+      if (row != null) {
+        for (int i = 0; i + 1 < row.length; i += 2) if (row[i] == -1) { d = row[i+1]; break; }
+        for (int i = 0; i + 1 < row.length && row[i] != -1; i += 2) if (row[i+1] != d) count++;
+      }
+      deflt[state] = d;
+      keys[state] = new int[count];
+      vals[state] = new short[count];
+      count = 0;
+      if (row != null) for (int i = 0; i + 1 < row.length && row[i] != -1; i += 2) if (row[i+1] != d) {
+        keys[state][count] = row[i];
+        vals[state][count] = row[i+1];
+        if (row[i] > maxKey) maxKey = row[i];
+        count++;
+      }
+      total += count;
+    }
+    // Place the longest rows first; they are the hardest to fit.
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) { return keys[b].length - keys[a].length; }
+    });
+    int[] chk = new int[total + maxKey + 1];
+    short[] val = new short[chk.length];
+    Arrays.fill(chk, -1);
+    int firstFree = 0, size = 0;
+    for (int state : order) {
+      int[] k = keys[state];
+      if (k.length == 0) { base[state] = -maxKey - 1; continue; } // always misses
+      while (firstFree < chk.length && chk[firstFree] != -1) firstFree++;
+      int b = firstFree - k[0];
+      search: while (true) {
+        for (int key : k) {
+          int slot = b + key;
+          if (slot >= chk.length) { chk = grow(chk, slot); val = grow(val, chk.length); }
+          if (slot < 0 || chk[slot] != -1) { b++; continue search; }
+        }
+        break;
+      }
+      base[state] = b;
+      for (int i = 0; i < k.length; i++) {
+        int slot = b + k[i];
+        chk[slot] = state;
+        val[slot] = vals[state][i];
+        if (slot >= size) size = slot + 1;
+      }
+    }
+    check = Arrays.copyOf(chk, size);
+    value = Arrays.copyOf(val, size);
+  }
+
+  /** Returns a copy of the array enlarged so that the given index is valid. */
+  private static int[] grow(int[] array, int index) {
+    if (index < array.length) return array;
+    int[] ans = Arrays.copyOf(array, Math.max(index + 1, array.length * 2));
+    Arrays.fill(ans, array.length, ans.length, -1);
+    return ans;
+  }
+
+  /** Returns a copy of the array enlarged to the given length. */
+  private static short[] grow(short[] array, int length) {
+    return length <= array.length ? array : Arrays.copyOf(array, length);
+  }
+
+  /** Returns the entry for the given state and symbol (or the row's default entry if there is no explicit entry). */
+  public short get(int state, int sym) {
+    int slot = base[state] + sym;
+    if (slot >= 0 && slot < check.length && check[slot] == state) return value[slot];
+    return deflt[state];
+  }
+
+  /** Returns the number of slots in the shared value array (useful for measuring the compression ratio). */
+  public int size() { return check.length; }
+}
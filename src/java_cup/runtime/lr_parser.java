@@ -282,6 +282,16 @@ public abstract class lr_parser {
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
+  /** If nonnull, the compressed form of action_tab used by get_action(). */
+  protected compressed_table compressed_action_tab;
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** If nonnull, the compressed form of reduce_tab used by get_reduce(). */
+  protected compressed_table compressed_reduce_tab;
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
   /** This is the scanner object used by the default implementation
    *  of scan() to get Symbols.  To avoid name conflicts with existing
    *  code, this field is private. [CSA/davidm] */
@@ -433,12 +443,16 @@ public abstract class lr_parser {
    *  entries in the table), and the list is terminated by a default entry 
    *  (denoted with a Symbol index of -1).  To find the proper entry in a row 
    *  we do a linear or binary search (depending on the size of the row).  
+   *  If compressed_action_tab has been set, we look it up there instead.
    *
    * @param state the state index of the action being accessed.
    * @param sym   the Symbol index of the action being accessed.
    */
   protected final short get_action(int state, int sym)
     {
+      if (compressed_action_tab != null)
+        return compressed_action_tab.get(state, sym);
+
       short tag;
       int first, last, probe;
       short[] row = action_tab[state];
@@ -487,13 +501,17 @@ public abstract class lr_parser {
    *  Within each row, a list of index, value pairs are given (as sequential
    *  entries in the table), and the list is terminated by a default entry 
    *  (denoted with a Symbol index of -1).  To find the proper entry in a row 
-   *  we do a linear search.  
+   *  we do a linear search.  If compressed_reduce_tab has been set, we 
+   *  look it up there instead.
    *
    * @param state the state index of the entry being accessed.
    * @param sym   the Symbol index of the entry being accessed.
    */
   protected final short get_reduce(int state, int sym)
     {
+      if (compressed_reduce_tab != null)
+        return compressed_reduce_tab.get(state, sym);
+
       short tag;
       short[] row = reduce_tab[state];
 
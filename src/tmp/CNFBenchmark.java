@@ -0,0 +1,116 @@
+package tmp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import edu.mit.csail.sdg.alloy4.Util;
+import edu.mit.csail.sdg.alloy4compiler.translator.WriteCNF;
+import kodkod.engine.satlab.SATSolver;
+
+/** Measures how fast WriteCNF writes a large random CNF in each of its formats, compared to the original WriteCNF
+ * (which appended each clause to a StringBuilder and wrote it out through a RandomAccessFile).
+ * <p> Usage: java tmp.CNFBenchmark [clauses (default: 5000000)] [directory for the CNF files (default: the temporary directory)]
+ */
+public final class CNFBenchmark {
+
+    /** This is the original WriteCNF (without the SATSolver methods that the benchmark does not need). */
+    private static final class LegacyWriteCNF {
+        private final RandomAccessFile cnf;
+        private final StringBuilder buffer;
+        private static final int capacity = 8192;
+        private int vars = 0, clauses = 0;
+        LegacyWriteCNF(String filename) throws IOException {
+            cnf = new RandomAccessFile(filename, "rw");
+            cnf.setLength(0);
+            buffer = new StringBuilder(capacity);
+            for(int i = String.valueOf(Integer.MAX_VALUE).length()*2 + 8; i > 0; i--) buffer.append(' ');
+            buffer.append('\n');
+        }
+        private void flush() throws IOException { cnf.writeBytes(buffer.toString()); buffer.setLength(0); }
+        void addVariables(int numVars) { if (numVars >= 0) vars += numVars; }
+        void addClause(int[] lits) throws IOException {
+            clauses++;
+            if (buffer.length() > capacity) flush();
+            for(int i=0; i<lits.length; i++) buffer.append(lits[i]).append(' ');
+            buffer.append("0\n");
+        }
+        void solve() throws IOException {
+            flush();
+            cnf.seek(0);
+            cnf.writeBytes("p cnf " + vars + " " + clauses);
+            cnf.close();
+        }
+    }
+
+    /** Generates the given number of random 3-literal clauses over the given number of variables. */
+    private static int[][] generate(int n, int vars, long seed) {
+        Random random = new Random(seed);
+        int[][] ans = new int[n][];
+        for(int i=0; i<n; i++) {
+            int[] clause = new int[3];
+            for(int j=0; j<3; j++) { clause[j] = 1 + random.nextInt(vars); if (random.nextBoolean()) clause[j] = -clause[j]; }
+            ans[i] = clause;
+        }
+        return ans;
+    }
+
+    /** Writes the clauses with the given writer (or the legacy writer if mode==null), and returns the time taken in nanoseconds. */
+    private static long write(int[][] clauses, int vars, String filename, String mode) throws IOException {
+        long start = System.nanoTime();
+        if (mode==null) {
+            LegacyWriteCNF cnf = new LegacyWriteCNF(filename);
+            cnf.addVariables(vars);
+            for(int[] c: clauses) cnf.addClause(c);
+            cnf.solve();
+        } else {
+            SATSolver cnf = WriteCNF.factory(filename, mode.startsWith("binary"), mode.endsWith("gzip")).instance();
+            cnf.addVariables(vars);
+            for(int[] c: clauses) cnf.addClause(c);
+            try { cnf.solve(); } catch(WriteCNF.WriteCNFCompleted ex) { }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Returns true if the two files have the same content. */
+    private static boolean same(String a, String b) throws IOException {
+        if (new File(a).length() != new File(b).length()) return false;
+        InputStream x = new FileInputStream(a), y = new FileInputStream(b);
+        try {
+            byte[] bx = new byte[65536], by = new byte[65536];
+            while(true) {
+                int n = x.read(bx);
+                if (n<0) return true;
+                for(int i=0; i<n;) { int m = y.read(by, i, n-i); if (m<0) return false; i = i + m; }
+                for(int i=0; i<n; i++) if (bx[i]!=by[i]) return false;
+            }
+        } finally {
+            Util.close(x);
+            Util.close(y);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+        int vars = Math.max(3, n/4);
+        int[][] clauses = generate(n, vars, 1);
+        write(generate(n/10, vars, 2), vars, new File(dir, "warmup.cnf").getPath(), null); // warm up
+        String[] modes = new String[]{null, "text", "binary", "gzip", "binary+gzip"};
+        for(String mode: modes) {
+            String filename = new File(dir, "bench-" + (mode==null ? "legacy" : mode) + ".cnf").getPath();
+            write(generate(n/10, vars, 2), vars, filename, mode); // warm up
+            long ns = write(clauses, vars, filename, mode);
+            long size = new File(filename).length();
+            System.out.println((mode==null ? "legacy" : mode) + ": " + (ns/1000000) + " ms, " + (n*1000L/Math.max(1, ns/1000)) + "K clauses/s, "
+                + (size*1000L/Math.max(1, ns)) + " MB/s, " + size + " bytes");
+        }
+        System.out.println("text output identical to legacy output: "
+            + same(new File(dir, "bench-legacy.cnf").getPath(), new File(dir, "bench-text.cnf").getPath()));
+        for(String mode: modes) new File(dir, "bench-" + (mode==null ? "legacy" : mode) + ".cnf").delete();
+        new File(dir, "warmup.cnf").delete();
+    }
+}
@@ -0,0 +1,60 @@
+package tmp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.mit.csail.sdg.alloy4graph.Graph;
+import edu.mit.csail.sdg.alloy4graph.GraphEdge;
+import edu.mit.csail.sdg.alloy4graph.GraphNode;
+
+/** Measures Graph.layout() on randomly generated graphs of increasing size.
+ * <p> Usage: java tmp.LayoutBenchmark [node counts (default: 100 300 1000 3000)]
+ */
+public final class LayoutBenchmark {
+
+    /** Generates a graph with the given number of nodes, where each node has about 1.5 outgoing edges on average. */
+    private static Graph generate(int n, long seed) {
+        Random random = new Random(seed);
+        Graph graph = new Graph(1.0D);
+        List<GraphNode> nodes = new ArrayList<GraphNode>(n);
+        for(int i=0; i<n; i++) nodes.add(new GraphNode(graph, "n"+i, "Node" + i));
+        for(int i=0; i<n; i++) {
+            int k = random.nextInt(4);
+            for(int j=0; j<k; j++) {
+                // Mostly local edges (as in a trace or a list), with an occasional long-range edge
+                int target = random.nextInt(10)==0 ? random.nextInt(n) : Math.min(n-1, Math.max(0, i + random.nextInt(21) - 10));
+                if (target!=i) new GraphEdge(nodes.get(i), nodes.get(target), "e"+i+"_"+j, "r", "r");
+            }
+        }
+        return graph;
+    }
+
+    /** Returns the total number of pairwise edge crossings between adjacent layers (a simple measure of layout quality). */
+    private static long crossings(Graph graph) {
+        List<GraphEdge> edges = new ArrayList<GraphEdge>();
+        for(GraphEdge e: graph.edges) if (e.a()!=e.b()) edges.add(e);
+        long ans = 0;
+        for(int i=0; i<edges.size(); i++) for(int j=i+1; j<edges.size(); j++) {
+            GraphEdge a=edges.get(i), b=edges.get(j);
+            if (a.a().y()!=b.a().y() || a.b().y()!=b.b().y()) continue;
+            long top = a.a().x()-b.a().x(), bottom = a.b().x()-b.b().x();
+            if (top*bottom<0) ans++;
+        }
+        return ans;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = new int[]{100, 300, 1000, 3000};
+        if (args.length>0) { sizes = new int[args.length]; for(int i=0; i<args.length; i++) sizes[i] = Integer.parseInt(args[i]); }
+        for(int n: sizes) {
+            generate(n, 1).layout(); // warm up
+            Graph graph = generate(n, 2);
+            long start = System.nanoTime();
+            graph.layout();
+            long ms = (System.nanoTime() - start) / 1000000;
+            System.out.println(n + " nodes, " + graph.edges.size() + " edges after layout (including dummy segments): "
+                + ms + " ms, " + crossings(graph) + " crossings, " + graph.getTotalWidth() + "x" + graph.getTotalHeight());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package tmp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.Util;
+import edu.mit.csail.sdg.alloy4compiler.parser.CompUtil;
+
+/** Measures parse time over every .als file in a directory tree, with the fast parser runtime turned on and off.
+ * <p> Usage: java tmp.ParserBenchmark [directory (default: models)] [rounds (default: 10)]
+ */
+public final class ParserBenchmark {
+
+    private static void collect(File dir, List<String> files) {
+        File[] list = dir.listFiles();
+        if (list != null) for(File f: list) {
+            if (f.isDirectory()) collect(f, files); else if (f.getName().endsWith(".als")) files.add(f.getPath());
+        }
+    }
+
+    /** Parses every file once, and returns how many files were parsed without error. */
+    private static int parseAll(List<String> contents) {
+        int ok = 0;
+        for(String content: contents) {
+            try { CompUtil.parseOneModule(content); ok++; } catch(Err ex) { }
+        }
+        return ok;
+    }
+
+    private static long run(List<String> contents, int rounds, String mode) {
+        System.setProperty("alloy.fastparser", mode);
+        parseAll(contents); parseAll(contents); // warm up
+        long best = Long.MAX_VALUE;
+        for(int i=0; i<rounds; i++) {
+            long start = System.nanoTime();
+            parseAll(contents);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1000000;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String dir = args.length > 0 ? args[0] : "models";
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        List<String> files = new ArrayList<String>();
+        collect(new File(dir), files);
+        List<String> contents = new ArrayList<String>();
+        long chars = 0;
+        for(String f: files) { String c = Util.readAll(f); contents.add(c); chars += c.length(); }
+        System.out.println(files.size() + " files, " + chars + " characters, " + parseAll(contents) + " parsed without error");
+        long slow = run(contents, rounds, "no"), fast = run(contents, rounds, "yes");
+        System.out.println("legacy runtime: " + slow + " ms (best of " + rounds + ")");
+        System.out.println("fast runtime:   " + fast + " ms (best of " + rounds + ")");
+    }
+}
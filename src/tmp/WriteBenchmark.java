@@ -0,0 +1,175 @@
+package tmp;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.Util;
+import edu.mit.csail.sdg.alloy4compiler.ast.Command;
+import edu.mit.csail.sdg.alloy4compiler.ast.Module;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
+import edu.mit.csail.sdg.alloy4compiler.parser.CompUtil;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Options;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Tuple;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4TupleSet;
+import edu.mit.csail.sdg.alloy4compiler.translator.TranslateAlloyToKodkod;
+
+/** Measures XML escaping (the legacy character-by-character Util.encodeXML versus the current one) over the text of every .als file
+ * in a directory tree, and measures how fast XML instances are written, both for the first solution of each file's first command
+ * and for a large synthetic instance (a sig with N atoms, a binary field holding all N^2 pairs, and a ternary field holding all N^3 triples).
+ * <p> For the synthetic instance, the legacy writer is the tuple loop of the original A4SolutionWriter (one PrintWriter call
+ * per piece of markup, and the legacy Util.encodeXML for every atom), which is where almost all of its time went on large instances.
+ * <p> Everything here goes through the public API, so this class can also be compiled and run against an older build.
+ * <p> Usage: java tmp.WriteBenchmark [directory (default: models/examples)] [rounds (default: 10)] [atoms in the synthetic instance (default: 60)]
+ */
+public final class WriteBenchmark {
+
+    /** A Writer that throws away everything, but counts the characters written to it. */
+    private static final class Sink extends Writer {
+        long chars = 0;
+        @Override public void write(char[] buf, int off, int len) { chars += len; }
+        @Override public void write(String str, int off, int len) { chars += len; }
+        @Override public void write(int c) { chars++; }
+        @Override public void flush() { }
+        @Override public void close() { }
+    }
+
+    /** Something to time; run() writes to the given PrintWriter. */
+    private static abstract class Task {
+        abstract void run(PrintWriter out) throws Err;
+    }
+
+    private static void collect(File dir, List<String> files) {
+        File[] list = dir.listFiles();
+        if (list != null) for(File f: list) {
+            if (f.isDirectory()) collect(f, files); else if (f.getName().endsWith(".als")) files.add(f.getPath());
+        }
+    }
+
+    /** This is the Util.encodeXML(PrintWriter,String) from before it was rewritten to write each run of plain characters at once. */
+    private static void legacyEncodeXML(PrintWriter out, String str) {
+        int n=str.length();
+        for(int i=0; i<n; i++) {
+            char c=str.charAt(i);
+            if (c=='<') { out.write("&lt;"); continue; }
+            if (c=='>') { out.write("&gt;"); continue; }
+            if (c=='&') { out.write("&amp;"); continue; }
+            if (c=='\'') { out.write("&apos;"); continue; }
+            if (c=='\"') { out.write("&quot;"); continue; }
+            if (c>=32 && c<=126) { out.write(c); continue; }
+            out.write("&#x");
+            String v=Integer.toString(c, 16);
+            for(int j=v.length(); j<4; j++) out.write('0');
+            out.write(v);
+            out.write(';');
+        }
+    }
+
+    /** This is the tuple loop of the original A4SolutionWriter, applied to every field of the given sigs. */
+    private static void legacyWriteTuples(PrintWriter out, A4Solution sol, Iterable<Sig> sigs) throws Err {
+        for(Sig s: sigs) for(Field f: s.getFields()) {
+            for(A4Tuple t: (A4TupleSet)(sol.eval(f))) {
+                out.print("   <tuple>");
+                for(int i=0; i<t.arity(); i++) { out.print(" <atom label=\""); legacyEncodeXML(out, t.atom(i)); out.print("\"/>"); }
+                out.print(" </tuple>\n");
+            }
+        }
+    }
+
+    /** The number of passes over the example inputs in each round (they are small, so a single pass is too quick to time). */
+    private static final int PASSES = 20;
+
+    /** Returns the best time (in nanoseconds) of the given number of rounds of the task, and stores the number of characters written into chars[0]. */
+    private static long time(Task task, int passes, int rounds, long[] chars) throws Err {
+        for(int i=0; i<3; i++) task.run(new PrintWriter(new Sink())); // warm up
+        long best = Long.MAX_VALUE;
+        for(int i=0; i<rounds; i++) {
+            Sink sink = new Sink();
+            PrintWriter out = new PrintWriter(sink);
+            long start = System.nanoTime();
+            for(int j=0; j<passes; j++) task.run(out);
+            out.flush();
+            best = Math.min(best, System.nanoTime() - start);
+            chars[0] = sink.chars;
+        }
+        return best;
+    }
+
+    /** Times the task, and prints the result with the given label. */
+    private static void report(String label, Task task, int passes, int rounds) throws Err {
+        long[] chars = new long[1];
+        long nanos = time(task, passes, rounds, chars);
+        System.out.println(label + (nanos / 1000000) + " ms, " + (chars[0] * 1000L / Math.max(1, nanos)) + " MB/s for "
+           + (chars[0] / passes) + " characters per pass (best of " + rounds + ")");
+    }
+
+    /** Solves the synthetic model with the given number of atoms. */
+    private static A4Solution synthetic(int n, String dir) throws Exception {
+        File file = File.createTempFile("writebenchmark", ".als");
+        try {
+            Util.writeAll(file.getPath(), "sig A { r: set A, t: A -> A }\nfact { r = A->A  t = A->A->A }\nrun {} for exactly " + n + " A\n");
+            // util/integer is opened implicitly, so we tell the parser where to find it
+            Map<String,String> loaded = new LinkedHashMap<String,String>();
+            loaded.put(Util.canon(new File(file.getParentFile(), "util/integer.als").getPath()), Util.readAll(new File(new File(dir).getParentFile(), "util/integer.als").getPath()));
+            Module world = CompUtil.parseEverything_fromFile(A4Reporter.NOP, loaded, file.getPath());
+            return TranslateAlloyToKodkod.execute_command(A4Reporter.NOP, world.getAllReachableSigs(), world.getAllCommands().get(0), new A4Options());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String dir = args.length > 0 ? args[0] : "models/examples";
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int atoms = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        List<String> files = new ArrayList<String>();
+        collect(new File(dir), files);
+        final List<String> contents = new ArrayList<String>();
+        final List<A4Solution> solutions = new ArrayList<A4Solution>();
+        A4Options opt = new A4Options();
+        for(String f: files) {
+            contents.add(Util.readAll(f));
+            try {
+                Module world = CompUtil.parseEverything_fromFile(A4Reporter.NOP, null, f);
+                if (world.getAllCommands().size()==0) continue;
+                Command cmd = world.getAllCommands().get(0);
+                A4Solution sol = TranslateAlloyToKodkod.execute_command(A4Reporter.NOP, world.getAllReachableSigs(), cmd, opt);
+                if (sol.satisfiable()) solutions.add(sol);
+            } catch(Err ex) { }
+        }
+        for(String content: contents) {
+            StringWriter a = new StringWriter(), b = new StringWriter();
+            PrintWriter pa = new PrintWriter(a), pb = new PrintWriter(b);
+            legacyEncodeXML(pa, content); Util.encodeXML(pb, content); pa.flush(); pb.flush();
+            if (!a.toString().equals(b.toString())) System.out.println("WARNING: the legacy and current encodeXML disagree");
+        }
+        System.out.println(files.size() + " files, " + solutions.size() + " satisfiable solutions");
+        report("legacy encodeXML:  ", new Task() { void run(PrintWriter out) { for(String c: contents) legacyEncodeXML(out, c); } }, PASSES, rounds);
+        report("current encodeXML: ", new Task() { void run(PrintWriter out) { for(String c: contents) Util.encodeXML(out, c); } }, PASSES, rounds);
+        report("XML instances:     ", new Task() { void run(PrintWriter out) throws Err { for(A4Solution s: solutions) s.writeXML(out, null, null); } }, PASSES, rounds);
+        // The large synthetic instance
+        final A4Solution big = synthetic(atoms, dir);
+        final List<Sig> sigs = new ArrayList<Sig>();
+        for(Sig s: big.getAllReachableSigs()) if (!s.builtin) sigs.add(s);
+        long tuples = 0;
+        for(Sig s: sigs) for(Field f: s.getFields()) tuples += ((A4TupleSet)(big.eval(f))).size();
+        StringWriter legacy = new StringWriter(), current = new StringWriter();
+        PrintWriter pl = new PrintWriter(legacy), pc = new PrintWriter(current);
+        legacyWriteTuples(pl, big, sigs); big.writeXML(pc, null, null); pl.flush(); pc.flush();
+        StringBuilder tupleLines = new StringBuilder();
+        for(String line: current.toString().split("\n")) if (line.startsWith("   <tuple>")) tupleLines.append(line).append('\n');
+        if (!tupleLines.toString().equals(legacy.toString())) System.out.println("WARNING: the legacy and current writers disagree on the tuples");
+        System.out.println("synthetic instance: " + atoms + " atoms, " + tuples + " tuples");
+        report("legacy writer (tuples only): ", new Task() { void run(PrintWriter out) throws Err { legacyWriteTuples(out, big, sigs); } }, 1, rounds);
+        report("current writer (whole file): ", new Task() { void run(PrintWriter out) throws Err { big.writeXML(out, null, null); } }, 1, rounds);
+    }
+}